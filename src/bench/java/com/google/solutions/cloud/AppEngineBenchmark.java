@@ -0,0 +1,47 @@
+package com.google.solutions.cloud;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.SingleInstanceDeployment;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Date;
+
+/**
+ * Base class for benchmarks of code which needs an App Engine API
+ * environment (e.g. to create Datastore keys). The environment is per
+ * thread, so is the benchmark state.
+ */
+@State(Scope.Thread)
+public abstract class AppEngineBenchmark {
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  @Setup
+  public void setUpEnvironment() {
+    this.helper.setUp();
+  }
+
+  @TearDown
+  public void tearDownEnvironment() {
+    this.helper.tearDown();
+  }
+
+  // a demo record as created by createSingleInstanceDemo
+  protected static DemoInfo makeDemoInfo(long demoId, Date creationTime) {
+    return new DemoInfo()
+        .setDemoId(demoId)
+        .setStatus(DemoStatus.LAUNCHED)
+        .setDescription("benchmark demo " + demoId)
+        .setCreationTime(creationTime)
+        .setStatusChangeTime(creationTime)
+        .setDeploymentProfile("default")
+        .setDeploymentStatus("RUNNING")
+        .setZone(Constants.DEFAULT_ZONE)
+        .setDeploymentTemplate(SingleInstanceDeployment.makeDefaultTemplate("bench-" + demoId));
+  }
+}
@@ -0,0 +1,336 @@
+package com.google.solutions.cloud.app.api;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.compute.ComputeEmulator;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.compute.FakeComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.persistence.EntityGroupContention;
+import com.google.solutions.cloud.workshop.WorkshopRequest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test which drives {@link CloudAppDemoToolAPI} from many threads, on
+ * top of the local Datastore (and Memcache, Task Queue and Search) test
+ * services and either a {@link FakeComputeService} or the real Compute
+ * client talking to a {@link ComputeEmulator} (compute=emulator), which adds
+ * the cost of HTTP and JSON. It runs two scenarios:
+ *
+ * - rounds of simulated users, one thread each, each going through a demo's
+ *   lifecycle (create, launch, poll, list, teardown, delete) for a few demos,
+ *   with the number of users growing from round to round
+ * - a workshop-sized burst: an instructor creates a workshop, then launches
+ *   all of its demos (and creates some more) from many threads at once, all
+ *   within the instructor's entity group
+ *
+ * For each, it prints p50/p95/p99 latencies per endpoint, throughput, and the
+ * number of retried (and abandoned) Datastore transactions. Admission limits
+ * are raised, so that they don't hide what's behind them. Run with:
+ *
+ *   mvn -P benchmarks test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=com.google.solutions.cloud.app.api.ApiLoadTest \
+ *       -Dexec.args="users=1,10,50 workshopSize=200 computeLatencyMillis=100"
+ *
+ * Options (all key=value, all optional): users, demosPerUser, polls,
+ * workshopSize, workshopThreads, compute (fake or emulator), and either
+ * computeLatencyMillis and computeErrorRate (for the fake) or
+ * emulatorProfile (for the emulator; see ComputeEmulator.LatencyProfile).
+ */
+public class ApiLoadTest {
+  private static final String AUTH_DOMAIN = "example.com";
+  private static final int HOTTEST_GROUPS_TO_PRINT = 5;
+  private static final String TRANSACTION_RETRIES_COUNTER = "datastore.transactionRetries";
+  private static final String TRANSACTIONS_ABANDONED_COUNTER = "datastore.transactionsAbandoned";
+
+  private final Map<String, String> options;
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(),
+      new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig()
+          .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+          .setDisableAutoTaskExecution(true),
+      new LocalSearchServiceTestConfig());
+  private ApiProxy.Environment environment;
+  private CloudAppDemoToolAPI api;
+
+  ApiLoadTest(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String... args) throws Exception {
+    Map<String, String> options = Maps.newHashMap();
+    for (String arg : args) {
+      List<String> keyAndValue = Splitter.on('=').limit(2).splitToList(arg);
+      if (keyAndValue.size() != 2) {
+        throw new IllegalArgumentException("expected key=value, got: " + arg);
+      }
+      options.put(keyAndValue.get(0), keyAndValue.get(1));
+    }
+    new ApiLoadTest(options).run();
+  }
+
+  void run() throws Exception {
+    ComputeEmulator emulator = null;
+    this.helper.setUp();
+    try {
+      // the local services are bound to the calling thread's environment,
+      // which the worker threads share
+      this.environment = ApiProxy.getCurrentEnvironment();
+      ComputeService computeService;
+      String compute = this.getOption("compute", "fake");
+      if (compute.equals("emulator")) {
+        emulator = new ComputeEmulator(ComputeEmulator.LatencyProfile.valueOf(
+            this.getOption("emulatorProfile", "FAST"))).start();
+        computeService = ComputeService.forRootUrl(emulator.getRootUrl());
+      } else if (compute.equals("fake")) {
+        computeService = new FakeComputeService(
+            this.getLongOption("computeLatencyMillis", 50),
+            Double.parseDouble(this.getOption("computeErrorRate", "0")));
+      } else {
+        throw new IllegalArgumentException("compute must be fake or emulator, got: " + compute);
+      }
+      this.api = new CloudAppDemoToolAPI(new DeploymentManager(computeService),
+          Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+      for (String users : Splitter.on(',').split(this.getOption("users", "1,5,10,25,50"))) {
+        this.runUserRound(Integer.parseInt(users));
+      }
+      this.runWorkshopBurst();
+    } finally {
+      if (emulator != null) {
+        emulator.stop();
+      }
+      this.helper.tearDown();
+    }
+  }
+
+  private void runUserRound(int numUsers) throws Exception {
+    final int demosPerUser = (int) this.getLongOption("demosPerUser", 3);
+    final int polls = (int) this.getLongOption("polls", 3);
+    final LatencyStats stats = new LatencyStats();
+    List<Callable<Void>> sessions = Lists.newArrayList();
+    for (int i = 0; i < numUsers; i++) {
+      final User user = makeUser(String.format("load-%d-%d", numUsers, i));
+      sessions.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ApiLoadTest.this.runUserSession(user, demosPerUser, polls, stats);
+          return null;
+        }
+      });
+    }
+    this.runConcurrently(String.format("%d users", numUsers), sessions, stats);
+  }
+
+  // one user's demos, from creation to deletion
+  private void runUserSession(final User user, int numDemos, int polls, LatencyStats stats) {
+    List<Long> demoIds = Lists.newArrayList();
+    for (int i = 0; i < numDemos; i++) {
+      DemoInfo demoInfo = timed(stats, "createSingleInstanceDemo", new Callable<DemoInfo>() {
+        @Override
+        public DemoInfo call() throws Exception {
+          return ApiLoadTest.this.api.createSingleInstanceDemo("load test", null, null, null,
+              user);
+        }
+      });
+      if (demoInfo != null) {
+        demoIds.add(demoInfo.getDemoId());
+      }
+    }
+    for (final Long demoId : demoIds) {
+      timed(stats, "launchDemo", new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ApiLoadTest.this.api.launchDemo(demoId, null, user);
+          return null;
+        }
+      });
+    }
+    for (int i = 0; i < polls; i++) {
+      for (final Long demoId : demoIds) {
+        timed(stats, "getDemoInfo", new Callable<DemoInfo>() {
+          @Override
+          public DemoInfo call() throws Exception {
+            return ApiLoadTest.this.api.getDemoInfo(demoId, null, null, user);
+          }
+        });
+      }
+      timed(stats, "listActiveDemos", new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return ApiLoadTest.this.api.listActiveDemos(null, null, user);
+        }
+      });
+    }
+    for (final Long demoId : demoIds) {
+      timed(stats, "teardownDemo", new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ApiLoadTest.this.api.teardownDemo(demoId, user);
+          return null;
+        }
+      });
+      timed(stats, "deleteDemoInfo", new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ApiLoadTest.this.api.deleteDemoInfo(demoId, user);
+          return null;
+        }
+      });
+    }
+  }
+
+  // everything below happens in the instructor's entity group, so this is
+  // where reserveInstanceNames and status updates contend with each other
+  private void runWorkshopBurst() throws Exception {
+    int workshopSize = (int) this.getLongOption("workshopSize", 100);
+    int numThreads = (int) this.getLongOption("workshopThreads", 20);
+    final User instructor = makeUser("instructor");
+    final LatencyStats stats = new LatencyStats();
+
+    List<String> attendees = Lists.newArrayList();
+    for (int i = 0; i < workshopSize; i++) {
+      attendees.add(String.format("attendee-%d@%s", i, AUTH_DOMAIN));
+    }
+    final WorkshopRequest workshopRequest = new WorkshopRequest();
+    workshopRequest.setDescription("load test workshop");
+    workshopRequest.setAttendees(attendees);
+    timed(stats, "createWorkshop", new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return ApiLoadTest.this.api.createWorkshop(workshopRequest, null, instructor);
+      }
+    });
+
+    List<Long> demoIds = Lists.newArrayList();
+    for (DemoInfo demoInfo : this.api.listActiveDemos(null, null, instructor).getItems()) {
+      demoIds.add(demoInfo.getDemoId());
+    }
+    Collections.shuffle(demoIds);
+
+    // each thread launches its share of the demos, and creates one more
+    List<Callable<Void>> bursts = Lists.newArrayList();
+    for (int t = 0; t < numThreads; t++) {
+      final List<Long> share = Lists.newArrayList();
+      for (int i = t; i < demoIds.size(); i += numThreads) {
+        share.add(demoIds.get(i));
+      }
+      bursts.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          timed(stats, "createSingleInstanceDemo", new Callable<DemoInfo>() {
+            @Override
+            public DemoInfo call() throws Exception {
+              return ApiLoadTest.this.api.createSingleInstanceDemo("load test", null, null,
+                  null, instructor);
+            }
+          });
+          for (final Long demoId : share) {
+            timed(stats, "launchDemo", new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                ApiLoadTest.this.api.launchDemo(demoId, null, instructor);
+                return null;
+              }
+            });
+          }
+          return null;
+        }
+      });
+    }
+    this.runConcurrently(String.format("workshop of %d, %d threads", workshopSize, numThreads),
+        bursts, stats);
+  }
+
+  private void runConcurrently(String name, List<Callable<Void>> tasks, LatencyStats stats)
+      throws Exception {
+    // the transaction counters are never reset, so report what this run added
+    long retriesBefore = Metrics.getCount(TRANSACTION_RETRIES_COUNTER);
+    long abandonedBefore = Metrics.getCount(TRANSACTIONS_ABANDONED_COUNTER);
+    EntityGroupContention.reset();
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+    long startNanos = System.nanoTime();
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (final Callable<Void> task : tasks) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            ApiProxy.setEnvironmentForCurrentThread(ApiLoadTest.this.environment);
+            try {
+              return task.call();
+            } finally {
+              ApiProxy.clearEnvironmentForCurrentThread();
+            }
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    double elapsedSeconds = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+
+    System.out.format("== %s: %d calls in %.2fs (%.1f calls/s), "
+        + "%d transaction retries, %d abandoned%n",
+        name, stats.getCallCount(), elapsedSeconds, stats.getCallCount() / elapsedSeconds,
+        Metrics.getCount(TRANSACTION_RETRIES_COUNTER) - retriesBefore,
+        Metrics.getCount(TRANSACTIONS_ABANDONED_COUNTER) - abandonedBefore);
+    stats.print(System.out);
+    for (EntityGroupContention.GroupStats group
+        : EntityGroupContention.getHottestGroups(HOTTEST_GROUPS_TO_PRINT)) {
+      System.out.format("   %s: %d transactions, %d retries, %d abandoned (retries: %s)%n",
+          group.getEntityGroup(), group.getTransactions(), group.getRetries(),
+          group.getAbandoned(), group.getRetriesByOperation());
+    }
+  }
+
+  // failed calls are counted (and timed) like any other
+  private static <T> T timed(LatencyStats stats, String endpoint, Callable<T> call) {
+    long startNanos = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = call.call();
+      failed = false;
+      return result;
+    } catch (Exception e) {
+      return null;
+    } finally {
+      stats.record(endpoint, System.nanoTime() - startNanos, failed);
+    }
+  }
+
+  private String getOption(String name, String defaultValue) {
+    String value = this.options.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  private long getLongOption(String name, long defaultValue) {
+    return Long.parseLong(this.getOption(name, String.valueOf(defaultValue)));
+  }
+
+  private static User makeUser(String name) {
+    return new User(name + "@" + AUTH_DOMAIN, AUTH_DOMAIN);
+  }
+}
@@ -0,0 +1,74 @@
+package com.google.solutions.cloud.app.api;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.primitives.Longs;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-endpoint call latencies and error counts, recorded from any number of
+ * threads, for {@link ApiLoadTest}.
+ */
+final class LatencyStats {
+  private final ConcurrentMap<String, EndpointStats> statsByEndpoint = new ConcurrentHashMap<>();
+  private final AtomicLong callCount = new AtomicLong();
+
+  void record(String endpoint, long latencyNanos, boolean failed) {
+    EndpointStats stats = this.statsByEndpoint.get(endpoint);
+    if (stats == null) {
+      EndpointStats newStats = new EndpointStats();
+      stats = this.statsByEndpoint.putIfAbsent(endpoint, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.latencyNanos.add(latencyNanos);
+    if (failed) {
+      stats.errorCount.incrementAndGet();
+    }
+    this.callCount.incrementAndGet();
+  }
+
+  long getCallCount() {
+    return this.callCount.get();
+  }
+
+  void print(PrintStream out) {
+    out.format("  %-28s %7s %7s %9s %9s %9s%n", "endpoint", "calls", "errors",
+        "p50 ms", "p95 ms", "p99 ms");
+    for (Map.Entry<String, EndpointStats> entry
+        : ImmutableSortedMap.copyOf(this.statsByEndpoint).entrySet()) {
+      long[] latencies = Longs.toArray(entry.getValue().latencyNanos);
+      Arrays.sort(latencies);
+      out.format("  %-28s %7d %7d %9.1f %9.1f %9.1f%n", entry.getKey(), latencies.length,
+          entry.getValue().errorCount.get(),
+          toMillis(percentile(latencies, 50)), toMillis(percentile(latencies, 95)),
+          toMillis(percentile(latencies, 99)));
+    }
+  }
+
+  // nearest-rank percentile of the (sorted) values
+  private static long percentile(long[] sortedValues, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+    return sortedValues[Math.max(0, rank - 1)];
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  // an endpoint's latencies and error count, created together so that
+  // neither can be missing once the endpoint's been seen
+  private static final class EndpointStats {
+    private final Queue<Long> latencyNanos = new ConcurrentLinkedQueue<>();
+    private final AtomicLong errorCount = new AtomicLong();
+  }
+}
@@ -0,0 +1,258 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.compute.ComputeEmulator;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.compute.DeploymentProfile;
+import com.google.solutions.cloud.compute.ReadinessProber;
+import com.google.solutions.cloud.compute.SchedulingProfile;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.deployment.SingleInstanceDeployment;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Check of the readiness probing of launched demos, against a local HTTP
+ * server standing in for the demo app (through the
+ * {@value ReadinessProber#PROBE_HOST_PROPERTY} hook), on top of the local
+ * URL Fetch (and Datastore, Memcache, Task Queue and Search) test services
+ * and a {@link ComputeEmulator}:
+ *
+ * - {@link ReadinessProber} counts 2xx and 3xx responses (without following
+ *   redirects) as serving, and 4xx and 5xx responses and refused
+ *   connections as not
+ * - {@link ProbeReadinessTaskServlet} records a serving demo as ready, has
+ *   the task queue retry a probe of a demo that isn't, and gives up once
+ *   {@link Constants#READINESS_PROBE_TIMEOUT_MINUTES} have passed since the
+ *   launch
+ *
+ * Each check is printed as it's run; the process exits with status 1 if any
+ * of them failed. Run with:
+ *
+ *   mvn -P benchmarks test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=com.google.solutions.cloud.app.tasks.ReadinessProbeCheck
+ */
+public class ReadinessProbeCheck {
+  private static final String USERNAME = "probe-check";
+  // where the stand-in app redirects to; it's never serving, so that a
+  // followed redirect would show up as not ready
+  private static final String REDIRECT_PATH = "/redirected";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(),
+      new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig()
+          .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+          .setDisableAutoTaskExecution(true),
+      new LocalSearchServiceTestConfig(),
+      new LocalURLFetchServiceTestConfig());
+  private final DemoApp demoApp = new DemoApp();
+  private int failures;
+
+  public static void main(String... args) throws Exception {
+    int failures = new ReadinessProbeCheck().run();
+    System.out.format("%s%n", failures == 0 ? "all checks passed" : failures + " checks failed");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  int run() throws Exception {
+    ComputeEmulator emulator = new ComputeEmulator(ComputeEmulator.LatencyProfile.INSTANT)
+        .start();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this.demoApp);
+    server.start();
+    this.helper.setUp();
+    try {
+      // the servlet's compute client is the shared one, which picks this up
+      System.setProperty(ComputeService.ROOT_URL_PROPERTY, emulator.getRootUrl());
+      System.setProperty(ReadinessProber.PROBE_HOST_PROPERTY,
+          "localhost:" + server.getAddress().getPort());
+
+      this.checkProber();
+      this.checkProbeTask();
+    } finally {
+      this.helper.tearDown();
+      server.stop(0);
+      emulator.stop();
+    }
+    return this.failures;
+  }
+
+  private void checkProber() throws IOException {
+    ReadinessProber prober = new ReadinessProber(URLFetchServiceFactory.getURLFetchService());
+    // the instance's address doesn't matter, since the probe host is set
+    Instance instance = new Instance().setName("probe-check");
+
+    for (int status : new int[] {200, 204, 301, 302}) {
+      this.demoApp.status = status;
+      this.check(prober.isServing(instance), "%d counts as serving", status);
+    }
+    for (int status : new int[] {404, 500, 503}) {
+      this.demoApp.status = status;
+      this.check(!prober.isServing(instance), "%d counts as not serving", status);
+    }
+
+    String probeHost = System.getProperty(ReadinessProber.PROBE_HOST_PROPERTY);
+    try {
+      System.setProperty(ReadinessProber.PROBE_HOST_PROPERTY, "localhost:" + getClosedPort());
+      this.check(!prober.isServing(instance), "a refused connection counts as not serving");
+    } finally {
+      System.setProperty(ReadinessProber.PROBE_HOST_PROPERTY, probeHost);
+    }
+  }
+
+  private void checkProbeTask() throws IOException {
+    DemoInfoPersistence persistence = DemoInfoPersistences.create();
+    ProbeReadinessTaskServlet servlet = new ProbeReadinessTaskServlet();
+    long timeoutMillis = TimeUnit.MINUTES.toMillis(Constants.READINESS_PROBE_TIMEOUT_MINUTES);
+    long now = System.currentTimeMillis();
+
+    Long demoId = this.launchDemo(persistence);
+    this.demoApp.status = 503;
+    this.check(probe(servlet, demoId, now) == HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        "a probe of a demo that isn't serving is retried");
+    this.check(probe(servlet, demoId, now - timeoutMillis + TimeUnit.MINUTES.toMillis(1))
+        == HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        "a probe is still retried a minute before the timeout");
+    this.check(probe(servlet, demoId, now - timeoutMillis - TimeUnit.MINUTES.toMillis(1))
+        == HttpServletResponse.SC_OK,
+        "a probe gives up %d minutes after the launch", Constants.READINESS_PROBE_TIMEOUT_MINUTES);
+    this.check(persistence.get(USERNAME, demoId).get().getReadyTime() == null,
+        "a demo that was given up on isn't ready");
+
+    this.demoApp.status = 200;
+    this.check(probe(servlet, demoId, now) == HttpServletResponse.SC_OK,
+        "a probe of a serving demo succeeds");
+    DemoInfo demoInfo = persistence.get(USERNAME, demoId).get();
+    this.check(demoInfo.getReadyTime() != null
+        && DemoInfo.READY_DEPLOYMENT_STATUS.equals(demoInfo.getDeploymentStatus()),
+        "a serving demo is recorded as ready");
+  }
+
+  // a LAUNCHED demo whose instance is RUNNING in the emulator
+  private Long launchDemo(DemoInfoPersistence persistence) {
+    DeploymentProfile deploymentProfile = DeploymentProfile.makeDefaultProfile();
+    String instanceName = String.format("%s-%d", USERNAME,
+        persistence.reserveInstanceNames(USERNAME, 1));
+    DemoInfo demoInfo = persistence.createNewDemo(USERNAME, new DemoInfo()
+        .setDescription("readiness probe check")
+        .setDeploymentTemplate(SingleInstanceDeployment.makeTemplate(instanceName,
+            deploymentProfile, SchedulingProfile.STANDARD))
+        .setDeploymentProfile(deploymentProfile.getName())
+        .setZone(deploymentProfile.getZone()));
+    demoInfo.getDeploymentTemplate().launch(new DeploymentManager(new ComputeService()));
+    persistence.updateStatus(USERNAME, demoInfo.getDemoId(), DemoStatus.LAUNCHED);
+    return demoInfo.getDemoId();
+  }
+
+  private void check(boolean passed, String format, Object... args) {
+    if (!passed) {
+      this.failures++;
+    }
+    System.out.format("%s: %s%n", passed ? "ok" : "FAILED", String.format(format, args));
+  }
+
+  // runs a probe task for a demo launched at the given time; the status it
+  // responded with, where anything other than 200 has the queue retry it
+  private static int probe(ProbeReadinessTaskServlet servlet, Long demoId, long launchTimeMillis)
+      throws IOException {
+    TaskCall call = new TaskCall(ImmutableMap.of(
+        ProbeReadinessTaskServlet.USERNAME_PARAM, USERNAME,
+        ProbeReadinessTaskServlet.DEMO_ID_PARAM, demoId.toString(),
+        ProbeReadinessTaskServlet.LAUNCH_TIME_PARAM, String.valueOf(launchTimeMillis)));
+    servlet.doPost(call.request, call.response);
+    return call.status;
+  }
+
+  // a port nothing is listening on
+  private static int getClosedPort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  // the demo app, answering probes with whatever status it's been set to
+  private static class DemoApp implements HttpHandler {
+    private volatile int status;
+
+    /* (non-Javadoc)
+     * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        int responseStatus = exchange.getRequestURI().getPath().equals(REDIRECT_PATH)
+            ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : this.status;
+        if (responseStatus >= 300 && responseStatus < 400) {
+          exchange.getResponseHeaders().set("Location", REDIRECT_PATH);
+        }
+        // no body
+        exchange.sendResponseHeaders(responseStatus, -1);
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  // just enough of a task queue request (its parameters) and response (its
+  // status) for the servlet
+  private static class TaskCall implements InvocationHandler {
+    private final Map<String, String> params;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private int status = HttpServletResponse.SC_OK;
+
+    TaskCall(Map<String, String> params) {
+      this.params = params;
+      this.request = (HttpServletRequest) Proxy.newProxyInstance(
+          HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+          this);
+      this.response = (HttpServletResponse) Proxy.newProxyInstance(
+          HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+          this);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getParameter":
+          return this.params.get(args[0]);
+        case "sendError":
+        case "setStatus":
+          this.status = (Integer) args[0];
+          return null;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+  }
+}
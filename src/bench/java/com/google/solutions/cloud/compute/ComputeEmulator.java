@@ -0,0 +1,498 @@
+package com.google.solutions.cloud.compute;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process HTTP server emulating the subset of the GCE v1 REST API that
+ * {@link ComputeService} uses: instances insert, get, delete, list, start,
+ * stop and getSerialPortOutput, and zoneOperations get. Point a
+ * ComputeService at it with {@link ComputeService#forRootUrl(String)} (or,
+ * in the dev server, {@link ComputeService#ROOT_URL_PROPERTY}) to exercise
+ * the real client, HTTP transport and JSON parsing without the network.
+ *
+ * Instances go through the same states as real ones (PROVISIONING, STAGING,
+ * RUNNING; STOPPING, TERMINATED), on the schedule of the emulator's
+ * {@link LatencyProfile}, which also sets how long each request takes.
+ * Operations are DONE once the instance has reached the state they lead to.
+ */
+public class ComputeEmulator {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  private static final int DEFAULT_PAGE_SIZE = 500;
+  // /{project}/zones/{zone}/{collection}[/{name}[/{action}]]
+  private static final Pattern PATH_PATTERN = Pattern.compile(
+      "/([^/]+)/zones/([^/]+)/(instances|operations)(?:/([^/]+)(?:/([^/]+))?)?");
+  // the only kinds of filter ComputeService uses, for instances and operations
+  private static final Pattern NAME_FILTER_PATTERN = Pattern.compile("name eq '(.*)'");
+  private static final Pattern TARGET_LINK_FILTER_PATTERN = Pattern.compile("targetLink eq (.*)");
+
+  /**
+   * How long requests and instance state transitions take.
+   */
+  public enum LatencyProfile {
+    // everything is immediate; for measuring the client side alone
+    INSTANT(0, 0, 0, 0),
+    // fast enough to run load tests through many instance lifecycles
+    FAST(5, 200, 100, 100),
+    // roughly what the real API does
+    REALISTIC(100, 20000, 10000, 15000);
+
+    final long requestMillis;
+    final long provisioningMillis;
+    final long stagingMillis;
+    final long stoppingMillis;
+
+    LatencyProfile(long requestMillis, long provisioningMillis, long stagingMillis,
+        long stoppingMillis) {
+      this.requestMillis = requestMillis;
+      this.provisioningMillis = provisioningMillis;
+      this.stagingMillis = stagingMillis;
+      this.stoppingMillis = stoppingMillis;
+    }
+  }
+
+  private final LatencyProfile latencyProfile;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicLong nextId = new AtomicLong(1);
+  // guarded by this
+  private final Map<String, EmulatedInstance> instancesByZoneAndName = Maps.newHashMap();
+  private final Map<String, EmulatedOperation> operationsByName = Maps.newHashMap();
+
+  public ComputeEmulator(LatencyProfile latencyProfile) throws IOException {
+    this.latencyProfile = checkNotNull(latencyProfile);
+    // port 0 picks a free port
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.server.createContext("/" + Compute.DEFAULT_SERVICE_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ComputeEmulator.this.handle(exchange);
+      }
+    });
+    this.server.setExecutor(this.executor);
+  }
+
+  public ComputeEmulator start() {
+    this.server.start();
+    return this;
+  }
+
+  public void stop() {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+  }
+
+  // to be passed to ComputeService.forRootUrl
+  public String getRootUrl() {
+    return String.format("http://localhost:%d/", this.server.getAddress().getPort());
+  }
+
+  public synchronized int getInstanceCount() {
+    return this.instancesByZoneAndName.size();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (this.latencyProfile.requestMillis > 0) {
+        Thread.sleep(this.latencyProfile.requestMillis);
+      }
+      String path = exchange.getRequestURI().getPath()
+          .substring(Compute.DEFAULT_SERVICE_PATH.length());
+      Matcher matcher = PATH_PATTERN.matcher(path);
+      if (!matcher.matches()) {
+        sendError(exchange, 404, "notFound", "unsupported path: " + path);
+        return;
+      }
+      String zone = matcher.group(2);
+      String collection = matcher.group(3);
+      String name = matcher.group(4);
+      String action = matcher.group(5);
+      String method = exchange.getRequestMethod();
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+      GenericJson response;
+      synchronized (this) {
+        if (collection.equals("operations") && name == null) {
+          response = this.listOperations(zone, params);
+        } else if (collection.equals("operations")) {
+          response = this.getOperation(name);
+        } else if (name == null && method.equals("POST")) {
+          response = this.insertInstance(zone, getRequestBody(exchange));
+        } else if (name == null && method.equals("GET")) {
+          response = this.listInstances(zone, params);
+        } else if (action == null && method.equals("GET")) {
+          response = this.getInstance(zone, name).toInstance();
+        } else if (action == null && method.equals("DELETE")) {
+          response = this.deleteInstance(zone, name);
+        } else if (method.equals("POST") && (action.equals("start") || action.equals("stop"))) {
+          response = this.startOrStopInstance(zone, name, action);
+        } else if (method.equals("GET") && action.equals("serialPort")) {
+          response = this.getInstance(zone, name).getSerialPortOutput(params.get("start"));
+        } else {
+          sendError(exchange, 404, "notFound", "unsupported method: " + method + " " + path);
+          return;
+        }
+      }
+      send(exchange, 200, response);
+    } catch (EmulatorException e) {
+      sendError(exchange, e.code, e.reason, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError(exchange, 503, "backendError", "emulator shutting down");
+    } catch (RuntimeException e) {
+      sendError(exchange, 500, "backendError", e.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Operation insertInstance(String zone, InputStream body) throws IOException {
+    Instance instance = JSON_FACTORY.fromInputStream(body, Charsets.UTF_8, Instance.class);
+    String key = getInstanceKey(zone, instance.getName());
+    if (this.findInstance(zone, instance.getName()) != null) {
+      throw new EmulatorException(409, "alreadyExists", String.format(
+          "The resource 'zones/%s/instances/%s' already exists", zone, instance.getName()));
+    }
+    EmulatedInstance emulated = new EmulatedInstance(
+        instance.setId(BigInteger.valueOf(this.nextId.getAndIncrement())), zone);
+    emulated.transitionTo("PROVISIONING");
+    this.instancesByZoneAndName.put(key, emulated);
+    return this.makeOperation("insert", emulated, "RUNNING");
+  }
+
+  private InstanceList listInstances(String zone, Map<String, String> params) {
+    Pattern namePattern = null;
+    if (params.containsKey("filter")) {
+      Matcher matcher = NAME_FILTER_PATTERN.matcher(params.get("filter"));
+      if (!matcher.matches()) {
+        throw new EmulatorException(400, "invalid", "unsupported filter: " + params.get("filter"));
+      }
+      namePattern = Pattern.compile(matcher.group(1));
+    }
+
+    List<Instance> matching = Lists.newArrayList();
+    for (EmulatedInstance emulated : this.instancesByZoneAndName.values()) {
+      if (emulated.deleting && emulated.getStatus().equals("TERMINATED")) {
+        continue;
+      }
+      if (emulated.zone.equals(zone)
+          && (namePattern == null || namePattern.matcher(emulated.instance.getName()).matches())) {
+        matching.add(emulated.toInstance());
+      }
+    }
+
+    // page tokens are just offsets into the (name-sorted) results
+    Collections.sort(matching, new Comparator<Instance>() {
+      @Override
+      public int compare(Instance i1, Instance i2) {
+        return i1.getName().compareTo(i2.getName());
+      }
+    });
+    int pageSize = params.containsKey("maxResults")
+        ? Integer.parseInt(params.get("maxResults")) : DEFAULT_PAGE_SIZE;
+    int offset = params.containsKey("pageToken") ? Integer.parseInt(params.get("pageToken")) : 0;
+    int end = Math.min(matching.size(), offset + pageSize);
+    InstanceList list = new InstanceList()
+        .setKind("compute#instanceList")
+        .setItems(matching.subList(Math.min(offset, end), end));
+    if (end < matching.size()) {
+      list.setNextPageToken(String.valueOf(end));
+    }
+    return list;
+  }
+
+  private Operation deleteInstance(String zone, String name) {
+    EmulatedInstance emulated = this.getInstance(zone, name);
+    emulated.deleting = true;
+    emulated.transitionTo("STOPPING");
+    return this.makeOperation("delete", emulated, null);
+  }
+
+  private Operation startOrStopInstance(String zone, String name, String action) {
+    EmulatedInstance emulated = this.getInstance(zone, name);
+    if (action.equals("start")) {
+      if (emulated.getStatus().equals("TERMINATED")) {
+        emulated.transitionTo("PROVISIONING");
+      }
+      return this.makeOperation(action, emulated, "RUNNING");
+    }
+    if (!emulated.getStatus().equals("TERMINATED")) {
+      emulated.transitionTo("STOPPING");
+    }
+    return this.makeOperation(action, emulated, "TERMINATED");
+  }
+
+  private Operation getOperation(String name) {
+    EmulatedOperation operation = this.operationsByName.get(name);
+    if (operation == null) {
+      throw new EmulatorException(404, "notFound", "no such operation: " + name);
+    }
+    return operation.toOperation();
+  }
+
+  // the emulator never preempts instances, so these are only ever inserts,
+  // deletes, starts and stops; all in one page
+  private OperationList listOperations(String zone, Map<String, String> params) {
+    Pattern targetLinkPattern = null;
+    if (params.containsKey("filter")) {
+      Matcher matcher = TARGET_LINK_FILTER_PATTERN.matcher(params.get("filter"));
+      if (!matcher.matches()) {
+        throw new EmulatorException(400, "invalid", "unsupported filter: " + params.get("filter"));
+      }
+      targetLinkPattern = Pattern.compile(matcher.group(1));
+    }
+
+    List<Operation> matching = Lists.newArrayList();
+    for (EmulatedOperation emulated : this.operationsByName.values()) {
+      Operation operation = emulated.toOperation();
+      if (emulated.target.zone.equals(zone) && (targetLinkPattern == null
+          || targetLinkPattern.matcher(operation.getTargetLink()).matches())) {
+        matching.add(operation);
+      }
+    }
+    return new OperationList().setKind("compute#operationList").setItems(matching);
+  }
+
+  private EmulatedInstance getInstance(String zone, String name) {
+    EmulatedInstance emulated = this.findInstance(zone, name);
+    if (emulated == null) {
+      throw new EmulatorException(404, "notFound", String.format(
+          "The resource 'zones/%s/instances/%s' was not found", zone, name));
+    }
+    return emulated;
+  }
+
+  // instances being deleted disappear once they've stopped
+  private EmulatedInstance findInstance(String zone, String name) {
+    String key = getInstanceKey(zone, name);
+    EmulatedInstance emulated = this.instancesByZoneAndName.get(key);
+    if (emulated != null && emulated.deleting && emulated.getStatus().equals("TERMINATED")) {
+      this.instancesByZoneAndName.remove(key);
+      return null;
+    }
+    return emulated;
+  }
+
+  private Operation makeOperation(String operationType, EmulatedInstance target,
+      String targetStatus) {
+    String name = "operation-" + this.nextId.getAndIncrement();
+    EmulatedOperation operation = new EmulatedOperation(name, operationType, target, targetStatus);
+    this.operationsByName.put(name, operation);
+    return operation.toOperation();
+  }
+
+  private static String getInstanceKey(String zone, String name) {
+    return zone + "/" + name;
+  }
+
+  // the client gzips request bodies (see AbstractGoogleClientRequest)
+  private static InputStream getRequestBody(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    return "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+        ? new GZIPInputStream(body) : body;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+    Map<String, String> params = Maps.newHashMap();
+    if (rawQuery == null) {
+      return params;
+    }
+    for (String param : Splitter.on('&').omitEmptyStrings().split(rawQuery)) {
+      List<String> keyAndValue = Splitter.on('=').limit(2).splitToList(param);
+      params.put(URLDecoder.decode(keyAndValue.get(0), "UTF-8"),
+          keyAndValue.size() < 2 ? "" : URLDecoder.decode(keyAndValue.get(1), "UTF-8"));
+    }
+    return params;
+  }
+
+  private static void send(HttpExchange exchange, int code, GenericJson json) throws IOException {
+    byte[] body = JSON_FACTORY.toByteArray(json);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(code, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  // in the shape GoogleJsonResponseException parses
+  private static void sendError(HttpExchange exchange, int code, String reason, String message)
+      throws IOException {
+    GenericJson error = new GenericJson();
+    error.set("error", ImmutableMap.of(
+        "code", code,
+        "message", message,
+        "errors", ImmutableList.of(
+            ImmutableMap.of("domain", "global", "reason", reason, "message", message))));
+    send(exchange, code, error);
+  }
+
+  // an instance whose status advances with time, per the latency profile
+  private final class EmulatedInstance {
+    final Instance instance;
+    final String zone;
+    boolean deleting;
+    private String status;
+    private long statusSinceMillis;
+    // for the serial console, which "logs" a line every so often once booted
+    private long bootedAtMillis = -1;
+
+    EmulatedInstance(Instance instance, String zone) {
+      this.instance = instance;
+      this.zone = zone;
+    }
+
+    void transitionTo(String newStatus) {
+      this.status = newStatus;
+      this.statusSinceMillis = System.currentTimeMillis();
+      if (newStatus.equals("PROVISIONING")) {
+        this.bootedAtMillis = -1;
+      }
+    }
+
+    String getStatus() {
+      LatencyProfile profile = ComputeEmulator.this.latencyProfile;
+      boolean advanced = true;
+      while (advanced) {
+        long elapsedMillis = System.currentTimeMillis() - this.statusSinceMillis;
+        advanced = false;
+        if (this.status.equals("PROVISIONING") && elapsedMillis >= profile.provisioningMillis) {
+          this.advance("STAGING", profile.provisioningMillis);
+          advanced = true;
+        } else if (this.status.equals("STAGING") && elapsedMillis >= profile.stagingMillis) {
+          this.advance("RUNNING", profile.stagingMillis);
+          this.bootedAtMillis = this.statusSinceMillis;
+          advanced = true;
+        } else if (this.status.equals("STOPPING") && elapsedMillis >= profile.stoppingMillis) {
+          this.advance("TERMINATED", profile.stoppingMillis);
+          advanced = true;
+        }
+      }
+      return this.status;
+    }
+
+    private void advance(String newStatus, long afterMillis) {
+      this.status = newStatus;
+      this.statusSinceMillis += afterMillis;
+    }
+
+    Instance toInstance() {
+      return this.instance.clone().setStatus(this.getStatus());
+    }
+
+    GenericJson getSerialPortOutput(String startParam) {
+      this.getStatus();
+      StringBuilder log = new StringBuilder();
+      if (this.bootedAtMillis >= 0) {
+        long lines = Math.min(1000, (System.currentTimeMillis() - this.bootedAtMillis) / 100 + 1);
+        for (int i = 0; i < lines; i++) {
+          log.append(String.format("[%8.3f] %s: boot message %d%n", i / 10.0,
+              this.instance.getName(), i));
+        }
+      }
+      byte[] bytes = log.toString().getBytes(Charsets.UTF_8);
+      int start = startParam == null ? 0 : (int) Math.min(bytes.length, Long.parseLong(startParam));
+      GenericJson output = new GenericJson();
+      output.set("kind", "compute#serialPortOutput");
+      output.set("contents", new String(bytes, start, bytes.length - start, Charsets.UTF_8));
+      output.set("start", String.valueOf(start));
+      output.set("next", String.valueOf(bytes.length));
+      return output;
+    }
+  }
+
+  // an operation which is DONE once its instance reaches the target status
+  // (or, for deletes, is gone)
+  private final class EmulatedOperation {
+    final String name;
+    final String operationType;
+    final EmulatedInstance target;
+    final String targetStatus;
+    final String insertTime = DateTime.now().toString();
+
+    EmulatedOperation(String name, String operationType, EmulatedInstance target,
+        String targetStatus) {
+      this.name = name;
+      this.operationType = operationType;
+      this.target = target;
+      this.targetStatus = targetStatus;
+    }
+
+    Operation toOperation() {
+      String status = this.target.getStatus();
+      boolean done = this.targetStatus == null
+          ? status.equals("TERMINATED") : status.equals(this.targetStatus);
+      return new Operation()
+          .setKind("compute#operation")
+          .setName(this.name)
+          .setZone(this.target.zone)
+          .setOperationType(this.operationType)
+          .setTargetLink(String.format("%s%s/zones/%s/instances/%s",
+              Compute.DEFAULT_BASE_URL, Constants.PROJECT_ID, this.target.zone,
+              this.target.instance.getName()))
+          .setInsertTime(this.insertTime)
+          .setStatus(done ? "DONE" : "RUNNING")
+          .setProgress(done ? 100 : 0);
+    }
+  }
+
+  private static final class EmulatorException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+    final String reason;
+
+    EmulatorException(int code, String reason, String message) {
+      super(message);
+      this.code = code;
+      this.reason = reason;
+    }
+  }
+
+  // for trying it out by hand, or pointing a dev server at it
+  public static void main(String... args) throws Exception {
+    LatencyProfile profile = args.length > 0
+        ? LatencyProfile.valueOf(args[0]) : LatencyProfile.REALISTIC;
+    checkArgument(args.length <= 1, "usage: ComputeEmulator [latency profile]");
+    ComputeEmulator emulator = new ComputeEmulator(profile).start();
+    System.out.format("Compute emulator (%s) listening at %s; run the dev server with -D%s=%s%n",
+        profile, emulator.getRootUrl(), ComputeService.ROOT_URL_PROPERTY, emulator.getRootUrl());
+  }
+}
@@ -0,0 +1,37 @@
+package com.google.solutions.cloud.compute;
+
+import com.google.api.services.compute.model.Instance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the instance template for a new demo; done once per demo created
+ * (so many times over for a workshop).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ComputeInstanceHelperBenchmark {
+  @Benchmark
+  public Instance makeDefaultInstance() {
+    return ComputeInstanceHelper.makeDefaultInstance("bench-1");
+  }
+
+  @Benchmark
+  public Instance makePreemptibleDefaultInstance() {
+    return ComputeInstanceHelper.makeDefaultInstance("bench-1", SchedulingProfile.PREEMPTIBLE);
+  }
+}
@@ -0,0 +1,69 @@
+package com.google.solutions.cloud.compute;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.common.base.Optional;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side cost of the Compute calls made while serving API requests
+ * (request building, HTTP transport, JSON parsing), against a
+ * {@link ComputeEmulator} which answers instantly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ComputeServiceBenchmark {
+  // instances in the zone, all matched by the list filter
+  @Param({"1", "25", "500"})
+  private int numInstances;
+
+  private ComputeEmulator emulator;
+  private ComputeService computeService;
+  private Instance instance;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.emulator = new ComputeEmulator(ComputeEmulator.LatencyProfile.INSTANT).start();
+    this.computeService = ComputeService.forRootUrl(this.emulator.getRootUrl());
+    for (int i = 0; i < this.numInstances; i++) {
+      this.computeService.createInstance(
+          ComputeInstanceHelper.makeDefaultInstance(String.format("bench-%04d", i)));
+    }
+    this.instance = ComputeInstanceHelper.makeDefaultInstance("bench-0000");
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.emulator.stop();
+  }
+
+  @Benchmark
+  public Optional<Instance> getInstanceInformation() {
+    return this.computeService.getInstanceInformation(this.instance);
+  }
+
+  @Benchmark
+  public List<Instance> listInstances() throws IOException {
+    return this.computeService.listInstances(ComputeInstanceHelper.getZoneName(this.instance),
+        "name eq 'bench-.*'");
+  }
+}
@@ -0,0 +1,147 @@
+package com.google.solutions.cloud.compute;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-memory stand-in for {@link ComputeService}, for load tests. Every call
+ * takes latencyMillis (+/- 50%), and fails with probability errorRate, the
+ * way a call to the Compute API might. Instances become RUNNING as soon as
+ * they're created or started.
+ */
+public class FakeComputeService extends ComputeService {
+  private final long latencyMillis;
+  private final double errorRate;
+  // by zone + "/" + instance name
+  private final ConcurrentMap<String, Instance> instances = new ConcurrentHashMap<>();
+
+  public FakeComputeService(long latencyMillis, double errorRate) {
+    // the client is never used, since every call is overridden
+    super(new Compute(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null));
+    checkArgument(latencyMillis >= 0, "latencyMillis must not be negative");
+    checkArgument(errorRate >= 0 && errorRate <= 1, "errorRate must be between 0 and 1");
+    this.latencyMillis = latencyMillis;
+    this.errorRate = errorRate;
+  }
+
+  @Override
+  public void createInstance(Instance instance) throws IOException {
+    checkNotNull(instance);
+    this.simulateCall("insert");
+    Instance created = instance.clone().setStatus("RUNNING");
+    if (this.instances.putIfAbsent(getInstanceKey(instance), created) != null) {
+      throw new IOException("instance already exists: " + instance.getName());
+    }
+  }
+
+  @Override
+  public void deleteInstance(Instance instance) throws IOException {
+    checkNotNull(instance);
+    this.simulateCall("delete");
+    this.instances.remove(getInstanceKey(instance));
+  }
+
+  @Override
+  public void stopInstance(Instance instance) throws IOException {
+    this.setStatus(instance, "stop", "TERMINATED");
+  }
+
+  @Override
+  public void startInstance(Instance instance) throws IOException {
+    this.setStatus(instance, "start", "RUNNING");
+  }
+
+  @Override
+  public List<Instance> listInstances(String zone, String filter) throws IOException {
+    this.simulateCall("list");
+    // the filter is always a name prefix match; every instance in the zone
+    // is a superset of that, which callers have to cope with anyway
+    List<Instance> zoneInstances = Lists.newArrayList();
+    for (Instance instance : this.instances.values()) {
+      if (zone.equals(ComputeInstanceHelper.getZoneName(instance))) {
+        zoneInstances.add(instance.clone());
+      }
+    }
+    return zoneInstances;
+  }
+
+  // instances are never preempted (or stopped other than through this)
+  @Override
+  public List<Operation> listInstanceOperations(Instance instance) throws IOException {
+    checkNotNull(instance);
+    this.simulateCall("listOperations");
+    return Lists.newArrayList();
+  }
+
+  @Override
+  public Optional<Instance> getInstanceInformation(Instance instanceTemplate) {
+    checkNotNull(instanceTemplate);
+    try {
+      this.simulateCall("get");
+    } catch (IOException e) {
+      // like the real thing, which turns every failure into absent
+      return Optional.absent();
+    }
+    Instance instance = this.instances.get(getInstanceKey(instanceTemplate));
+    return instance == null ? Optional.<Instance>absent() : Optional.of(instance.clone());
+  }
+
+  @Override
+  public Optional<SerialConsoleOutput> getSerialPortOutput(Instance instance, long start)
+      throws IOException {
+    checkNotNull(instance);
+    this.simulateCall("getSerialPortOutput");
+    if (!this.instances.containsKey(getInstanceKey(instance))) {
+      return Optional.absent();
+    }
+    return Optional.of(new SerialConsoleOutput().setContents("").setStart(start).setNext(start));
+  }
+
+  public int getInstanceCount() {
+    return this.instances.size();
+  }
+
+  private void setStatus(Instance instance, String action, String newStatus) throws IOException {
+    checkNotNull(instance);
+    this.simulateCall(action);
+    Instance current = this.instances.get(getInstanceKey(instance));
+    if (current == null) {
+      throw new IOException("no such instance: " + instance.getName());
+    }
+    this.instances.put(getInstanceKey(instance), current.clone().setStatus(newStatus));
+  }
+
+  private void simulateCall(String method) throws IOException {
+    Random random = ThreadLocalRandom.current();
+    if (this.latencyMillis > 0) {
+      try {
+        Thread.sleep(this.latencyMillis / 2 + (long) (random.nextDouble() * this.latencyMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted during " + method);
+      }
+    }
+    if (random.nextDouble() < this.errorRate) {
+      throw new IOException("injected failure of " + method);
+    }
+  }
+
+  private static String getInstanceKey(Instance instance) {
+    return ComputeInstanceHelper.getZoneName(instance) + "/" + instance.getName();
+  }
+}
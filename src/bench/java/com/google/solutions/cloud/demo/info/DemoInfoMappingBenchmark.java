@@ -0,0 +1,59 @@
+package com.google.solutions.cloud.demo.info;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.solutions.cloud.AppEngineBenchmark;
+import com.google.solutions.cloud.user.info.UserInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of {@link DemoInfo} records to and from Datastore entities, which
+ * happens for every demo read or written by the API. Updates only map the
+ * demo record itself; full reads also map the deployment template record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DemoInfoMappingBenchmark extends AppEngineBenchmark {
+  private Key parentKey;
+  private DemoInfo demoInfo;
+  private Entity entity;
+  private Entity templateEntity;
+
+  @Setup
+  public void setUp() {
+    this.parentKey = KeyFactory.createKey(UserInfo.USER_KIND, "benchmark-user");
+    this.demoInfo = makeDemoInfo(42L, new Date());
+    this.entity = this.demoInfo.toDatastoreEntity(this.parentKey);
+    this.templateEntity = this.demoInfo.toTemplateDatastoreEntity(this.entity.getKey());
+  }
+
+  @Benchmark
+  public Entity toDatastoreEntity() {
+    return this.demoInfo.toDatastoreEntity(this.parentKey);
+  }
+
+  @Benchmark
+  public DemoInfo fromDatastoreEntity() {
+    return DemoInfo.fromDatastoreEntity(this.entity);
+  }
+
+  @Benchmark
+  public DemoInfo fromDatastoreEntities() {
+    return DemoInfo.fromDatastoreEntities(this.entity, this.templateEntity);
+  }
+}
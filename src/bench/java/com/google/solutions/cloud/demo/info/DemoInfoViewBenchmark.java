@@ -0,0 +1,101 @@
+package com.google.solutions.cloud.demo.info;
+
+import com.google.api.server.spi.config.ApiSerializationConfig;
+import com.google.api.server.spi.response.ServletResponseResultWriter;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.solutions.cloud.AppEngineBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A listActiveDemos response for a workshop-sized list of demos, in each
+ * {@link DemoInfoView}: trimming the records to the view, then writing them
+ * out the way Cloud Endpoints writes API responses (into a response which
+ * discards the body). The payload size of each view is printed when the
+ * benchmark is set up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DemoInfoViewBenchmark extends AppEngineBenchmark {
+  private static final int NUM_DEMOS = 100;
+
+  @Param({"SUMMARY", "STANDARD", "FULL"})
+  private DemoInfoView view;
+
+  private List<DemoInfo> demoInfos;
+  private DiscardingResponse response;
+
+  @Setup
+  public void setUp() throws IOException {
+    long now = System.currentTimeMillis();
+    this.demoInfos = Lists.newArrayListWithCapacity(NUM_DEMOS);
+    for (int i = 0; i < NUM_DEMOS; i++) {
+      this.demoInfos.add(makeDemoInfo(i + 1, new Date(now - i * 1000L)));
+    }
+    this.response = new DiscardingResponse();
+    System.out.format("%n%s view of %d demos: %d bytes%n", this.view, NUM_DEMOS,
+        this.listActiveDemos());
+  }
+
+  // returns the payload size, so that the work can't be optimized away
+  @Benchmark
+  public int listActiveDemos() throws IOException {
+    List<DemoInfo> items = Lists.newArrayListWithCapacity(this.demoInfos.size());
+    for (DemoInfo demoInfo : this.demoInfos) {
+      items.add(demoInfo.toView(this.view));
+    }
+    new ServletResponseResultWriter(this.response.proxy, new ApiSerializationConfig())
+        .write(new DemoInfoCollection().setVersion(1L).setItems(items));
+    return this.response.contentLength;
+  }
+
+  // just enough of a servlet response for the Endpoints result writer: the
+  // body is thrown away, and only its length is kept
+  private static class DiscardingResponse implements InvocationHandler {
+    private final PrintWriter writer = new PrintWriter(CharStreams.nullWriter());
+    private final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        this);
+    private int contentLength;
+
+    /* (non-Javadoc)
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getWriter":
+          return this.writer;
+        case "setContentLength":
+          this.contentLength = (Integer) args[0];
+          return null;
+        default:
+          // status and headers
+          return null;
+      }
+    }
+  }
+}
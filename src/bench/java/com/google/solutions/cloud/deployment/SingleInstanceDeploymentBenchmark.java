@@ -0,0 +1,45 @@
+package com.google.solutions.cloud.deployment;
+
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.solutions.cloud.AppEngineBenchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON (de)serialization of the instance template embedded in every demo
+ * record; the most expensive part of mapping a demo record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SingleInstanceDeploymentBenchmark extends AppEngineBenchmark {
+  private SingleInstanceDeployment deployment;
+  private EmbeddedEntity embeddedEntity;
+
+  @Setup
+  public void setUp() {
+    this.deployment = SingleInstanceDeployment.makeDefaultTemplate("bench-1");
+    this.embeddedEntity = this.deployment.toEmbeddedEntity();
+  }
+
+  @Benchmark
+  public EmbeddedEntity toEmbeddedEntity() {
+    return this.deployment.toEmbeddedEntity();
+  }
+
+  @Benchmark
+  public SingleInstanceDeployment fromEmbeddedEntity() {
+    return SingleInstanceDeployment.fromEmbeddedEntity(this.embeddedEntity);
+  }
+}
@@ -0,0 +1,57 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Lists;
+import com.google.solutions.cloud.AppEngineBenchmark;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The creation time sort applied to findAllActiveDemosForUser results, for a
+ * user's own demos (a few) up to a workshop's worth (hundreds).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DemoInfoSortBenchmark extends AppEngineBenchmark {
+  @Param({"10", "100", "500"})
+  private int numDemos;
+
+  private List<DemoInfo> demoInfos;
+
+  @Setup
+  public void setUp() {
+    // fixed seed, so that every run sorts the same input
+    Random random = new Random(this.numDemos);
+    long now = System.currentTimeMillis();
+    this.demoInfos = Lists.newArrayListWithCapacity(this.numDemos);
+    for (int i = 0; i < this.numDemos; i++) {
+      this.demoInfos.add(makeDemoInfo(i + 1, new Date(now - random.nextInt(1000000))));
+    }
+    // query results come back in key order, not creation time order
+    Collections.shuffle(this.demoInfos, random);
+  }
+
+  @Benchmark
+  public List<DemoInfo> sortByCreationTimeDesc() {
+    return FluentIterable.from(this.demoInfos)
+        .toSortedList(DatastoreDemoInfoPersistence.CREATION_TIME_DESC_COMPARATOR);
+  }
+}
@@ -13,12 +13,19 @@ public class Constants {
   public static final String WEB_CLIENT_ID = "336574263319-kdhnirrpvl97cqolv0ae1kjo0k49b4jh.apps.googleusercontent.com";
   public static final String EMAIL_SCOPE = "https://www.googleapis.com/auth/userinfo.email";
 
+  // users allowed to call admin-only API methods (e.g. saveDeploymentProfile)
+  public static final List<String> ADMIN_EMAILS = Arrays.asList(
+      // "admin@example.com"
+  );
+
   // TODO: is it reasonable to have users edit the properties below directly?
   //       or does it need to be "injected" through some "config"?
   public static final String PROJECT_ID = "cloud-app-demo-tool";
   public static final String SERVICE_ACCOUNT_ID = "336574263319-pupsf8skqfo271iot1ivfm3379pf9vo2@developer.gserviceaccount.com";
   public static final String DEV_SERVER_KEY_LOCATION = "dev-key.p12";
 
+  // the settings below make up the built-in "default" deployment profile, which
+  // is used until a profile with that name is saved (see DeploymentProfile)
   public static final String MACHINE_TYPE = "n1-standard-2";
   public static final String DEFAULT_ZONE = "us-central1-a";
   public static final String IMAGE_PROJECT_URL = "ubuntu-os-cloud";
@@ -36,4 +43,56 @@ public class Constants {
   public static final Map<String, String> CUSTOM_METADATA = ImmutableMap.of(
       // "your-key", "your-value"
   );
+
+  // launched demos whose instances report no activity for this long are stopped,
+  // and restarted the next time the demo is accessed; instances which don't
+  // report activity at all are left alone
+  public static final int IDLE_STOP_WINDOW_MINUTES = 60;
+  // instance metadata key under which a guest agent may publish the time of the
+  // most recent user activity on the instance, as an ISO-8601 timestamp
+  public static final String LAST_ACTIVITY_METADATA_KEY = "demo-last-activity";
+
+  // a launched demo is READY once a GET of this path, on this port of its
+  // instance, succeeds; probes start at launch and back off (see queue.xml)
+  public static final int READINESS_PROBE_PORT = 80;
+  public static final String READINESS_PROBE_PATH = "/";
+  public static final int READINESS_PROBE_DEADLINE_SECONDS = 5;
+  // demos which aren't ready this long after launch are left as they are
+  public static final int READINESS_PROBE_TIMEOUT_MINUTES = 20;
+
+  // upper bound on the number of demos created by a single createWorkshop call
+  public static final int MAX_WORKSHOP_ATTENDEES = 500;
+
+  // scheduled launches are spread out over this many seconds before the
+  // requested launch time (and teardowns over as many seconds after)
+  public static final int SCHEDULED_LAUNCH_STAGGER_WINDOW_SECONDS = 120;
+  // task queue ETAs can be at most MAX_TASK_ETA_DAYS out, and a scheduled
+  // teardown comes up to a day (plus the stagger window) after its launch
+  public static final int MAX_TASK_ETA_DAYS = 30;
+  public static final int MAX_SCHEDULE_AHEAD_DAYS = 28;
+  public static final int MAX_SCHEDULED_DURATION_MINUTES = 24 * 60;
+
+  // admission control for API calls which create or launch demos: each user
+  // gets this many such calls per window...
+  public static final int MAX_DEMO_REQUESTS_PER_WINDOW = 10;
+  public static final int DEMO_REQUEST_WINDOW_SECONDS = 60;
+  // ...and can have at most this many active demos of their own (workshop
+  // demos count towards this, but workshops aren't limited by it)
+  public static final int MAX_ACTIVE_DEMOS_PER_USER = 25;
+
+  // fraction of request traces which are logged; traces of requests which
+  // take at least the threshold are logged regardless
+  public static final double TRACE_SAMPLE_RATE = 0.01;
+  public static final long SLOW_TRACE_THRESHOLD_MILLIS = 2000;
+
+  // results of API calls made with an idempotency key are returned to
+  // retries of the call for this long
+  public static final int IDEMPOTENCY_KEY_TTL_HOURS = 24;
+  // a claimed key whose call hasn't finished after this long is assumed to
+  // be abandoned (API requests can't run for longer than a minute)
+  public static final int IDEMPOTENCY_CLAIM_TIMEOUT_SECONDS = 60;
+
+  // demos which were torn down at least this long ago are moved out of
+  // Datastore into archive files (see DemoArchiver)
+  public static final int DEMO_ARCHIVE_AGE_DAYS = 90;
 }
@@ -0,0 +1,120 @@
+package com.google.solutions.cloud.app;
+
+import com.google.solutions.cloud.app.api.CloudAppDemoToolAPI;
+import com.google.solutions.cloud.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Times each call of a {@link CloudAppDemoToolAPI} method as api.<method>,
+ * counting the ones that fail (with an error status) as api.<method>.errors.
+ * Mapped to the Endpoints backend path (/_ah/spi/*), where each API method
+ * is served from /_ah/spi/<API class name>.<method>.
+ *
+ * <p>The first API call served by an instance is also timed as
+ * api.firstResponse.warm or api.firstResponse.cold, depending on whether the
+ * instance got a warmup request (see {@link WarmupServlet}) before it, and
+ * logged: that's the time to first response the warmup is meant to cut.
+ */
+public class MetricsFilter implements Filter {
+  private static final Logger LOGGER = Logger.getLogger(MetricsFilter.class.toString());
+  private static final String API_METHOD_PATH_PREFIX =
+      "/_ah/spi/" + CloudAppDemoToolAPI.class.getName() + ".";
+
+  private static final AtomicBoolean FIRST_RESPONSE_SERVED = new AtomicBoolean();
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+   */
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)
+   */
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+      throws IOException, ServletException {
+    String path = ((HttpServletRequest) req).getRequestURI();
+    if (!path.startsWith(API_METHOD_PATH_PREFIX)) {
+      // e.g. the Endpoints framework's own config calls
+      chain.doFilter(req, resp);
+      return;
+    }
+
+    StatusRecordingResponse statusRecordingResp =
+        new StatusRecordingResponse((HttpServletResponse) resp);
+    String method = path.substring(API_METHOD_PATH_PREFIX.length());
+    long startNanos = System.nanoTime();
+    Metrics.Timer timer = Metrics.startTimer("api." + method);
+    try {
+      chain.doFilter(req, statusRecordingResp);
+    } catch (IOException | ServletException | RuntimeException e) {
+      timer.markError();
+      throw e;
+    } finally {
+      if (statusRecordingResp.status >= HttpServletResponse.SC_BAD_REQUEST) {
+        timer.markError();
+      }
+      timer.stop();
+      if (FIRST_RESPONSE_SERVED.compareAndSet(false, true)) {
+        recordFirstResponse(method, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#destroy()
+   */
+  @Override
+  public void destroy() {}
+
+  private static void recordFirstResponse(String method, long latencyNanos) {
+    boolean warmedUp = WarmupServlet.isWarmedUp();
+    Metrics.recordLatency(warmedUp ? "api.firstResponse.warm" : "api.firstResponse.cold",
+        latencyNanos, TimeUnit.NANOSECONDS);
+    LOGGER.info(String.format("first API call on this instance (%s, %s) took %d ms",
+        method, warmedUp ? "warmed up" : "not warmed up",
+        TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+  }
+
+  // servlet 2.5 responses don't expose their status, so it's captured here
+  private static final class StatusRecordingResponse extends HttpServletResponseWrapper {
+    private int status = HttpServletResponse.SC_OK;
+
+    StatusRecordingResponse(HttpServletResponse resp) {
+      super(resp);
+    }
+
+    @Override
+    public void setStatus(int status) {
+      this.status = status;
+      super.setStatus(status);
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+      this.status = status;
+      super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+      this.status = status;
+      super.sendError(status, message);
+    }
+  }
+}
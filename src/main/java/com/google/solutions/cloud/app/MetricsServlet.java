@@ -0,0 +1,131 @@
+package com.google.solutions.cloud.app;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.metrics.LatencyHistogram;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.persistence.EntityGroupContention;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin-only snapshot of this instance's {@link Metrics}: latency
+ * percentiles of every timer, and the value of every counter. Served as JSON
+ * by default, or in the Prometheus text exposition format when called with
+ * format=prometheus (so that a scraper can be pointed at it directly). The
+ * JSON also lists the most contended entity groups of the last few minutes
+ * (see {@link EntityGroupContention}), which would make for too many
+ * distinct series in Prometheus.
+ */
+public class MetricsServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  public static final String FORMAT_PARAM = "format";
+  public static final String PROMETHEUS_FORMAT = "prometheus";
+
+  private static final String LATENCY_METRIC = "demo_tool_latency_seconds";
+  private static final String EVENTS_METRIC = "demo_tool_events_total";
+  private static final double[] PERCENTILES = {50, 90, 95, 99, 99.9};
+  private static final int HOTTEST_ENTITY_GROUPS = 20;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Map<String, LatencyHistogram> timers = Metrics.getTimers();
+    Map<String, Long> counters = Metrics.getCounters();
+
+    resp.setCharacterEncoding(Charsets.UTF_8.name());
+    resp.setHeader("Cache-Control", "no-cache");
+    if (PROMETHEUS_FORMAT.equals(req.getParameter(FORMAT_PARAM))) {
+      resp.setContentType("text/plain; version=0.0.4");
+      writePrometheusText(timers, counters, resp.getWriter());
+    } else {
+      resp.setContentType("application/json");
+      resp.getWriter().write(JacksonFactory.getDefaultInstance().toPrettyString(
+          ImmutableMap.<String, Object>of("timers", toJsonTimers(timers), "counters", counters,
+              "hottestEntityGroups", toJsonEntityGroups(
+                  EntityGroupContention.getHottestGroups(HOTTEST_ENTITY_GROUPS)))));
+    }
+  }
+
+  private static Map<String, Object> toJsonTimers(Map<String, LatencyHistogram> timers) {
+    Map<String, Object> jsonTimers = Maps.newLinkedHashMap();
+    for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      long count = histogram.getCount();
+      Map<String, Object> jsonTimer = Maps.newLinkedHashMap();
+      jsonTimer.put("count", count);
+      jsonTimer.put("meanMicros", count == 0 ? 0 : histogram.getTotalMicros() / count);
+      for (double percentile : PERCENTILES) {
+        jsonTimer.put("p" + formatPercentile(percentile) + "Micros",
+            histogram.getValueAtPercentile(percentile));
+      }
+      jsonTimer.put("maxMicros", histogram.getMaxMicros());
+      jsonTimers.put(entry.getKey(), jsonTimer);
+    }
+    return jsonTimers;
+  }
+
+  private static List<Object> toJsonEntityGroups(List<EntityGroupContention.GroupStats> groups) {
+    List<Object> jsonGroups = Lists.newArrayListWithCapacity(groups.size());
+    for (EntityGroupContention.GroupStats group : groups) {
+      Map<String, Object> jsonGroup = Maps.newLinkedHashMap();
+      jsonGroup.put("entityGroup", group.getEntityGroup());
+      jsonGroup.put("transactions", group.getTransactions());
+      jsonGroup.put("retries", group.getRetries());
+      jsonGroup.put("abandoned", group.getAbandoned());
+      jsonGroup.put("retriesByOperation", group.getRetriesByOperation());
+      jsonGroups.add(jsonGroup);
+    }
+    return jsonGroups;
+  }
+
+  private static void writePrometheusText(Map<String, LatencyHistogram> timers,
+      Map<String, Long> counters, PrintWriter writer) {
+    writer.println("# HELP " + LATENCY_METRIC + " Latency of timed calls, by name.");
+    writer.println("# TYPE " + LATENCY_METRIC + " summary");
+    for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+      String name = escapeLabelValue(entry.getKey());
+      LatencyHistogram histogram = entry.getValue();
+      for (double percentile : PERCENTILES) {
+        writer.println(String.format("%s{name=\"%s\",quantile=\"%s\"} %s", LATENCY_METRIC, name,
+            percentile / 100, microsToSeconds(histogram.getValueAtPercentile(percentile))));
+      }
+      writer.println(String.format("%s_sum{name=\"%s\"} %s", LATENCY_METRIC, name,
+          microsToSeconds(histogram.getTotalMicros())));
+      writer.println(String.format("%s_count{name=\"%s\"} %d", LATENCY_METRIC, name,
+          histogram.getCount()));
+    }
+
+    writer.println("# HELP " + EVENTS_METRIC + " Counted events, by name.");
+    writer.println("# TYPE " + EVENTS_METRIC + " counter");
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      writer.println(String.format("%s{name=\"%s\"} %d", EVENTS_METRIC,
+          escapeLabelValue(entry.getKey()), entry.getValue()));
+    }
+  }
+
+  // e.g. 99.9 => "999", 50 => "50"
+  private static String formatPercentile(double percentile) {
+    return percentile == Math.rint(percentile)
+        ? Long.toString((long) percentile)
+        : Double.toString(percentile).replace(".", "");
+  }
+
+  private static String microsToSeconds(long micros) {
+    return Double.toString(micros / 1e6);
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,61 @@
+package com.google.solutions.cloud.app;
+
+import com.google.common.base.Strings;
+import com.google.solutions.cloud.metrics.Tracing;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Starts a {@link Tracing} trace for each request, named after its path, and
+ * ends (and maybe logs) it once the request has been handled. The trace ID
+ * is taken from the X-Cloud-Trace-Context header that App Engine adds to
+ * incoming requests, so that logged traces can be matched up with the
+ * request logs; requests asking to be traced (with the header's o=1 option)
+ * are always logged.
+ */
+public class TracingFilter implements Filter {
+  public static final String TRACE_CONTEXT_HEADER = "X-Cloud-Trace-Context";
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+   */
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)
+   */
+  @Override
+  public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpReq = (HttpServletRequest) req;
+    // <trace ID>/<span ID>;o=<options>
+    String traceContext = Strings.nullToEmpty(httpReq.getHeader(TRACE_CONTEXT_HEADER));
+    int traceIdEnd = traceContext.indexOf('/');
+    String traceId = traceIdEnd > 0
+        ? traceContext.substring(0, traceIdEnd) : Tracing.newTraceId();
+
+    Tracing.startTrace(httpReq.getRequestURI(), traceId, traceContext.endsWith(";o=1"));
+    try (Tracing.Span span = Tracing.startSpan("request")) {
+      span.set("method", httpReq.getMethod())
+          .set("requestBytes", httpReq.getContentLength() < 0 ? null : httpReq.getContentLength());
+      chain.doFilter(req, resp);
+    } finally {
+      Tracing.endTrace();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see javax.servlet.Filter#destroy()
+   */
+  @Override
+  public void destroy() {}
+}
@@ -0,0 +1,78 @@
+package com.google.solutions.cloud.app;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.common.base.Stopwatch;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.deployment.DeploymentTemplate;
+import com.google.solutions.cloud.deployment.SingleInstanceDeployment;
+import com.google.solutions.cloud.persistence.DatastoreDeploymentProfilePersistence;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handler for App Engine warmup requests (/_ah/warmup), which are sent to
+ * new instances before they're given any user traffic. Does the one-time
+ * initialization that would otherwise be paid for by the first request
+ * served by the instance, and logs how long each step took. Whether an
+ * instance was warmed up is recorded, so that {@link MetricsFilter} can
+ * tell the time to first response of warmed up and cold instances apart.
+ */
+public class WarmupServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(WarmupServlet.class.toString());
+
+  private static volatile boolean warmedUp = false;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Stopwatch total = Stopwatch.createStarted();
+
+    // Compute client construction, and credential loading/token fetch
+    Stopwatch step = Stopwatch.createStarted();
+    try {
+      ComputeService.warmUp();
+      logStep("compute client and credentials", step);
+    } catch (IOException | RuntimeException e) {
+      // not fatal: the first real request will just try again
+      LOGGER.warning("failed to warm up compute client: " + e);
+    }
+
+    // the default template, and a round trip through its Datastore form,
+    // which loads Jackson's type metadata for the whole Instance model
+    step = Stopwatch.createStarted();
+    DeploymentTemplate template = SingleInstanceDeployment.makeDefaultTemplate("warmup");
+    DeploymentTemplate.fromEmbeddedEntity(template.toEmbeddedEntity());
+    logStep("default template and Instance serialization", step);
+
+    // Datastore client, along with the deployment profile cache (which every
+    // demo creation reads from)
+    step = Stopwatch.createStarted();
+    try {
+      new DatastoreDeploymentProfilePersistence(DatastoreServiceFactory.getDatastoreService())
+          .list();
+      logStep("datastore client and deployment profiles", step);
+    } catch (RuntimeException e) {
+      LOGGER.warning("failed to warm up datastore: " + e);
+    }
+
+    LOGGER.info(String.format("warmup done in %d ms", total.elapsed(TimeUnit.MILLISECONDS)));
+    warmedUp = true;
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  // whether this instance has served a warmup request
+  static boolean isWarmedUp() {
+    return warmedUp;
+  }
+
+  private static void logStep(String description, Stopwatch step) {
+    LOGGER.info(String.format("warmup: %s took %d ms",
+        description, step.elapsed(TimeUnit.MILLISECONDS)));
+  }
+}
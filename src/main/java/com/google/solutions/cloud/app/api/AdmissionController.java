@@ -0,0 +1,152 @@
+package com.google.solutions.cloud.app.api;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+
+/**
+ * Per-user admission control for API calls which create or launch demos,
+ * so that a single misbehaving client can't contend its own entity group or
+ * use up everyone's Compute quota. Two limits are enforced, both with
+ * Memcache atomic counters so that they hold across instances:
+ *
+ * - a rate limit of {@link Constants#MAX_DEMO_REQUESTS_PER_WINDOW} calls per
+ *   {@link Constants#DEMO_REQUEST_WINDOW_SECONDS}-second window
+ * - a cap of {@link Constants#MAX_ACTIVE_DEMOS_PER_USER} active demos
+ *
+ * If Memcache is unavailable, calls are let through. If it loses a counter,
+ * the rate limit window starts over, and the active demo count is re-read
+ * from the user's stored usage counters.
+ */
+final class AdmissionController {
+  // the cached active demo count is only adjusted for changes made through
+  // the API; it's re-read this often to pick up everything else (such as
+  // scheduled teardowns)
+  static final int ACTIVE_COUNT_EXPIRATION_SECONDS = 300;
+
+  private static final String RATE_KEY_PREFIX = "rate/";
+  private static final String ACTIVE_COUNT_KEY_PREFIX = "active/";
+
+  private final MemcacheService memcache;
+  private final DemoInfoPersistence demoInfoPersistence;
+  private final int maxRequestsPerWindow;
+  private final int requestWindowSeconds;
+  private final int maxActiveDemos;
+
+  AdmissionController(MemcacheService memcache, DemoInfoPersistence demoInfoPersistence) {
+    this(memcache, demoInfoPersistence, Constants.MAX_DEMO_REQUESTS_PER_WINDOW,
+        Constants.DEMO_REQUEST_WINDOW_SECONDS, Constants.MAX_ACTIVE_DEMOS_PER_USER);
+  }
+
+  // limits other than the ones in Constants are only for load tests
+  AdmissionController(MemcacheService memcache, DemoInfoPersistence demoInfoPersistence,
+      int maxRequestsPerWindow, int requestWindowSeconds, int maxActiveDemos) {
+    checkArgument(maxRequestsPerWindow > 0 && requestWindowSeconds > 0 && maxActiveDemos > 0,
+        "admission limits must be positive");
+    this.memcache = checkNotNull(memcache);
+    this.demoInfoPersistence = checkNotNull(demoInfoPersistence);
+    this.maxRequestsPerWindow = maxRequestsPerWindow;
+    this.requestWindowSeconds = requestWindowSeconds;
+    this.maxActiveDemos = maxActiveDemos;
+  }
+
+  /**
+   * Count a call against the user's rate limit.
+   * @throws TooManyRequestsException if the user is over the limit for the
+   * current window; the retry-after delay is the time until the next one.
+   */
+  void checkRate(String username) throws TooManyRequestsException {
+    checkNotNull(username);
+
+    long nowSeconds = System.currentTimeMillis() / 1000;
+    long windowStart = nowSeconds - nowSeconds % this.requestWindowSeconds;
+    String key = RATE_KEY_PREFIX + username + "/" + windowStart;
+    // seeding separately (rather than with increment's initial value) gives
+    // the counter an expiration, so that old windows don't pile up
+    this.memcache.put(key, 0L,
+        Expiration.byDeltaSeconds(2 * this.requestWindowSeconds),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    Long count = this.memcache.increment(key, 1);
+    if (count != null && count > this.maxRequestsPerWindow) {
+      throw new TooManyRequestsException(String.format(
+          "more than %d demo requests in %d seconds for user %s",
+          this.maxRequestsPerWindow, this.requestWindowSeconds,
+          username),
+          windowStart + this.requestWindowSeconds - nowSeconds);
+    }
+  }
+
+  /**
+   * Reserve room for new active demos under the user's cap. The reservation
+   * is taken before checking, so concurrent calls can't both squeeze in;
+   * callers must {@link #releaseActiveDemos(String, int)} it if the demos
+   * end up not being created.
+   * @throws TooManyRequestsException if the new demos would put the user over
+   * the cap.
+   */
+  void reserveActiveDemos(String username, int numDemos) throws TooManyRequestsException {
+    checkNotNull(username);
+    checkArgument(numDemos > 0, "numDemos must be positive, got %d", numDemos);
+
+    Long count = this.incrementActiveCount(username, numDemos);
+    if (count != null && count > this.maxActiveDemos) {
+      this.memcache.increment(createActiveCountKey(username), -numDemos);
+      throw new TooManyRequestsException(String.format(
+          "user %s already has the maximum of %d active demos; tear one down first",
+          username, this.maxActiveDemos));
+    }
+  }
+
+  /**
+   * Count new active demos which aren't subject to the cap.
+   */
+  void recordActiveDemos(String username, int numDemos) {
+    checkNotNull(username);
+    checkArgument(numDemos > 0, "numDemos must be positive, got %d", numDemos);
+
+    // if the count isn't cached, the next recount includes these demos
+    this.memcache.increment(createActiveCountKey(username), numDemos);
+  }
+
+  /**
+   * Give back room under the user's cap, for demos that were torn down (or
+   * reserved, but never created).
+   */
+  void releaseActiveDemos(String username, int numDemos) {
+    checkNotNull(username);
+    checkArgument(numDemos > 0, "numDemos must be positive, got %d", numDemos);
+
+    // memcache doesn't decrement below zero
+    this.memcache.increment(createActiveCountKey(username), -numDemos);
+  }
+
+  /**
+   * Drop the cached active demo count, so that it's recounted on next use.
+   */
+  void invalidateActiveDemos(String username) {
+    checkNotNull(username);
+    this.memcache.delete(createActiveCountKey(username));
+  }
+
+  private Long incrementActiveCount(String username, int numDemos) {
+    String key = createActiveCountKey(username);
+    Long count = this.memcache.increment(key, numDemos);
+    if (count == null) {
+      // not cached: re-read from the user's counters, and try again
+      this.memcache.put(key, this.demoInfoPersistence.getUsage(username).getActive(),
+          Expiration.byDeltaSeconds(ACTIVE_COUNT_EXPIRATION_SECONDS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      count = this.memcache.increment(key, numDemos);
+    }
+    return count;
+  }
+
+  private static String createActiveCountKey(String username) {
+    return ACTIVE_COUNT_KEY_PREFIX + username;
+  }
+}
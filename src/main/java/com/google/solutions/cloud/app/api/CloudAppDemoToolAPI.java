@@ -5,23 +5,58 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiNamespace;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.app.tasks.LaunchDemoTaskServlet;
+import com.google.solutions.cloud.app.tasks.ProbeReadinessTaskServlet;
+import com.google.solutions.cloud.app.tasks.TeardownDemoTaskServlet;
 import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.compute.DeploymentProfile;
+import com.google.solutions.cloud.compute.SchedulingProfile;
+import com.google.solutions.cloud.compute.SerialConsoleOutput;
+import com.google.solutions.cloud.demo.info.DemoEvent;
+import com.google.solutions.cloud.demo.info.DemoEventType;
 import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoInfoCollection;
+import com.google.solutions.cloud.demo.info.DemoInfoView;
+import com.google.solutions.cloud.demo.info.DemoLatencyDistribution;
+import com.google.solutions.cloud.demo.info.DemoSearchResults;
 import com.google.solutions.cloud.demo.info.DemoStatus;
 import com.google.solutions.cloud.deployment.DeploymentManager;
 import com.google.solutions.cloud.deployment.DeploymentTemplate;
 import com.google.solutions.cloud.deployment.SingleInstanceDeployment;
-import com.google.solutions.cloud.persistence.DatastoreDemoInfoPersistence;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.persistence.DatastoreDemoEventPersistence;
+import com.google.solutions.cloud.persistence.DatastoreDeploymentProfilePersistence;
+import com.google.solutions.cloud.persistence.DatastoreIdempotencyPersistence;
+import com.google.solutions.cloud.persistence.DemoEventPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.google.solutions.cloud.persistence.DemoSearchCriteria;
+import com.google.solutions.cloud.user.info.UserUsage;
+import com.google.solutions.cloud.workshop.WorkshopProgress;
+import com.google.solutions.cloud.workshop.WorkshopRequest;
+
+import org.joda.time.DateTime;
 
 import java.util.ConcurrentModificationException;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Named;
 
@@ -34,67 +69,531 @@ import javax.inject.Named;
      ownerName = "cloud.solutions.google.com",
      packagePath=""))
 public class CloudAppDemoToolAPI {
+  // shared by every instance of this class, so that watchers of the same
+  // demo share a poller no matter which API instance serves them
+  private static final DemoChangeDetector CHANGE_DETECTOR = new DemoChangeDetector();
+
+  // compute instance states which are expected to change on their own; the
+  // recorded deployment status of a demo in one of these states can't be
+  // trusted to still be current
+  private static final Set<String> TRANSITIONAL_DEPLOYMENT_STATUSES =
+      ImmutableSet.of("PROVISIONING", "STAGING", "STOPPING");
+
+  // page sizes for searchDemos
+  private static final int DEFAULT_SEARCH_PAGE_SIZE = 50;
+  private static final int MAX_SEARCH_PAGE_SIZE = 500;
+  private static final int DEFAULT_LATENCY_WINDOW_DAYS = 7;
+
+  // serial console chunks are cached this long, so that everyone watching
+  // the same demo's console shares one Compute call per poll
+  private static final int SERIAL_CONSOLE_CACHE_EXPIRATION_SECONDS = 5;
+  private static final String SERIAL_CONSOLE_CACHE_KEY_PREFIX = "serial/";
+
+  // operation names under which idempotency keys are recorded
+  private static final String CREATE_SINGLE_INSTANCE_DEMO_OPERATION = "createSingleInstanceDemo";
+  private static final String SCHEDULE_DEMO_OPERATION = "scheduleDemo";
+  private static final String LAUNCH_DEMO_OPERATION = "launchDemo";
+  private static final String CREATE_WORKSHOP_OPERATION = "createWorkshop";
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager;
+  private final DatastoreDeploymentProfilePersistence deploymentProfilePersistence =
+      new DatastoreDeploymentProfilePersistence(DatastoreServiceFactory.getDatastoreService());
+  private final AdmissionController admissionController;
+  private final DatastoreIdempotencyPersistence idempotencyPersistence =
+      new DatastoreIdempotencyPersistence(DatastoreServiceFactory.getDatastoreService(),
+          MemcacheServiceFactory.getMemcacheService());
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private final DemoEventPersistence demoEventPersistence =
+      new DatastoreDemoEventPersistence(DatastoreServiceFactory.getDatastoreService());
 
-  private final DatastoreDemoInfoPersistence demoInfoPersistence =
-      new DatastoreDemoInfoPersistence(DatastoreServiceFactory.getDatastoreService());
-  private final DeploymentManager deploymentManager =
-      new DeploymentManager(new ComputeService());
+  public CloudAppDemoToolAPI() {
+    this.deploymentManager = new DeploymentManager(new ComputeService());
+    this.admissionController = new AdmissionController(this.memcache, this.demoInfoPersistence);
+  }
+
+  // for load tests, which run against a fake Compute backend, and raise the
+  // admission limits so as to measure what's behind them
+  @VisibleForTesting
+  CloudAppDemoToolAPI(DeploymentManager deploymentManager, int maxDemoRequestsPerWindow,
+      int maxActiveDemosPerUser) {
+    this.deploymentManager = checkNotNull(deploymentManager);
+    this.admissionController = new AdmissionController(this.memcache, this.demoInfoPersistence,
+        maxDemoRequestsPerWindow, Constants.DEMO_REQUEST_WINDOW_SECONDS, maxActiveDemosPerUser);
+  }
 
+  // idempotencyKey (optional, on this and the other calls which create or
+  // launch demos) makes retries of a call that already succeeded return its
+  // original result, rather than doing the work again
   @ApiMethod(name = "createSingleInstanceDemo")
   public DemoInfo createSingleInstanceDemo(@Named("description") String description,
-      User user) throws UnauthorizedException {
+      @Named("deploymentProfile") @Nullable String deploymentProfileName,
+      @Named("schedulingProfile") @Nullable SchedulingProfile schedulingProfile,
+      @Named("idempotencyKey") @Nullable String idempotencyKey,
+      User user) throws UnauthorizedException, BadRequestException, NotFoundException,
+          TooManyRequestsException {
     String username = checkLoginAndGetAbbreviatedNickname(user);
+    Optional<String> previousResult = this.claimIdempotencyKey(username,
+        CREATE_SINGLE_INSTANCE_DEMO_OPERATION, idempotencyKey);
+    if (previousResult.isPresent()) {
+      return this.loadDemoInfo(username, Long.parseLong(previousResult.get()));
+    }
 
-    int suffix = this.demoInfoPersistence.reserveInstanceNames(username, 1);
-    String instanceName = String.format("%s-%d", username, suffix);
-    DeploymentTemplate deploymentTemplate = SingleInstanceDeployment
-        .makeDefaultTemplate(instanceName);
+    DemoInfo demoInfo = null;
+    try {
+      this.admissionController.checkRate(username);
+      this.admissionController.reserveActiveDemos(username, 1);
+      try {
+        DemoInfo initialDemoInfo = this.makeSingleInstanceDemo(username, description,
+            this.getDeploymentProfile(deploymentProfileName), schedulingProfile);
+        demoInfo = this.demoInfoPersistence.createNewDemo(username, initialDemoInfo);
+      } finally {
+        if (demoInfo == null) {
+          this.admissionController.releaseActiveDemos(username, 1);
+        }
+      }
+    } finally {
+      this.finishIdempotentCall(username, CREATE_SINGLE_INSTANCE_DEMO_OPERATION, idempotencyKey,
+          demoInfo == null ? null : String.valueOf(demoInfo.getDemoId()));
+    }
+    return demoInfo;
+  }
 
-    DemoInfo initialDemoInfo = new DemoInfo()
-        .setDescription(description)
-        .setDeploymentTemplate(deploymentTemplate);
+  @ApiMethod(name = "scheduleDemo")
+  public DemoInfo scheduleDemo(@Named("description") String description,
+      @Named("launchTimeMillis") long launchTimeMillis,
+      @Named("durationMinutes") int durationMinutes,
+      @Named("deploymentProfile") @Nullable String deploymentProfileName,
+      @Named("schedulingProfile") @Nullable SchedulingProfile schedulingProfile,
+      @Named("idempotencyKey") @Nullable String idempotencyKey,
+      User user) throws UnauthorizedException, BadRequestException, NotFoundException,
+          TooManyRequestsException {
+    DateTime launchTime = new DateTime(launchTimeMillis);
+    if (launchTime.isBeforeNow()
+        || launchTime.isAfter(DateTime.now().plusDays(Constants.MAX_SCHEDULE_AHEAD_DAYS))) {
+      throw new BadRequestException(String.format(
+          "launch time must be in the future, and at most %d days from now",
+          Constants.MAX_SCHEDULE_AHEAD_DAYS));
+    }
+    if (durationMinutes <= 0 || durationMinutes > Constants.MAX_SCHEDULED_DURATION_MINUTES) {
+      throw new BadRequestException(String.format(
+          "duration must be between 1 and %d minutes",
+          Constants.MAX_SCHEDULED_DURATION_MINUTES));
+    }
+    // the teardown task is enqueued with up to the whole stagger window added
+    // to its ETA, which the task queue won't take past MAX_TASK_ETA_DAYS
+    DateTime teardownTime = launchTime.plusMinutes(durationMinutes);
+    if (!teardownTime.plusSeconds(Constants.SCHEDULED_LAUNCH_STAGGER_WINDOW_SECONDS)
+        .isBefore(DateTime.now().plusDays(Constants.MAX_TASK_ETA_DAYS))) {
+      throw new BadRequestException(String.format(
+          "the demo must be torn down within %d days from now", Constants.MAX_TASK_ETA_DAYS));
+    }
+
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    Optional<String> previousResult = this.claimIdempotencyKey(username,
+        SCHEDULE_DEMO_OPERATION, idempotencyKey);
+    if (previousResult.isPresent()) {
+      return this.loadDemoInfo(username, Long.parseLong(previousResult.get()));
+    }
+
+    String result = null;
+    try {
+      this.admissionController.checkRate(username);
+      this.admissionController.reserveActiveDemos(username, 1);
+      // the instance name is reserved (and the record written) now, so that
+      // none of that work piles up at the scheduled launch time
+      DemoInfo demoInfo = null;
+      boolean scheduled = false;
+      try {
+        DemoInfo initialDemoInfo = this.makeSingleInstanceDemo(username, description,
+            this.getDeploymentProfile(deploymentProfileName), schedulingProfile)
+            .setScheduledLaunchTime(launchTime.toDate())
+            .setScheduledTeardownTime(teardownTime.toDate());
+        demoInfo = this.demoInfoPersistence.createNewDemo(username, initialDemoInfo);
+        // the teardown goes first, so that a demo never launches without one
+        TeardownDemoTaskServlet.enqueueScheduledTeardown(username, demoInfo.getDemoId(),
+            teardownTime.toDate());
+        LaunchDemoTaskServlet.enqueueScheduledLaunch(username, demoInfo.getDemoId(),
+            launchTime.toDate());
+        scheduled = true;
+      } finally {
+        if (!scheduled) {
+          if (demoInfo != null) {
+            // a teardown task left behind finds the demo gone, and does nothing
+            this.demoInfoPersistence.delete(username, demoInfo.getDemoId());
+          }
+          this.admissionController.releaseActiveDemos(username, 1);
+        }
+      }
 
-    return this.demoInfoPersistence.createNewDemo(username, initialDemoInfo);
+      result = String.valueOf(demoInfo.getDemoId());
+      return demoInfo;
+    } finally {
+      this.finishIdempotentCall(username, SCHEDULE_DEMO_OPERATION, idempotencyKey, result);
+    }
   }
 
+  // ifNoneMatch is the version of the record the client already has. if the
+  // record hasn't changed since, and nothing is expected to change it behind
+  // our back, a stub with notModified set is returned without asking Compute.
+  // view defaults to DemoInfoView.STANDARD.
   @ApiMethod(name = "getDemoInfo")
-  public DemoInfo getDemoInfo(@Named("demoId") long demoId, User user)
-      throws UnauthorizedException, NotFoundException {
+  public DemoInfo getDemoInfo(@Named("demoId") long demoId,
+      @Named("ifNoneMatch") @Nullable Long ifNoneMatch,
+      @Named("view") @Nullable DemoInfoView view,
+      User user) throws UnauthorizedException, NotFoundException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    if (ifNoneMatch != null) {
+      Optional<DemoInfo> conditionalDemoInfo = this.demoInfoPersistence.get(
+          username, demoId, ifNoneMatch);
+      if (!conditionalDemoInfo.isPresent()) {
+        throw new NotFoundException(String.format("{ demoId: %d, username: %s }",
+            demoId, username));
+      }
+      if (conditionalDemoInfo.get().isNotModified()
+          && isSettled(conditionalDemoInfo.get())) {
+        return conditionalDemoInfo.get();
+      }
+    }
+
+    return this.refreshDemoInfo(username, demoId).toView(orDefault(view));
+  }
+
+  // long-polling alternative to calling getDemoInfo repeatedly: returns as
+  // soon as the demo's status or deploymentStatus differs from the known
+  // values, or after DemoChangeDetector.MAX_WAIT_MILLIS with the unchanged
+  // record. unlike getDemoInfo, this never restarts stopped demos.
+  @ApiMethod(name = "watchDemoInfo")
+  public DemoInfo watchDemoInfo(@Named("demoId") long demoId,
+      @Named("knownStatus") @Nullable DemoStatus knownStatus,
+      @Named("knownDeploymentStatus") @Nullable String knownDeploymentStatus,
+      @Named("view") @Nullable DemoInfoView view,
+      User user) throws UnauthorizedException, NotFoundException {
     String username = checkLoginAndGetAbbreviatedNickname(user);
+    DemoChangeDetector.DemoInfoLoader loader = new DemoChangeDetector.DemoInfoLoader() {
+      @Override
+      public Optional<DemoInfo> load(String username, long demoId) {
+        Optional<DemoInfo> demoInfo = CloudAppDemoToolAPI.this.demoInfoPersistence.get(
+            username, demoId);
+        if (demoInfo.isPresent() && demoInfo.get().getStatus() == DemoStatus.LAUNCHED) {
+          demoInfo.get().getDeploymentTemplate().updateDemoInfo(
+              CloudAppDemoToolAPI.this.deploymentManager, demoInfo.get());
+        }
+        return demoInfo;
+      }
+    };
 
-    Optional<DemoInfo> demoInfoOpt = this.demoInfoPersistence.get(username, demoId);
-    if (!demoInfoOpt.isPresent()) {
+    Optional<DemoInfo> demoInfo;
+    try {
+      demoInfo = CHANGE_DETECTOR.awaitChange(username, demoId, knownStatus,
+          knownDeploymentStatus, loader);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      demoInfo = loader.load(username, demoId);
+    }
+    if (!demoInfo.isPresent()) {
       throw new NotFoundException(String.format("{ demoId: %d, username: %s }",
           demoId, username));
     }
+    // the loaded record is shared with the other watchers, toView copies it
+    return demoInfo.get().toView(orDefault(view));
+  }
 
-    DemoInfo demoInfo = demoInfoOpt.get();
+  // ifNoneMatch is the list version the client already has; if it's still
+  // current, the (empty) response just has notModified set
+  @ApiMethod(name = "listActiveDemos")
+  public DemoInfoCollection listActiveDemos(@Named("ifNoneMatch") @Nullable Long ifNoneMatch,
+      @Named("view") @Nullable DemoInfoView view,
+      User user) throws UnauthorizedException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    // read the version first: if the list changes in between, the client
+    // just gets a fresh copy again next time
+    long listVersion = this.demoInfoPersistence.getListVersion(username);
+    DemoInfoCollection demoInfos = new DemoInfoCollection().setVersion(listVersion);
+    if (ifNoneMatch != null && ifNoneMatch == listVersion) {
+      return demoInfos.setNotModified(true);
+    }
+    List<DemoInfo> items = Lists.newArrayList();
+    for (DemoInfo demoInfo : this.demoInfoPersistence.findAllActiveDemosForUser(username)) {
+      items.add(demoInfo.toView(orDefault(view)));
+    }
+    return demoInfos.setItems(items);
+  }
+
+  // the user's demo counts per status, and VM hours used so far; read from
+  // counters kept on the user record rather than by scanning demos
+  @ApiMethod(name = "getUsage")
+  public UserUsage getUsage(User user) throws UnauthorizedException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    return this.demoInfoPersistence.getUsage(username);
+  }
+
+  // the demo's lifecycle events, oldest first; still available after the
+  // demo has been deleted
+  @ApiMethod(name = "getDemoEvents")
+  public List<DemoEvent> getDemoEvents(@Named("demoId") long demoId, User user)
+      throws UnauthorizedException, NotFoundException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    List<DemoEvent> events = Lists.newArrayList();
+    for (DemoEvent event : this.demoEventPersistence.getEvents(demoId)) {
+      if (username.equals(event.getOwner())) {
+        events.add(event);
+      }
+    }
+    if (events.isEmpty()) {
+      throw new NotFoundException(String.format("{ demoId: %d, username: %s }",
+          demoId, username));
+    }
+    return events;
+  }
+
+  @ApiMethod(name = "launchDemo")
+  public void launchDemo(@Named("demoId") long demoId,
+      @Named("idempotencyKey") @Nullable String idempotencyKey,
+      User user) throws UnauthorizedException, NotFoundException, TooManyRequestsException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    if (this.claimIdempotencyKey(username, LAUNCH_DEMO_OPERATION, idempotencyKey).isPresent()) {
+      return;
+    }
+
+    String result = null;
+    try {
+      this.admissionController.checkRate(username);
+      this.launchDemo(username, demoId);
+      result = String.valueOf(demoId);
+    } finally {
+      this.finishIdempotentCall(username, LAUNCH_DEMO_OPERATION, idempotencyKey, result);
+    }
+  }
+
+  @ApiMethod(name = "teardownDemo")
+  public void teardownDemo(@Named("demoId") long demoId, User user)
+        throws UnauthorizedException, NotFoundException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    // no getDemoInfo here, so that stopped demos aren't restarted just to be deleted
+    DemoInfo demoInfo = this.loadDemoInfo(username, demoId);
     DemoStatus status = demoInfo.getStatus();
+
+    // assumption: deletion is idempotent
     switch(status) {
       case CREATED:
       case DELETING:
-        break;
       case LAUNCHED:
-        demoInfo.getDeploymentTemplate().updateDemoInfo(this.deploymentManager, demoInfo);
+      case STOPPED:
+      case FAILED:
+        demoInfo.getDeploymentTemplate().teardown(this.deploymentManager);
+        this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.DELETING);
+        if (status != DemoStatus.DELETING) {
+          this.admissionController.releaseActiveDemos(username, 1);
+        }
         break;
       default:
         throw new IllegalStateException("invalid demo status: " + status);
     }
+  }
 
-    return demoInfo;
+  @ApiMethod(name = "createWorkshop")
+  public WorkshopProgress createWorkshop(WorkshopRequest workshopRequest,
+      @Named("idempotencyKey") @Nullable String idempotencyKey,
+      User user) throws UnauthorizedException, BadRequestException, NotFoundException,
+          TooManyRequestsException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    Optional<String> previousResult = this.claimIdempotencyKey(username,
+        CREATE_WORKSHOP_OPERATION, idempotencyKey);
+    if (previousResult.isPresent()) {
+      return this.getWorkshopProgress(previousResult.get(), user);
+    }
+
+    String result = null;
+    try {
+      this.admissionController.checkRate(username);
+      WorkshopProgress workshopProgress = this.createWorkshop(username, workshopRequest);
+      result = workshopProgress.getWorkshopId();
+      return workshopProgress;
+    } finally {
+      this.finishIdempotentCall(username, CREATE_WORKSHOP_OPERATION, idempotencyKey, result);
+    }
   }
 
-  @ApiMethod(name = "listActiveDemos")
-  public List<DemoInfo> listActiveDemos(User user) throws UnauthorizedException {
+  @ApiMethod(name = "getWorkshopProgress")
+  public WorkshopProgress getWorkshopProgress(@Named("workshopId") String workshopId,
+      User user) throws UnauthorizedException, NotFoundException {
     String username = checkLoginAndGetAbbreviatedNickname(user);
-    return this.demoInfoPersistence.findAllActiveDemosForUser(username);
+    List<DemoInfo> demoInfos = this.demoInfoPersistence.findAllDemosForWorkshop(
+        username, workshopId);
+    if (demoInfos.isEmpty()) {
+      throw new NotFoundException(String.format("{ workshopId: %s, username: %s }",
+          workshopId, username));
+    }
+
+    List<DemoInfo> launchedDemoInfos = Lists.newArrayList();
+    for (DemoInfo demoInfo : demoInfos) {
+      if (demoInfo.getStatus() == DemoStatus.LAUNCHED) {
+        launchedDemoInfos.add(demoInfo);
+      }
+    }
+    // one Compute call for the whole workshop, rather than one per demo
+    this.deploymentManager.updateDemoInfos(launchedDemoInfos);
+
+    int ready = 0;
+    int pending = 0;
+    int failed = 0;
+    for (DemoInfo demoInfo : demoInfos) {
+      switch (demoInfo.getStatus()) {
+        case FAILED:
+          failed++;
+          break;
+        case LAUNCHED:
+          if (isReady(demoInfo)) {
+            ready++;
+          } else {
+            pending++;
+          }
+          break;
+        case CREATED:
+        case STOPPED:
+          pending++;
+          break;
+        case DELETING:
+          break;
+        default:
+          throw new IllegalStateException("invalid demo status: " + demoInfo.getStatus());
+      }
+    }
+
+    return new WorkshopProgress()
+        .setWorkshopId(workshopId)
+        .setTotal(demoInfos.size())
+        .setReady(ready)
+        .setPending(pending)
+        .setFailed(failed);
   }
 
-  @ApiMethod(name = "launchDemo")
-  public void launchDemo(@Named("demoId") long demoId, User user)
-      throws UnauthorizedException, NotFoundException {
+  // console output of the demo's instance from byte offset start (0 if not
+  // given) on. clients follow the output by passing each response's next
+  // as the following call's start, so only new output is ever transferred.
+  @ApiMethod(name = "getSerialConsoleOutput")
+  public SerialConsoleOutput getSerialConsoleOutput(@Named("demoId") long demoId,
+      @Named("start") @Nullable Long start,
+      User user) throws UnauthorizedException, NotFoundException, BadRequestException {
+    String username = checkLoginAndGetAbbreviatedNickname(user);
+    if (start != null && start < 0) {
+      throw new BadRequestException("start must not be negative");
+    }
+    long startOffset = start == null ? 0 : start;
+
+    String cacheKey = String.format("%s%s/%d/%d", SERIAL_CONSOLE_CACHE_KEY_PREFIX,
+        username, demoId, startOffset);
+    SerialConsoleOutput output = (SerialConsoleOutput) this.memcache.get(cacheKey);
+    Metrics.recordCacheLookup("cache.serialConsole", output != null);
+    if (output != null) {
+      return output;
+    }
+
+    DemoInfo demoInfo = this.loadDemoInfo(username, demoId);
+    Optional<SerialConsoleOutput> fetchedOutput = demoInfo.getDeploymentTemplate()
+        .getSerialConsoleOutput(this.deploymentManager, startOffset);
+    if (!fetchedOutput.isPresent()) {
+      throw new NotFoundException(String.format(
+          "no console output for demo %d of user %s -- not launched?", demoId, username));
+    }
+    this.memcache.put(cacheKey, fetchedOutput.get(),
+        Expiration.byDeltaSeconds(SERIAL_CONSOLE_CACHE_EXPIRATION_SECONDS));
+    return fetchedOutput.get();
+  }
+
+  // admin-only search over every user's demos. all filters are optional, and
+  // nextPageToken from one page's results is passed as pageToken to get the
+  // next one. view defaults to DemoInfoView.SUMMARY here.
+  @ApiMethod(name = "searchDemos")
+  public DemoSearchResults searchDemos(@Named("status") @Nullable DemoStatus status,
+      @Named("zone") @Nullable String zone,
+      @Named("usernamePrefix") @Nullable String usernamePrefix,
+      @Named("createdAfterMillis") @Nullable Long createdAfterMillis,
+      @Named("createdBeforeMillis") @Nullable Long createdBeforeMillis,
+      @Named("text") @Nullable String text,
+      @Named("pageSize") @Nullable Integer pageSize,
+      @Named("pageToken") @Nullable String pageToken,
+      @Named("view") @Nullable DemoInfoView view,
+      User user) throws UnauthorizedException, ForbiddenException, BadRequestException {
+    checkAdmin(user);
+    if (pageSize != null && (pageSize <= 0 || pageSize > MAX_SEARCH_PAGE_SIZE)) {
+      throw new BadRequestException(String.format(
+          "pageSize must be between 1 and %d", MAX_SEARCH_PAGE_SIZE));
+    }
+
+    DemoSearchCriteria criteria = new DemoSearchCriteria()
+        .setStatus(status)
+        .setZone(zone)
+        .setUsernamePrefix(usernamePrefix)
+        .setCreatedAfter(createdAfterMillis == null ? null : new Date(createdAfterMillis))
+        .setCreatedBefore(createdBeforeMillis == null ? null : new Date(createdBeforeMillis))
+        .setText(text)
+        .setPageSize(pageSize == null ? DEFAULT_SEARCH_PAGE_SIZE : pageSize)
+        .setPageToken(pageToken);
+    DemoSearchResults results;
+    try {
+      results = this.demoInfoPersistence.searchDemos(criteria);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+
+    List<DemoInfo> items = Lists.newArrayListWithCapacity(results.getItems().size());
+    for (DemoInfo demoInfo : results.getItems()) {
+      items.add(demoInfo.toView(view == null ? DemoInfoView.SUMMARY : view));
+    }
+    return results.setItems(items);
+  }
+
+  // admin-only latency distributions across the fleet, per zone and image,
+  // e.g. from LAUNCHED to RUNNING. covers the demos which reached the later
+  // event since sinceMillis, which defaults to the last week.
+  @ApiMethod(name = "getDemoLatencies")
+  public List<DemoLatencyDistribution> getDemoLatencies(@Named("from") DemoEventType from,
+      @Named("to") DemoEventType to,
+      @Named("sinceMillis") @Nullable Long sinceMillis,
+      User user) throws UnauthorizedException, ForbiddenException {
+    checkAdmin(user);
+    Date since = sinceMillis == null
+        ? DateTime.now().minusDays(DEFAULT_LATENCY_WINDOW_DAYS).toDate()
+        : new Date(sinceMillis);
+    return this.demoEventPersistence.getLatencies(from, to, since);
+  }
+
+  @ApiMethod(name = "listDeploymentProfiles")
+  public List<DeploymentProfile> listDeploymentProfiles(User user)
+      throws UnauthorizedException {
+    checkLoginAndGetAbbreviatedNickname(user);
+    return this.deploymentProfilePersistence.list();
+  }
+
+  @ApiMethod(name = "saveDeploymentProfile")
+  public void saveDeploymentProfile(DeploymentProfile deploymentProfile, User user)
+      throws UnauthorizedException, ForbiddenException, BadRequestException {
+    checkAdmin(user);
+    if (deploymentProfile.getName() == null || deploymentProfile.getZone() == null
+        || deploymentProfile.getMachineType() == null
+        || deploymentProfile.getImageProject() == null
+        || deploymentProfile.getImageName() == null) {
+      throw new BadRequestException(
+          "a deployment profile needs a name, zone, machineType, imageProject and imageName");
+    }
+    this.deploymentProfilePersistence.save(deploymentProfile);
+  }
+
+  // FIXME: delete this method...just for testing
+  @ApiMethod(name = "deleteDemoInfo")
+  @VisibleForTesting
+  public void deleteDemoInfo(@Named("demoId") long demoId, User user)
+      throws UnauthorizedException {
     String username = checkLoginAndGetAbbreviatedNickname(user);
-    DemoInfo demoInfo = this.getDemoInfo(demoId, user);
+    this.demoInfoPersistence.delete(username, demoId);
+    this.admissionController.invalidateActiveDemos(username);
+  }
+
+  // the launch itself, once launchDemo has dealt with idempotency and admission
+  private void launchDemo(String username, long demoId) throws NotFoundException {
+    DemoInfo demoInfo = this.refreshDemoInfo(username, demoId);
     DemoStatus status = demoInfo.getStatus();
 
     switch(status) {
@@ -103,13 +602,14 @@ public class CloudAppDemoToolAPI {
             "cannot launch demo %d for user %s -- already delet(ed/ing)",
             demoId, username));
       case CREATED:
+      case FAILED:
         demoInfo.getDeploymentTemplate().launch(this.deploymentManager);
         // if the call below were to fail randomly, that's ok -- the client
-        // could just retry this call until it succeeds (yes, the 'insert'
-        // calls to the compute API will fail, but that won't be visible here,
-        // since we aren't polling that status in this method)
+        // can just retry this call until it succeeds, since launching an
+        // already created deployment again is a no-op
         this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.LAUNCHED);
-      // intentional fall through from CREATED to LAUNCHED
+        ProbeReadinessTaskServlet.enqueueProbe(username, demoId);
+      // intentional fall through from CREATED/FAILED to LAUNCHED
       case LAUNCHED:
         // NOTE: in the case of a single instance deployment demo, launch is
         //       an idempotent operation. But since the launch mechanism is at
@@ -121,33 +621,182 @@ public class CloudAppDemoToolAPI {
     }
   }
 
-  @ApiMethod(name = "teardownDemo")
-  public void teardownDemo(@Named("demoId") long demoId, User user)
-        throws UnauthorizedException, NotFoundException {
-    String username = checkLoginAndGetAbbreviatedNickname(user);
-    DemoInfo demoInfo = this.getDemoInfo(demoId, user);
-    DemoStatus status = demoInfo.getStatus();
+  // creates the workshop's demos and queues up their launches, once
+  // createWorkshop has dealt with idempotency and admission
+  private WorkshopProgress createWorkshop(String username, WorkshopRequest workshopRequest)
+      throws BadRequestException {
+    List<String> attendees = workshopRequest.getAttendees();
+    if (attendees == null || attendees.isEmpty()
+        || attendees.size() > Constants.MAX_WORKSHOP_ATTENDEES) {
+      throw new BadRequestException(String.format(
+          "a workshop needs between 1 and %d attendees",
+          Constants.MAX_WORKSHOP_ATTENDEES));
+    }
+    DeploymentProfile deploymentProfile = this.getDeploymentProfile(
+        workshopRequest.getDeploymentProfile());
+    SchedulingProfile schedulingProfile = workshopRequest.getSchedulingProfile() == null
+        ? SchedulingProfile.STANDARD : workshopRequest.getSchedulingProfile();
 
-    // assumption: deletion is idempotent
+    // a single reservation covers every attendee's instance name
+    int firstSuffix = this.demoInfoPersistence.reserveInstanceNames(username, attendees.size());
+    String workshopId = String.format("%s-%d", username, firstSuffix);
+
+    List<DemoInfo> initialDemoInfos = Lists.newArrayListWithCapacity(attendees.size());
+    for (int i = 0; i < attendees.size(); i++) {
+      String attendee = attendees.get(i);
+      String instanceName = String.format("%s-%d", username, firstSuffix + i);
+      initialDemoInfos.add(new DemoInfo()
+          .setDescription(workshopRequest.getDescription() == null ? null
+              : String.format("%s (%s)", workshopRequest.getDescription(), attendee))
+          .setDeploymentTemplate(SingleInstanceDeployment.makeTemplate(
+              instanceName, deploymentProfile, schedulingProfile))
+          .setDeploymentProfile(deploymentProfile.getName())
+          .setZone(deploymentProfile.getZone())
+          .setWorkshopId(workshopId)
+          .setAttendee(attendee));
+    }
+
+    List<Long> demoIds = Lists.newArrayListWithCapacity(attendees.size());
+    for (DemoInfo demoInfo : this.demoInfoPersistence.createNewDemos(username, initialDemoInfos)) {
+      demoIds.add(demoInfo.getDemoId());
+    }
+    this.admissionController.recordActiveDemos(username, demoIds.size());
+    LaunchDemoTaskServlet.enqueueLaunches(username, demoIds);
+
+    return new WorkshopProgress()
+        .setWorkshopId(workshopId)
+        .setTotal(demoIds.size())
+        .setPending(demoIds.size());
+  }
+
+  // reserves an instance name and builds the (not yet persisted) DemoInfo
+  // record for a new single instance demo
+  private DemoInfo makeSingleInstanceDemo(String username, String description,
+      DeploymentProfile deploymentProfile, SchedulingProfile schedulingProfile) {
+    int suffix = this.demoInfoPersistence.reserveInstanceNames(username, 1);
+    String instanceName = String.format("%s-%d", username, suffix);
+    DeploymentTemplate deploymentTemplate = SingleInstanceDeployment.makeTemplate(
+        instanceName, deploymentProfile,
+        schedulingProfile == null ? SchedulingProfile.STANDARD : schedulingProfile);
+
+    return new DemoInfo()
+        .setDescription(description)
+        .setDeploymentTemplate(deploymentTemplate)
+        .setDeploymentProfile(deploymentProfile.getName())
+        .setZone(deploymentProfile.getZone());
+  }
+
+  // resolves the named deployment profile, or the default one if no name is given
+  private DeploymentProfile getDeploymentProfile(String deploymentProfileName)
+      throws BadRequestException {
+    String name = deploymentProfileName == null
+        ? DeploymentProfile.DEFAULT_PROFILE_NAME : deploymentProfileName;
+    Optional<DeploymentProfile> deploymentProfile = this.deploymentProfilePersistence.get(name);
+    if (!deploymentProfile.isPresent()) {
+      throw new BadRequestException("unknown deployment profile: " + name);
+    }
+    return deploymentProfile.get();
+  }
+
+  // whether a launched demo is serving: its instance is RUNNING, and the app
+  // on it has answered a readiness probe. until then (RUNNING included) it's
+  // pending, both for workshop progress and for isSettled.
+  private static boolean isReady(DemoInfo demoInfo) {
+    return demoInfo.getStatus() == DemoStatus.LAUNCHED
+        && DemoInfo.READY_DEPLOYMENT_STATUS.equals(demoInfo.getDeploymentStatus());
+  }
+
+  // whether a demo's recorded state can be returned without asking Compute:
+  // stopped demos need to be resumed, and launched ones are only settled if
+  // their instance isn't in the middle of a state change, and isn't running
+  // without being ready (i.e. waiting on the readiness probe)
+  private static boolean isSettled(DemoInfo demoInfo) {
+    switch (demoInfo.getStatus()) {
+      case CREATED:
+      case FAILED:
+      case DELETING:
+        return true;
+      case STOPPED:
+        return false;
+      case LAUNCHED:
+        return demoInfo.getDeploymentStatus() != null
+            && !TRANSITIONAL_DEPLOYMENT_STATUSES.contains(demoInfo.getDeploymentStatus())
+            && !"RUNNING".equals(demoInfo.getDeploymentStatus());
+      default:
+        throw new IllegalStateException("invalid demo status: " + demoInfo.getStatus());
+    }
+  }
+
+  private static DemoInfoView orDefault(DemoInfoView view) {
+    return view == null ? DemoInfoView.STANDARD : view;
+  }
+
+  // load the full record, resuming stopped demos and filling in the current
+  // deployment status of launched ones
+  private DemoInfo refreshDemoInfo(String username, long demoId) throws NotFoundException {
+    DemoInfo demoInfo = this.loadDemoInfo(username, demoId);
+    DemoStatus status = demoInfo.getStatus();
     switch(status) {
       case CREATED:
+      case FAILED:
       case DELETING:
+        break;
+      case STOPPED:
+        // the demo was stopped for being idle; bring it back up transparently
+        demoInfo.getDeploymentTemplate().resume(this.deploymentManager);
+        this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.LAUNCHED);
+        ProbeReadinessTaskServlet.enqueueProbe(username, demoId);
+        demoInfo.setStatus(DemoStatus.LAUNCHED);
+      // intentional fall through from STOPPED to LAUNCHED
       case LAUNCHED:
-        demoInfo.getDeploymentTemplate().teardown(this.deploymentManager);
-        this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.DELETING);
+        String recordedDeploymentStatus = demoInfo.getDeploymentStatus();
+        demoInfo.getDeploymentTemplate().updateDemoInfo(this.deploymentManager, demoInfo);
+        // record what we saw, so that the version reflects it (the version
+        // read above is also stale if the demo was just resumed)
+        if (status == DemoStatus.STOPPED
+            || !Objects.equal(recordedDeploymentStatus, demoInfo.getDeploymentStatus())) {
+          demoInfo.setVersion(this.demoInfoPersistence.updateDeploymentStatus(
+              username, demoId, demoInfo.getDeploymentStatus()));
+        }
         break;
       default:
         throw new IllegalStateException("invalid demo status: " + status);
     }
+
+    return demoInfo;
   }
 
-  // FIXME: delete this method...just for testing
-  @ApiMethod(name = "deleteDemoInfo")
-  @VisibleForTesting
-  public void deleteDemoInfo(@Named("demoId") long demoId, User user)
-      throws UnauthorizedException {
-    String username = checkLoginAndGetAbbreviatedNickname(user);
-    this.demoInfoPersistence.delete(username, demoId);
+  // claim the idempotency key (if any) for the calling request, returning the
+  // result of an earlier request with the same key, if there was one
+  private Optional<String> claimIdempotencyKey(String username, String operation,
+      String idempotencyKey) {
+    if (idempotencyKey == null) {
+      return Optional.absent();
+    }
+    return this.idempotencyPersistence.claim(username, operation, idempotencyKey);
+  }
+
+  // record the result of a request whose idempotency key (if any) was
+  // claimed; a null result means the request failed, and may be retried
+  private void finishIdempotentCall(String username, String operation,
+      String idempotencyKey, String result) {
+    if (idempotencyKey == null) {
+      return;
+    }
+    if (result == null) {
+      this.idempotencyPersistence.release(username, operation, idempotencyKey);
+    } else {
+      this.idempotencyPersistence.complete(username, operation, idempotencyKey, result);
+    }
+  }
+
+  private DemoInfo loadDemoInfo(String username, long demoId) throws NotFoundException {
+    Optional<DemoInfo> demoInfoOpt = this.demoInfoPersistence.get(username, demoId);
+    if (!demoInfoOpt.isPresent()) {
+      throw new NotFoundException(String.format("{ demoId: %d, username: %s }",
+          demoId, username));
+    }
+    return demoInfoOpt.get();
   }
 
   private static String checkLoginAndGetAbbreviatedNickname(User user) throws UnauthorizedException {
@@ -157,6 +806,13 @@ public class CloudAppDemoToolAPI {
     return getNicknameWithoutAuthDomain(user);
   }
 
+  private static void checkAdmin(User user) throws UnauthorizedException, ForbiddenException {
+    checkLoginAndGetAbbreviatedNickname(user);
+    if (!Constants.ADMIN_EMAILS.contains(user.getEmail())) {
+      throw new ForbiddenException("must be an administrator to access this method!");
+    }
+  }
+
   private static String getNicknameWithoutAuthDomain(User user) {
     checkNotNull(user);
 
@@ -0,0 +1,124 @@
+package com.google.solutions.cloud.app.api;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.Map;
+
+/**
+ * Detects changes to the status (or deployment status) of demos on behalf of
+ * long-polling clients. All of the clients watching the same demo on this
+ * instance share a single poller: at most one of them reloads the demo per
+ * {@link #POLL_INTERVAL_MILLIS}, and every other one is woken up with the
+ * result, so the Datastore/Compute cost of a demo doesn't grow with the
+ * number of clients watching it.
+ */
+final class DemoChangeDetector {
+  static final long POLL_INTERVAL_MILLIS = 2000;
+  static final long MAX_WAIT_MILLIS = 20000;
+
+  interface DemoInfoLoader {
+    Optional<DemoInfo> load(String username, long demoId);
+  }
+
+  // guarded by itself
+  private final Map<String, WatchedDemo> watchedDemos = Maps.newHashMap();
+
+  /**
+   * Wait until the specified demo's status or deployment status differs from
+   * the known values, or until {@link #MAX_WAIT_MILLIS} have passed.
+   * @return the most recently loaded {@link DemoInfo} (which is unchanged if
+   * the wait timed out), or {@link Optional#absent()} if the demo no longer
+   * exists.
+   */
+  Optional<DemoInfo> awaitChange(String username, long demoId, DemoStatus knownStatus,
+      String knownDeploymentStatus, DemoInfoLoader loader) throws InterruptedException {
+    Utils.checkAllParamsNotNull(username, loader);
+
+    long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+    WatchedDemo watched = this.acquire(username + "/" + demoId);
+    try {
+      while (true) {
+        long now = System.currentTimeMillis();
+        synchronized (watched) {
+          if (watched.latest != null && (now >= deadline || !watched.latest.isPresent()
+              || hasChanged(watched.latest.get(), knownStatus, knownDeploymentStatus))) {
+            return watched.latest;
+          }
+          if (watched.polling) {
+            // woken up early by the poller, when it's done
+            watched.wait(POLL_INTERVAL_MILLIS);
+            continue;
+          }
+          long nextPollAt = watched.loadedAtMillis + POLL_INTERVAL_MILLIS;
+          if (now < nextPollAt) {
+            watched.wait(Math.max(1, Math.min(nextPollAt, deadline) - now));
+            continue;
+          }
+          watched.polling = true;
+        }
+
+        Optional<DemoInfo> loaded = null;
+        try {
+          loaded = loader.load(username, demoId);
+        } finally {
+          synchronized (watched) {
+            watched.polling = false;
+            watched.loadedAtMillis = System.currentTimeMillis();
+            if (loaded != null) {
+              watched.latest = loaded;
+            }
+            watched.notifyAll();
+          }
+        }
+      }
+    } finally {
+      this.release(watched);
+    }
+  }
+
+  private static boolean hasChanged(DemoInfo demoInfo, DemoStatus knownStatus,
+      String knownDeploymentStatus) {
+    return demoInfo.getStatus() != knownStatus
+        || !Objects.equal(demoInfo.getDeploymentStatus(), knownDeploymentStatus);
+  }
+
+  private WatchedDemo acquire(String key) {
+    synchronized (this.watchedDemos) {
+      WatchedDemo watched = this.watchedDemos.get(key);
+      if (watched == null) {
+        watched = new WatchedDemo(key);
+        this.watchedDemos.put(key, watched);
+      }
+      watched.watcherCount++;
+      return watched;
+    }
+  }
+
+  // the last watcher to leave forgets the demo, so the next one polls right away
+  private void release(WatchedDemo watched) {
+    synchronized (this.watchedDemos) {
+      if (--watched.watcherCount == 0) {
+        this.watchedDemos.remove(watched.key);
+      }
+    }
+  }
+
+  private static final class WatchedDemo {
+    final String key;
+    // guarded by DemoChangeDetector.this.watchedDemos
+    int watcherCount;
+    // guarded by this
+    boolean polling;
+    long loadedAtMillis;
+    Optional<DemoInfo> latest;
+
+    WatchedDemo(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.google.solutions.cloud.app.api;
+
+import com.google.api.server.spi.ServiceException;
+
+/**
+ * HTTP 429 for API calls turned away by admission control. Endpoints doesn't
+ * let us set a Retry-After header, so the delay (if there is one) is part of
+ * the message, as well as available to server-side callers.
+ */
+public class TooManyRequestsException extends ServiceException {
+  private static final long serialVersionUID = 1L;
+
+  private static final int CODE = 429;
+
+  private final long retryAfterSeconds;
+
+  public TooManyRequestsException(String message) {
+    super(CODE, message);
+    this.retryAfterSeconds = 0;
+  }
+
+  public TooManyRequestsException(String message, long retryAfterSeconds) {
+    super(CODE, String.format("%s (retry after %d seconds)", message, retryAfterSeconds));
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  // 0 if retrying later won't help by itself
+  public long getRetryAfterSeconds() {
+    return this.retryAfterSeconds;
+  }
+}
@@ -0,0 +1,86 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.archive.ArchiveStore;
+import com.google.solutions.cloud.archive.ArchiveStores;
+import com.google.solutions.cloud.persistence.DemoArchiver;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler which moves demos torn down more than
+ * {@link Constants#DEMO_ARCHIVE_AGE_DAYS} days ago out of Datastore and into
+ * archive files (see {@link DemoArchiver}), a page of demos per task, each
+ * task enqueueing the next one. Does nothing unless an archive store is
+ * configured (see {@link ArchiveStores}).
+ */
+public class ArchiveDemosTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER =
+      Logger.getLogger(ArchiveDemosTaskServlet.class.toString());
+
+  public static final String QUEUE_NAME = "demo-archive";
+  static final String URL = "/tasks/archive-demos";
+  static final String CUTOFF_PARAM = "cutoff";
+  static final String CURSOR_PARAM = "cursor";
+
+  private final Optional<ArchiveStore> archiveStore = ArchiveStores.create();
+
+  // every task of a run uses the cutoff the run started with, so that the
+  // pages line up
+  static void enqueue(Date cutoff, Cursor cursor) {
+    TaskOptions task = TaskOptions.Builder.withUrl(URL)
+        .param(CUTOFF_PARAM, Long.toString(cutoff.getTime()));
+    if (cursor != null) {
+      task.param(CURSOR_PARAM, cursor.toWebSafeString());
+    }
+    QueueFactory.getQueue(QUEUE_NAME).add(task);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!this.archiveStore.isPresent()) {
+      LOGGER.info(String.format("not archiving demos, %s isn't set",
+          ArchiveStores.ARCHIVE_DIRECTORY_PROPERTY));
+      return;
+    }
+    enqueue(DateTime.now().minusDays(Constants.DEMO_ARCHIVE_AGE_DAYS).toDate(), null);
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!this.archiveStore.isPresent()) {
+      // e.g. archiving was turned off again; there's no point retrying
+      LOGGER.warning("dropping demo archive task, there's no archive store");
+      return;
+    }
+
+    Date cutoff = new Date(Long.parseLong(req.getParameter(CUTOFF_PARAM)));
+    String cursorParam = req.getParameter(CURSOR_PARAM);
+    DemoArchiver archiver = new DemoArchiver(DatastoreServiceFactory.getDatastoreService(),
+        DemoInfoPersistences.create(), this.archiveStore.get());
+    // a failure is thrown, so that the task is retried
+    Optional<Cursor> nextCursor = archiver.archivePage(cutoff,
+        cursorParam == null ? null : Cursor.fromWebSafeString(cursorParam));
+    if (nextCursor.isPresent()) {
+      enqueue(cutoff, nextCursor.get());
+    } else {
+      LOGGER.info(String.format("done archiving demos torn down before %s", cutoff));
+    }
+  }
+}
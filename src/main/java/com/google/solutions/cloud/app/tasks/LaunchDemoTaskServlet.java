@@ -0,0 +1,130 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.deployment.DeploymentTemplate;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.google.solutions.cloud.util.Utils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue handler which launches a single CREATED demo. Launches are
+ * fanned out through the {@value #QUEUE_NAME} queue, whose rate and
+ * concurrency limits (see queue.xml) keep bulk launches from overwhelming
+ * the Compute API.
+ */
+public class LaunchDemoTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(LaunchDemoTaskServlet.class.toString());
+
+  public static final String QUEUE_NAME = "demo-launch";
+  static final String URL = "/tasks/launch-demo";
+  static final String USERNAME_PARAM = "username";
+  static final String DEMO_ID_PARAM = "demoId";
+
+  // after this many failed attempts, the demo is marked FAILED
+  private static final int MAX_RETRIES = 5;
+  // upper bound on the number of tasks in a single Queue.add call
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager =
+      new DeploymentManager(new ComputeService());
+
+  public static void enqueueLaunches(String username, List<Long> demoIds) {
+    Utils.checkAllParamsNotNull(username, demoIds);
+
+    Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+    for (List<Long> batch : Lists.partition(demoIds, MAX_TASKS_PER_ADD)) {
+      List<TaskOptions> tasks = Lists.newArrayListWithCapacity(batch.size());
+      for (Long demoId : batch) {
+        tasks.add(TaskOptions.Builder.withUrl(URL)
+            .param(USERNAME_PARAM, username)
+            .param(DEMO_ID_PARAM, demoId.toString()));
+      }
+      queue.add(tasks);
+    }
+  }
+
+  // launches the demo shortly before the requested time; see ScheduledTasks
+  public static void enqueueScheduledLaunch(String username, Long demoId, Date launchTime) {
+    Utils.checkAllParamsNotNull(username, demoId, launchTime);
+
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(URL)
+        .param(USERNAME_PARAM, username)
+        .param(DEMO_ID_PARAM, demoId.toString())
+        .etaMillis(ScheduledTasks.getStaggeredLaunchEtaMillis(username, demoId, launchTime)));
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String username = req.getParameter(USERNAME_PARAM);
+    long demoId = Long.parseLong(req.getParameter(DEMO_ID_PARAM));
+
+    Optional<DemoInfo> demoInfoOpt = this.demoInfoPersistence.get(username, demoId);
+    if (!demoInfoOpt.isPresent()) {
+      LOGGER.warning(String.format("demo %d for user %s disappeared before launch",
+          demoId, username));
+      return;
+    }
+
+    // anything other than CREATED has already been launched (or deleted)
+    DemoInfo demoInfo = demoInfoOpt.get();
+    if (demoInfo.getStatus() != DemoStatus.CREATED) {
+      return;
+    }
+
+    // a retry launches again, which is a no-op if an earlier attempt got as
+    // far as creating the deployment (launches are idempotent), and so in
+    // effect only re-runs the status update that followed it
+    DeploymentTemplate template = demoInfo.getDeploymentTemplate();
+    try {
+      template.launch(this.deploymentManager);
+      this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.LAUNCHED);
+      ProbeReadinessTaskServlet.enqueueProbe(username, demoId);
+    } catch (RuntimeException e) {
+      // the header is missing (-1) outside of the task queue
+      int retryCount = req.getIntHeader("X-AppEngine-TaskRetryCount");
+      if (retryCount >= MAX_RETRIES) {
+        LOGGER.severe(String.format("giving up on launching demo %d for user %s: %s",
+            demoId, username, e));
+        this.giveUp(username, demoId, template);
+        return;
+      }
+      LOGGER.warning(String.format("failed to launch demo %d for user %s (attempt %d): %s",
+          demoId, username, retryCount + 1, e));
+      // any non-2xx response makes the task queue retry with backoff
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  // an earlier attempt may have created the deployment before failing, so
+  // it's torn down (if it's there) before the demo is marked FAILED, rather
+  // than left running with nothing pointing at it. launching the demo again
+  // starts over from scratch.
+  private void giveUp(String username, long demoId, DeploymentTemplate template) {
+    try {
+      template.teardown(this.deploymentManager);
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to tear down failed demo %d for user %s: %s",
+          demoId, username, e));
+    }
+    this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.FAILED);
+  }
+}
@@ -0,0 +1,95 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.google.solutions.cloud.persistence.RootDemoInfoPersistence;
+import com.google.solutions.cloud.user.info.UserInfo;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Moves every user's demos to root-level keys (see
+ * {@link RootDemoInfoPersistence}), a batch of users per task, each task
+ * enqueueing the next one. Started by an admin with a GET, once the app runs
+ * with root-level keys; until then, moved demos would disappear from their
+ * owners' lists. Users whose demos are touched first are moved on the spot,
+ * so this only catches up with the rest, and can safely be run again.
+ */
+public class MigrateDemoKeysTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER =
+      Logger.getLogger(MigrateDemoKeysTaskServlet.class.toString());
+
+  public static final String QUEUE_NAME = "demo-migration";
+  static final String URL = "/tasks/migrate-demo-keys";
+  static final String CURSOR_PARAM = "cursor";
+
+  private static final int USERS_PER_TASK = 50;
+
+  private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+  private final RootDemoInfoPersistence rootPersistence =
+      new RootDemoInfoPersistence(this.datastore);
+
+  static void enqueue(Cursor cursor) {
+    TaskOptions task = TaskOptions.Builder.withUrl(URL);
+    if (cursor != null) {
+      task.param(CURSOR_PARAM, cursor.toWebSafeString());
+    }
+    QueueFactory.getQueue(QUEUE_NAME).add(task);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!DemoInfoPersistences.isRootDemoKeysEnabled()) {
+      resp.sendError(HttpServletResponse.SC_CONFLICT, String.format(
+          "set %s to true before migrating", DemoInfoPersistences.ROOT_DEMO_KEYS_PROPERTY));
+      return;
+    }
+    enqueue(null);
+    resp.getWriter().println("migration started");
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!DemoInfoPersistences.isRootDemoKeysEnabled()) {
+      // e.g. the switch was turned off again; there's no point retrying
+      LOGGER.warning("dropping demo key migration task, root-level keys are disabled");
+      return;
+    }
+
+    FetchOptions options = FetchOptions.Builder.withLimit(USERS_PER_TASK);
+    String cursorParam = req.getParameter(CURSOR_PARAM);
+    if (cursorParam != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursorParam));
+    }
+    QueryResultList<Entity> users = this.datastore.prepare(
+        new Query(UserInfo.USER_KIND).setKeysOnly()).asQueryResultList(options);
+
+    int migratedCount = 0;
+    for (Entity user : users) {
+      migratedCount += this.rootPersistence.migrateUser(user.getKey().getName());
+    }
+    LOGGER.info(String.format("moved %d demos of %d users to root-level keys",
+        migratedCount, users.size()));
+
+    // a short batch is the last one
+    if (users.size() == USERS_PER_TASK) {
+      enqueue(users.getCursor());
+    } else {
+      LOGGER.info("demo key migration done");
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.google.solutions.cloud.util.Utils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue handler which probes a launched demo until the app on its
+ * deployment is serving, then records the demo as ready. Each probe also
+ * records the deployment's current status, so that the demo's event log
+ * shows when its instance started running. Probes which find
+ * the demo not ready yet fail the task, so that the {@value #QUEUE_NAME}
+ * queue retries it with backoff (see queue.xml); after
+ * {@link Constants#READINESS_PROBE_TIMEOUT_MINUTES} it gives up.
+ */
+public class ProbeReadinessTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(ProbeReadinessTaskServlet.class.toString());
+
+  public static final String QUEUE_NAME = "demo-readiness";
+  static final String URL = "/tasks/probe-readiness";
+  static final String USERNAME_PARAM = "username";
+  static final String DEMO_ID_PARAM = "demoId";
+  static final String LAUNCH_TIME_PARAM = "launchTime";
+
+  // no instance boots faster than this, so there's no point probing earlier
+  private static final long FIRST_PROBE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager =
+      new DeploymentManager(new ComputeService());
+
+  // called whenever a demo's deployment is (re)launched
+  public static void enqueueProbe(String username, Long demoId) {
+    Utils.checkAllParamsNotNull(username, demoId);
+
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(URL)
+        .param(USERNAME_PARAM, username)
+        .param(DEMO_ID_PARAM, demoId.toString())
+        .param(LAUNCH_TIME_PARAM, String.valueOf(System.currentTimeMillis()))
+        .countdownMillis(FIRST_PROBE_DELAY_MILLIS));
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String username = req.getParameter(USERNAME_PARAM);
+    long demoId = Long.parseLong(req.getParameter(DEMO_ID_PARAM));
+    Date launchTime = new Date(Long.parseLong(req.getParameter(LAUNCH_TIME_PARAM)));
+
+    // anything other than a LAUNCHED demo has been stopped or deleted since,
+    // and a ready one has been dealt with by an earlier probe
+    Optional<DemoInfo> demoInfoOpt = this.demoInfoPersistence.get(username, demoId);
+    if (!demoInfoOpt.isPresent() || demoInfoOpt.get().getStatus() != DemoStatus.LAUNCHED
+        || demoInfoOpt.get().getReadyTime() != null) {
+      return;
+    }
+
+    boolean ready;
+    try {
+      // record the instance's state as seen from here, so that the time it
+      // started RUNNING is logged (see DemoEventType) without waiting for
+      // someone to look at the demo
+      DemoInfo demoInfo = demoInfoOpt.get();
+      String recordedDeploymentStatus = demoInfo.getDeploymentStatus();
+      demoInfo.getDeploymentTemplate().updateDemoInfo(this.deploymentManager, demoInfo);
+      if (!Objects.equal(recordedDeploymentStatus, demoInfo.getDeploymentStatus())) {
+        this.demoInfoPersistence.updateDeploymentStatus(username, demoId,
+            demoInfo.getDeploymentStatus());
+      }
+      ready = "RUNNING".equals(demoInfo.getDeploymentStatus())
+          && demoInfo.getDeploymentTemplate().isReady(this.deploymentManager);
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to probe demo %d for user %s: %s",
+          demoId, username, e));
+      ready = false;
+    }
+
+    Date now = new Date();
+    if (ready) {
+      if (this.demoInfoPersistence.recordReady(username, demoId, launchTime, now)) {
+        LOGGER.info(String.format("demo %d for user %s ready %d seconds after launch",
+            demoId, username,
+            TimeUnit.MILLISECONDS.toSeconds(now.getTime() - launchTime.getTime())));
+      }
+      return;
+    }
+
+    if (now.getTime() - launchTime.getTime()
+        > TimeUnit.MINUTES.toMillis(Constants.READINESS_PROBE_TIMEOUT_MINUTES)) {
+      LOGGER.warning(String.format("giving up on probing demo %d for user %s: not ready after %d minutes",
+          demoId, username, Constants.READINESS_PROBE_TIMEOUT_MINUTES));
+      return;
+    }
+    // any non-2xx response makes the task queue retry with backoff
+    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+}
@@ -0,0 +1,34 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.solutions.cloud.persistence.DatastoreIdempotencyPersistence;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler which deletes expired idempotency records. Expired records
+ * are already ignored (and overwritten) by new requests; this just keeps
+ * them from piling up.
+ */
+public class PurgeIdempotencyRecordsServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER =
+      Logger.getLogger(PurgeIdempotencyRecordsServlet.class.toString());
+
+  private final DatastoreIdempotencyPersistence idempotencyPersistence =
+      new DatastoreIdempotencyPersistence(DatastoreServiceFactory.getDatastoreService(),
+          MemcacheServiceFactory.getMemcacheService());
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    int purgedCount = this.idempotencyPersistence.purgeExpired();
+    LOGGER.info(String.format("purged %d expired idempotency records", purgedCount));
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,76 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.deployment.DeploymentTemplate;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler which finds launched demos whose preemptible deployments have
+ * been preempted (their instances terminated by a preemption, rather than
+ * stopped by their owners), and restarts them. A failed relaunch is retried
+ * on the next run, without counting the same preemption again.
+ */
+public class RelaunchPreemptedDemosServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER =
+      Logger.getLogger(RelaunchPreemptedDemosServlet.class.toString());
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager =
+      new DeploymentManager(new ComputeService());
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    int relaunchedCount = 0;
+    for (Map.Entry<String, DemoInfo> entry : this.demoInfoPersistence
+        .findAllDemosWithStatus(DemoStatus.LAUNCHED).entries()) {
+      String username = entry.getKey();
+      DemoInfo demoInfo = entry.getValue();
+      DeploymentTemplate template = demoInfo.getDeploymentTemplate();
+
+      Optional<Date> preemptionTime;
+      try {
+        preemptionTime = template.getPreemptionTime(this.deploymentManager);
+        if (!preemptionTime.isPresent()) {
+          continue;
+        }
+      } catch (RuntimeException e) {
+        LOGGER.warning(String.format("failed to check demo %d for user %s for preemption: %s",
+            demoInfo.getDemoId(), username, e));
+        continue;
+      }
+
+      boolean relaunched = false;
+      try {
+        template.relaunch(this.deploymentManager);
+        relaunched = true;
+        relaunchedCount++;
+      } catch (RuntimeException e) {
+        LOGGER.warning(String.format("failed to relaunch preempted demo %d for user %s: %s",
+            demoInfo.getDemoId(), username, e));
+      }
+      this.demoInfoPersistence.recordPreemption(username, demoInfo.getDemoId(),
+          preemptionTime.get(), relaunched);
+      if (relaunched) {
+        ProbeReadinessTaskServlet.enqueueProbe(username, demoInfo.getDemoId());
+      }
+    }
+
+    LOGGER.info(String.format("relaunched %d preempted demos", relaunchedCount));
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,47 @@
+package com.google.solutions.cloud.app.tasks;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.hash.Hashing;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for tasks which run at a scheduled time, rather than right away.
+ */
+final class ScheduledTasks {
+  private static final long STAGGER_WINDOW_MILLIS =
+      TimeUnit.SECONDS.toMillis(Constants.SCHEDULED_LAUNCH_STAGGER_WINDOW_SECONDS);
+
+  private ScheduledTasks() {}
+
+  // scheduled launches are moved up (and teardowns pushed back) by a per-demo
+  // offset within the stagger window, so that hundreds of demos scheduled for
+  // the same time don't all hit the task queue (and the Compute API) at once.
+  // the offset is derived from the demo's identity, so rescheduling a demo
+  // gives the same ETA.
+  static long getStaggeredLaunchEtaMillis(String username, Long demoId, Date launchTime) {
+    checkNotNull(launchTime);
+    // never schedule a task in the past
+    return Math.max(System.currentTimeMillis(),
+        launchTime.getTime() - getStaggerOffsetMillis(username, demoId));
+  }
+
+  static long getStaggeredTeardownEtaMillis(String username, Long demoId, Date teardownTime) {
+    checkNotNull(teardownTime);
+    return teardownTime.getTime() + getStaggerOffsetMillis(username, demoId);
+  }
+
+  private static long getStaggerOffsetMillis(String username, Long demoId) {
+    Utils.checkAllParamsNotNull(username, demoId);
+    return Hashing.consistentHash(
+        Hashing.murmur3_32().newHasher()
+            .putUnencodedChars(username)
+            .putLong(demoId)
+            .hash(),
+        (int) STAGGER_WINDOW_MILLIS);
+  }
+}
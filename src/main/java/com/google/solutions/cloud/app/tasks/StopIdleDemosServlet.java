@@ -0,0 +1,95 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler which stops the deployments of launched demos that have been
+ * idle for longer than {@link Constants#IDLE_STOP_WINDOW_MINUTES}. Stopped
+ * demos are restarted the next time they're accessed through the API. Only
+ * demos whose instances report their activity (see
+ * {@link Constants#LAST_ACTIVITY_METADATA_KEY}) are ever considered idle.
+ */
+public class StopIdleDemosServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(StopIdleDemosServlet.class.toString());
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager =
+      new DeploymentManager(new ComputeService());
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Date cutoff = DateTime.now().minusMinutes(Constants.IDLE_STOP_WINDOW_MINUTES).toDate();
+
+    int stoppedCount = 0;
+    for (Map.Entry<String, DemoInfo> entry : this.demoInfoPersistence
+        .findAllDemosWithStatus(DemoStatus.LAUNCHED).entries()) {
+      String username = entry.getKey();
+      DemoInfo demoInfo = entry.getValue();
+
+      // demos launched (or resumed) within the window can't be idle yet;
+      // records written before statusChangeTime existed fall back to creationTime
+      Date activeSince = demoInfo.getStatusChangeTime() != null
+          ? demoInfo.getStatusChangeTime() : demoInfo.getCreationTime();
+      if (activeSince.after(cutoff)) {
+        continue;
+      }
+
+      try {
+        if (demoInfo.getDeploymentTemplate().isIdleSince(this.deploymentManager, cutoff)
+            && this.stop(username, demoInfo)) {
+          stoppedCount++;
+        }
+      } catch (RuntimeException e) {
+        // one bad demo shouldn't keep the rest from being stopped
+        LOGGER.warning(String.format("failed to stop idle demo %d for user %s: %s",
+            demoInfo.getDemoId(), username, e));
+      }
+    }
+
+    LOGGER.info(String.format("stopped %d idle demos", stoppedCount));
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  // marks the demo as STOPPED first, so that the terminated instance isn't
+  // mistaken for a preempted one and relaunched. if the instance can't be
+  // stopped, the demo goes back to LAUNCHED rather than being recorded as
+  // STOPPED while it keeps running (nothing would look at it again); it's
+  // then reconsidered once it's been idle for another window.
+  private boolean stop(String username, DemoInfo demoInfo) {
+    long demoId = demoInfo.getDemoId();
+    this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.STOPPED);
+    try {
+      demoInfo.getDeploymentTemplate().suspend(this.deploymentManager);
+      return true;
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to stop idle demo %d for user %s, "
+          + "marking it as launched again: %s", demoId, username, e));
+    }
+    try {
+      this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.LAUNCHED);
+    } catch (RuntimeException e) {
+      // the next API access resumes the demo, which sets it straight
+      LOGGER.severe(String.format("demo %d for user %s is recorded as stopped, but its "
+          + "deployment may still be running: %s", demoId, username, e));
+    }
+    return false;
+  }
+}
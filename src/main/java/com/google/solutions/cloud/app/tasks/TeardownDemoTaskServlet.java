@@ -0,0 +1,67 @@
+package com.google.solutions.cloud.app.tasks;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.deployment.DeploymentManager;
+import com.google.solutions.cloud.persistence.DemoInfoPersistence;
+import com.google.solutions.cloud.persistence.DemoInfoPersistences;
+import com.google.solutions.cloud.util.Utils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue handler which tears down a single demo at its scheduled
+ * teardown time. Failures are left to the task queue to retry.
+ */
+public class TeardownDemoTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(TeardownDemoTaskServlet.class.toString());
+
+  public static final String QUEUE_NAME = "demo-teardown";
+  static final String URL = "/tasks/teardown-demo";
+  static final String USERNAME_PARAM = "username";
+  static final String DEMO_ID_PARAM = "demoId";
+
+  private final DemoInfoPersistence demoInfoPersistence = DemoInfoPersistences.create();
+  private final DeploymentManager deploymentManager =
+      new DeploymentManager(new ComputeService());
+
+  public static void enqueueScheduledTeardown(String username, Long demoId, Date teardownTime) {
+    Utils.checkAllParamsNotNull(username, demoId, teardownTime);
+
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(URL)
+        .param(USERNAME_PARAM, username)
+        .param(DEMO_ID_PARAM, demoId.toString())
+        .etaMillis(ScheduledTasks.getStaggeredTeardownEtaMillis(username, demoId, teardownTime)));
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String username = req.getParameter(USERNAME_PARAM);
+    long demoId = Long.parseLong(req.getParameter(DEMO_ID_PARAM));
+
+    Optional<DemoInfo> demoInfoOpt = this.demoInfoPersistence.get(username, demoId);
+    if (!demoInfoOpt.isPresent()) {
+      LOGGER.info(String.format("demo %d for user %s was deleted before its scheduled teardown",
+          demoId, username));
+      return;
+    }
+
+    DemoInfo demoInfo = demoInfoOpt.get();
+    if (demoInfo.getStatus() == DemoStatus.DELETING) {
+      return;
+    }
+    demoInfo.getDeploymentTemplate().teardown(this.deploymentManager);
+    this.demoInfoPersistence.updateStatus(username, demoId, DemoStatus.DELETING);
+  }
+}
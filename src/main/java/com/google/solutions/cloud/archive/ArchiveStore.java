@@ -0,0 +1,66 @@
+package com.google.solutions.cloud.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Storage for archive files: a flat namespace of files which are written
+ * once, from start to end, and never changed afterwards, which is what
+ * Cloud Storage objects offer. {@link LocalDirectoryArchiveStore} stands in
+ * for it with a directory on a local disk.
+ */
+public interface ArchiveStore {
+
+  /**
+   * An archive file being written. It only shows up in {@link #list()} once
+   * it's been committed; closing it without committing it discards it, so
+   * readers never see a partially written archive.
+   */
+  interface NewArchive extends Closeable {
+
+    /**
+     * @return stream to write the file's contents to.
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Publish the file, once all of its contents have been written.
+     * @throws IOException if the file couldn't be published, in which case
+     * it's discarded when closed.
+     */
+    void commit() throws IOException;
+
+    /**
+     * Discard the file, unless it's been committed.
+     */
+    @Override
+    void close() throws IOException;
+  }
+
+  /**
+   * Create a new archive file.
+   * @param name name of the new file.
+   * @return the file, to be written and committed.
+   * @throws IOException if a file with the given name already exists, or
+   * the file couldn't be created.
+   */
+  NewArchive create(String name) throws IOException;
+
+  /**
+   * Open an existing archive file for reading.
+   * @param name name of the file, as returned by {@link #list()}.
+   * @return stream of the file's contents.
+   * @throws IOException if the file doesn't exist, or couldn't be opened.
+   */
+  InputStream open(String name) throws IOException;
+
+  /**
+   * List the (committed) archive files.
+   * @return the names of the files, in lexicographic order.
+   * @throws IOException if the files couldn't be listed.
+   */
+  List<String> list() throws IOException;
+}
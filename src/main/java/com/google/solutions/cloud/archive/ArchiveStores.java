@@ -0,0 +1,25 @@
+package com.google.solutions.cloud.archive;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+
+import java.io.File;
+
+/**
+ * Creates the {@link ArchiveStore} the app archives demos to: a
+ * {@link LocalDirectoryArchiveStore} in the directory named by the
+ * {@value #ARCHIVE_DIRECTORY_PROPERTY} system property (see
+ * appengine-web.xml). Archiving is off while the property isn't set.
+ */
+public final class ArchiveStores {
+  public static final String ARCHIVE_DIRECTORY_PROPERTY = "demo.archiveDirectory";
+
+  private ArchiveStores() {}
+
+  public static Optional<ArchiveStore> create() {
+    String directory = System.getProperty(ARCHIVE_DIRECTORY_PROPERTY);
+    return Strings.isNullOrEmpty(directory)
+        ? Optional.<ArchiveStore>absent()
+        : Optional.<ArchiveStore>of(new LocalDirectoryArchiveStore(new File(directory)));
+  }
+}
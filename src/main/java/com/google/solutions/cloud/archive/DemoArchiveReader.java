@@ -0,0 +1,128 @@
+package com.google.solutions.cloud.archive;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads back the demos in an archive file written by a
+ * {@link DemoArchiveWriter}, one at a time, so that archives of any size can
+ * be scanned in constant memory. Readers which don't need the demos'
+ * deployment templates (e.g. for reporting on statuses, zones or usage)
+ * skip over them without deserializing them, which is most of the work.
+ *
+ * <p>A demo is archived before it's deleted, so a demo whose deletion failed
+ * can show up in more than one archive; {@link DemoInfo#getDemoId()} tells
+ * the copies apart.
+ */
+public class DemoArchiveReader implements Closeable {
+
+  /**
+   * Callback for {@link DemoArchiveReader#scan}.
+   */
+  public interface Visitor {
+    void visit(String archiveName, DemoInfo demoInfo) throws IOException;
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final DataInputStream in;
+  private final boolean withTemplates;
+
+  public DemoArchiveReader(InputStream in, boolean withTemplates) throws IOException {
+    checkNotNull(in);
+    this.in = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE));
+    this.withTemplates = withTemplates;
+    int magic = this.in.readInt();
+    int formatVersion = this.in.readInt();
+    if (magic != DemoArchiveWriter.MAGIC || formatVersion != DemoArchiveWriter.FORMAT_VERSION) {
+      this.in.close();
+      throw new IOException(String.format("not a version %d demo archive",
+          DemoArchiveWriter.FORMAT_VERSION));
+    }
+  }
+
+  // read every demo in every archive of the store, oldest archive first,
+  // and return how many there were
+  public static int scan(ArchiveStore store, boolean withTemplates, Visitor visitor)
+      throws IOException {
+    checkNotNull(store);
+    checkNotNull(visitor);
+
+    int demoCount = 0;
+    for (String archiveName : store.list()) {
+      try (DemoArchiveReader reader = new DemoArchiveReader(store.open(archiveName),
+          withTemplates)) {
+        for (Optional<DemoInfo> demoInfo = reader.next(); demoInfo.isPresent();
+            demoInfo = reader.next()) {
+          visitor.visit(archiveName, demoInfo.get());
+          demoCount++;
+        }
+      }
+    }
+    return demoCount;
+  }
+
+  // the next demo in the archive, absent once the end has been reached. the
+  // demo's deployment template is only set if the reader was asked for them.
+  public Optional<DemoInfo> next() throws IOException {
+    try {
+      // only the end of the stream right between two records is the end of
+      // the archive; anywhere else, the archive is corrupt
+      int firstByte = this.in.read();
+      if (firstByte < 0) {
+        return Optional.absent();
+      }
+      int demoLength = (firstByte << 24) | (this.in.readUnsignedByte() << 16)
+          | (this.in.readUnsignedByte() << 8) | this.in.readUnsignedByte();
+      Entity demoEntity = this.readEntity(demoLength);
+      int templateLength = this.in.readInt();
+      if (!this.withTemplates) {
+        skipFully(this.in, templateLength);
+        return Optional.of(DemoInfo.fromDatastoreEntity(demoEntity));
+      }
+      Entity templateEntity = templateLength == DemoArchiveWriter.NO_TEMPLATE
+          ? null : this.readEntity(templateLength);
+      return Optional.of(DemoInfo.fromDatastoreEntities(demoEntity, templateEntity));
+    } catch (EOFException e) {
+      throw new IOException("corrupt demo archive: it ends in the middle of a record", e);
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+
+  private Entity readEntity(int length) throws IOException {
+    byte[] bytes = new byte[length];
+    this.in.readFully(bytes);
+    return EntityTranslator.createFromPbBytes(bytes);
+  }
+
+  private static void skipFully(DataInputStream in, int length) throws IOException {
+    int remaining = length;
+    while (remaining > 0) {
+      int skipped = in.skipBytes(remaining);
+      if (skipped <= 0) {
+        throw new EOFException("archive ends in the middle of a record");
+      }
+      remaining -= skipped;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.google.solutions.cloud.archive;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.common.base.Optional;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes demo records to an archive file, to be read back with a
+ * {@link DemoArchiveReader}. The file is gzipped, and holds a short header
+ * followed by one record per demo: the demo's Datastore entity, then its
+ * template entity (which is skipped by readers that don't need it), each
+ * serialized in Datastore's own protocol buffer format and prefixed with its
+ * length. Entities are kept whole, so that nothing is lost if an archived
+ * demo ever needs to be put back.
+ *
+ * <p>The archive is only published by {@link #commit()}; closing the writer
+ * without committing it (e.g. after a failed append) discards it.
+ */
+public class DemoArchiveWriter implements Closeable {
+  // "DEMA"
+  static final int MAGIC = 0x44454d41;
+  static final int FORMAT_VERSION = 1;
+  // the length written in place of a missing template
+  static final int NO_TEMPLATE = 0;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ArchiveStore.NewArchive archive;
+  private final DataOutputStream out;
+  private int recordCount;
+  private boolean committed;
+  private boolean closed;
+
+  public DemoArchiveWriter(ArchiveStore.NewArchive archive) throws IOException {
+    this.archive = checkNotNull(archive);
+    this.out = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(archive.getOutputStream(), BUFFER_SIZE), BUFFER_SIZE));
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(FORMAT_VERSION);
+  }
+
+  // append a demo, along with its template, if it has a separate one
+  // (records written before templates were split off embed theirs)
+  public void append(Entity demoEntity, Optional<Entity> templateEntity) throws IOException {
+    checkNotNull(demoEntity);
+    checkNotNull(templateEntity);
+    checkState(!this.committed && !this.closed, "archive is no longer open");
+
+    this.writeEntity(demoEntity);
+    if (templateEntity.isPresent()) {
+      this.writeEntity(templateEntity.get());
+    } else {
+      this.out.writeInt(NO_TEMPLATE);
+    }
+    this.recordCount++;
+  }
+
+  public int getRecordCount() {
+    return this.recordCount;
+  }
+
+  // finish the archive, and publish it
+  public void commit() throws IOException {
+    checkState(!this.committed && !this.closed, "archive is no longer open");
+    // writes the gzip trailer
+    this.out.close();
+    this.archive.commit();
+    this.committed = true;
+  }
+
+  /* (non-Javadoc)
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    // discards the archive unless it was committed
+    this.archive.close();
+  }
+
+  private void writeEntity(Entity e) throws IOException {
+    byte[] bytes = EntityTranslator.convertToPb(e).toByteArray();
+    this.out.writeInt(bytes.length);
+    this.out.write(bytes);
+  }
+}
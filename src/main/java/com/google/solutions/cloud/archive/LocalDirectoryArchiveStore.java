@@ -0,0 +1,125 @@
+package com.google.solutions.cloud.archive;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link ArchiveStore} in a directory on a local disk. Files are written
+ * under a temporary name, and renamed to their own once they're committed
+ * (or deleted, if they're closed without being committed).
+ */
+public class LocalDirectoryArchiveStore implements ArchiveStore {
+  static final String PARTIAL_SUFFIX = ".partial";
+
+  private final File directory;
+
+  public LocalDirectoryArchiveStore(File directory) {
+    this.directory = checkNotNull(directory);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.archive.ArchiveStore#create(java.lang.String)
+   */
+  @Override
+  public NewArchive create(String name) throws IOException {
+    File file = this.getFile(name);
+    File partialFile = this.getFile(name + PARTIAL_SUFFIX);
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException(String.format("failed to create %s", this.directory));
+    }
+    if (file.exists() || !partialFile.createNewFile()) {
+      throw new IOException(String.format("archive %s already exists", name));
+    }
+    return new LocalNewArchive(file, partialFile);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.archive.ArchiveStore#open(java.lang.String)
+   */
+  @Override
+  public InputStream open(String name) throws IOException {
+    return new FileInputStream(this.getFile(name));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.archive.ArchiveStore#list()
+   */
+  @Override
+  public List<String> list() throws IOException {
+    String[] names = this.directory.list();
+    if (names == null) {
+      // nothing's been archived yet
+      return Collections.emptyList();
+    }
+    List<String> completeNames = Lists.newArrayListWithCapacity(names.length);
+    for (String name : names) {
+      if (!name.endsWith(PARTIAL_SUFFIX)) {
+        completeNames.add(name);
+      }
+    }
+    Collections.sort(completeNames);
+    return completeNames;
+  }
+
+  private File getFile(String name) {
+    checkArgument(!name.isEmpty() && name.indexOf(File.separatorChar) < 0
+        && !name.startsWith("."), "invalid archive name: %s", name);
+    return new File(this.directory, name);
+  }
+
+  // written under the partial name, and renamed once committed
+  private static final class LocalNewArchive implements NewArchive {
+    private final File file;
+    private final File partialFile;
+    private final OutputStream out;
+    private boolean committed;
+
+    LocalNewArchive(File file, File partialFile) throws IOException {
+      this.file = file;
+      this.partialFile = partialFile;
+      this.out = new FileOutputStream(partialFile);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return this.out;
+    }
+
+    @Override
+    public void commit() throws IOException {
+      checkState(!this.committed, "archive already committed");
+      this.out.close();
+      if (!this.partialFile.renameTo(this.file)) {
+        throw new IOException(String.format("failed to rename %s to %s",
+            this.partialFile, this.file));
+      }
+      this.committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.committed) {
+        return;
+      }
+      try {
+        this.out.close();
+      } finally {
+        if (this.partialFile.exists() && !this.partialFile.delete()) {
+          throw new IOException(String.format("failed to delete %s", this.partialFile));
+        }
+      }
+    }
+  }
+}
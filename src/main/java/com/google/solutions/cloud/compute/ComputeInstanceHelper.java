@@ -12,6 +12,7 @@ import com.google.api.services.compute.model.ServiceAccount;
 import com.google.api.services.compute.model.Tags;
 import com.google.common.collect.FluentIterable;
 import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.util.Utils;
 
 import java.util.Arrays;
 
@@ -22,59 +23,78 @@ public final class ComputeInstanceHelper {
   static final String PROJECT_URL = String.format("%s/%s/projects/%s",
       URL_PREFIX, API_VERSION, Constants.PROJECT_ID);
 
-  static final String IMAGE_PROJECT_URL = String.format("%s/%s/projects/%s",
-      URL_PREFIX, API_VERSION, Constants.IMAGE_PROJECT_URL);
-
-  static final String MACHINE_TYPE_URL = String.format("%s/zones/%s/machineTypes/%s",
-      PROJECT_URL, Constants.DEFAULT_ZONE, Constants.MACHINE_TYPE);
-
-  static final String ZONE_URL = String.format("%s/zones/%s",
-      PROJECT_URL, Constants.DEFAULT_ZONE);
-
-  static final String IMAGE_URL = String.format("%s/global/images/%s",
-      IMAGE_PROJECT_URL, Constants.IMAGE_NAME);
-
   static final String NETWORK_URL = PROJECT_URL + "/global/networks/default";
 
+  static final String PREEMPTIBLE = "preemptible";
+
   static final String INSTANCE_DETAIL_URL_FORMAT = String.format(
-      "https://console.developers.google.com/project/%s/compute/instancesDetail/zones/%s/instances/%%s",
-      Constants.PROJECT_ID, Constants.DEFAULT_ZONE);
+      "https://console.developers.google.com/project/%s/compute/instancesDetail/zones/%%s/instances/%%s",
+      Constants.PROJECT_ID);
 
   static final String SSH_URL_FORMAT = String.format(
-      "https://cloudssh.developers.google.com/projects/%s/zones/%s/instances/%%s",
-      Constants.PROJECT_ID, Constants.DEFAULT_ZONE);
+      "https://cloudssh.developers.google.com/projects/%s/zones/%%s/instances/%%s",
+      Constants.PROJECT_ID);
 
-  public static String getInstanceDetailUrl(String instanceName) {
-    checkNotNull(instanceName);
-    return String.format(INSTANCE_DETAIL_URL_FORMAT, instanceName);
+  public static String getInstanceDetailUrl(String zone, String instanceName) {
+    Utils.checkAllParamsNotNull(zone, instanceName);
+    return String.format(INSTANCE_DETAIL_URL_FORMAT, zone, instanceName);
   }
 
-  public static String getSshUrl(String instanceName) {
-    checkNotNull(instanceName);
-    return String.format(SSH_URL_FORMAT, instanceName);
+  public static String getSshUrl(String zone, String instanceName) {
+    Utils.checkAllParamsNotNull(zone, instanceName);
+    return String.format(SSH_URL_FORMAT, zone, instanceName);
+  }
+
+  // GCE (and makeInstance) store the zone of an instance as a URL; instances
+  // templated before deployment profiles existed have no zone at all, and
+  // live in the default zone
+  public static String getZoneName(Instance instance) {
+    checkNotNull(instance);
+    String zone = instance.getZone();
+    return zone == null ? Constants.DEFAULT_ZONE : zone.substring(zone.lastIndexOf('/') + 1);
   }
 
   public static Instance makeDefaultInstance(String name) {
-    checkNotNull(name);
+    return makeDefaultInstance(name, SchedulingProfile.STANDARD);
+  }
 
+  public static Instance makeDefaultInstance(String name, SchedulingProfile schedulingProfile) {
+    return makeInstance(name, DeploymentProfile.makeDefaultProfile(), schedulingProfile);
+  }
+
+  public static Instance makeInstance(String name, DeploymentProfile deploymentProfile,
+      SchedulingProfile schedulingProfile) {
+    Utils.checkAllParamsNotNull(name, deploymentProfile, schedulingProfile);
+
+    String zoneUrl = String.format("%s/zones/%s", PROJECT_URL, deploymentProfile.getZone());
     return new Instance()
         .setName(name)
-        .setTags(new Tags().setItems(Constants.INSTANCE_TAGS))
-        .setMachineType(MACHINE_TYPE_URL)
-        .setDisks(Arrays.asList(makeDefaultBootDisk()))
+        .setZone(zoneUrl)
+        .setTags(new Tags().setItems(deploymentProfile.getTags()))
+        .setMachineType(String.format("%s/machineTypes/%s",
+            zoneUrl, deploymentProfile.getMachineType()))
+        .setDisks(Arrays.asList(makeBootDisk(deploymentProfile)))
         .setNetworkInterfaces(Arrays.asList(makeDefaultNetworkInterface()))
-        .setScheduling(makeDefaultScheduling())
-        .setServiceAccounts(Arrays.asList(makeDefaultServiceAccount()));
+        .setScheduling(makeScheduling(schedulingProfile))
+        .setServiceAccounts(Arrays.asList(makeServiceAccount(deploymentProfile)));
+  }
+
+  public static boolean isPreemptible(Instance instance) {
+    checkNotNull(instance);
+    Scheduling scheduling = instance.getScheduling();
+    return scheduling != null && Boolean.TRUE.equals(scheduling.get(PREEMPTIBLE));
   }
 
-  static AttachedDisk makeDefaultBootDisk() {
+  static AttachedDisk makeBootDisk(DeploymentProfile deploymentProfile) {
     return new AttachedDisk()
         .setBoot(true)
         .setType("PERSISTENT")
         .setMode("READ_WRITE")
         .setAutoDelete(true)
         .setInitializeParams(new AttachedDiskInitializeParams()
-            .setSourceImage(IMAGE_URL));
+            .setSourceImage(String.format("%s/%s/projects/%s/global/images/%s",
+                URL_PREFIX, API_VERSION, deploymentProfile.getImageProject(),
+                deploymentProfile.getImageName())));
   }
 
   static NetworkInterface makeDefaultNetworkInterface() {
@@ -86,16 +106,37 @@ public final class ComputeInstanceHelper {
          );
   }
 
+  static Scheduling makeScheduling(SchedulingProfile schedulingProfile) {
+    switch (schedulingProfile) {
+      case STANDARD:
+        return makeDefaultScheduling();
+      case PREEMPTIBLE:
+        return makePreemptibleScheduling();
+      default:
+        throw new IllegalArgumentException("unsupported SchedulingProfile: " + schedulingProfile);
+    }
+  }
+
   static Scheduling makeDefaultScheduling() {
     return new Scheduling()
         .setAutomaticRestart(true)
         .setOnHostMaintenance("MIGRATE");
   }
 
-  static ServiceAccount makeDefaultServiceAccount() {
+  // preemptible instances can neither be migrated nor automatically restarted
+  static Scheduling makePreemptibleScheduling() {
+    Scheduling scheduling = new Scheduling()
+        .setAutomaticRestart(false)
+        .setOnHostMaintenance("TERMINATE");
+    // the pinned client library has no typed accessor for this field
+    scheduling.set(PREEMPTIBLE, true);
+    return scheduling;
+  }
+
+  static ServiceAccount makeServiceAccount(DeploymentProfile deploymentProfile) {
     return new ServiceAccount()
         .setEmail("default")
-        .setScopes(FluentIterable.from(Constants.ADDITONAL_SERVICE_SCOPES)
+        .setScopes(FluentIterable.from(deploymentProfile.getAdditionalScopes())
             .append("https://www.googleapis.com/auth/compute").toList());
   }
 }
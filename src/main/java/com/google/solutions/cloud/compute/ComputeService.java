@@ -3,62 +3,269 @@ package com.google.solutions.cloud.compute;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.extensions.appengine.auth.oauth2.AppIdentityCredential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
 import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.ComputeRequest;
 import com.google.api.services.compute.ComputeScopes;
 import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationList;
+import com.google.api.services.compute.model.SerialPortOutput;
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.metrics.Tracing;
+import com.google.solutions.cloud.util.Utils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.net.HttpURLConnection;
 import java.security.PrivateKey;
 import java.util.Arrays;
+import java.util.List;
 
 public class ComputeService {
   private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
   private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
+  // if set, the shared client talks to the Compute API emulator at this root
+  // URL (e.g. "http://localhost:8089/"), without credentials, instead of the
+  // real thing; for offline performance testing in the dev server
+  public static final String ROOT_URL_PROPERTY = "demo.computeRootUrl";
+
+  // the Compute client (along with its credentials) is thread-safe, so it's
+  // built once per instance and shared, rather than once per request
+  private static final Supplier<Compute> SHARED_COMPUTE = Suppliers.memoize(
+      new Supplier<Compute>() {
+        @Override
+        public Compute get() {
+          String rootUrl = System.getProperty(ROOT_URL_PROPERTY);
+          if (rootUrl != null) {
+            return makeCompute(rootUrl, null);
+          }
+          return makeCompute(Compute.DEFAULT_ROOT_URL, getCredentialsForServerToServer());
+        }
+      });
+
   private final Compute compute;
 
   public ComputeService() {
-    this.compute = this.buildComputeService();
+    this(SHARED_COMPUTE.get());
+  }
+
+  // for fakes and emulators, which bring their own client
+  protected ComputeService(Compute compute) {
+    this.compute = checkNotNull(compute);
+  }
+
+  // a service backed by its own client, talking to the Compute API (or an
+  // emulator of it) at the given root URL without credentials
+  public static ComputeService forRootUrl(String rootUrl) {
+    checkNotNull(rootUrl);
+    return new ComputeService(makeCompute(rootUrl, null));
+  }
+
+  // build the shared client and fetch an access token ahead of time, so
+  // that the first request served by a new instance pays for neither
+  public static void warmUp() throws IOException {
+    HttpRequestInitializer credentials = SHARED_COMPUTE.get().getRequestFactory().getInitializer();
+    if (credentials == null) {
+      // talking to an emulator (see ROOT_URL_PROPERTY)
+      return;
+    }
+    if (credentials instanceof Credential) {
+      ((Credential) credentials).refreshToken();
+    } else {
+      // AppIdentityCredential asks the app identity service for a token on
+      // every request, which caches it from then on
+      AppIdentityServiceFactory.getAppIdentityService().getAccessToken(
+          Arrays.asList(ComputeScopes.COMPUTE));
+    }
   }
 
   public void createInstance(Instance instance) throws IOException {
     checkNotNull(instance);
-    this.compute.instances().insert(Constants.PROJECT_ID,
-        Constants.DEFAULT_ZONE, instance).execute();
+    execute("createInstance", this.compute.instances().insert(Constants.PROJECT_ID,
+        ComputeInstanceHelper.getZoneName(instance), instance));
   }
 
   public void deleteInstance(Instance instance) throws IOException {
     checkNotNull(instance);
-    this.compute.instances().delete(Constants.PROJECT_ID,
-        Constants.DEFAULT_ZONE, instance.getName()).execute();
+    execute("deleteInstance", this.compute.instances().delete(Constants.PROJECT_ID,
+        ComputeInstanceHelper.getZoneName(instance), instance.getName()));
+  }
+
+  public void stopInstance(Instance instance) throws IOException {
+    checkNotNull(instance);
+    execute("stopInstance", new InstanceActionRequest(this.compute, instance, "stop"));
+  }
+
+  public void startInstance(Instance instance) throws IOException {
+    checkNotNull(instance);
+    execute("startInstance", new InstanceActionRequest(this.compute, instance, "start"));
+  }
+
+  // lists all instances in the zone matching the given filter expression,
+  // following pagination so that callers get the complete result
+  public List<Instance> listInstances(String zone, String filter) throws IOException {
+    Utils.checkAllParamsNotNull(zone, filter);
+
+    List<Instance> instances = Lists.newArrayList();
+    String pageToken = null;
+    do {
+      InstanceList page = execute("listInstances",
+          this.compute.instances().list(Constants.PROJECT_ID, zone)
+              .setFilter(filter).setPageToken(pageToken));
+      if (page.getItems() != null) {
+        instances.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return instances;
+  }
+
+  // lists the zone operations (still kept by the API) which targeted the
+  // instance, e.g. its starts, stops and compute.instances.preempted system
+  // operations, following pagination
+  public List<Operation> listInstanceOperations(Instance instance) throws IOException {
+    checkNotNull(instance);
+
+    String zone = ComputeInstanceHelper.getZoneName(instance);
+    // filter values are regular expressions matched against the whole field
+    String filter = String.format("targetLink eq .*/zones/%s/instances/%s",
+        zone, checkNotNull(instance.getName()));
+    List<Operation> operations = Lists.newArrayList();
+    String pageToken = null;
+    do {
+      OperationList page = execute("listInstanceOperations",
+          this.compute.zoneOperations().list(Constants.PROJECT_ID, zone)
+              .setFilter(filter).setPageToken(pageToken));
+      if (page.getItems() != null) {
+        operations.addAll(page.getItems());
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return operations;
+  }
+
+  // fetches the instance's serial console output from the given byte offset
+  // on, so that callers polling a growing log only download the new part.
+  // absent if the instance doesn't exist (anymore).
+  public Optional<SerialConsoleOutput> getSerialPortOutput(Instance instance, long start)
+      throws IOException {
+    checkNotNull(instance);
+
+    SerialPortOutput output;
+    try {
+      // the pinned client library revision predates the start parameter
+      // (and the start/next response fields), so they go through GenericJson
+      output = execute("getSerialPortOutput",
+          this.compute.instances().getSerialPortOutput(Constants.PROJECT_ID,
+              ComputeInstanceHelper.getZoneName(instance), instance.getName())
+              .set("start", start));
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+        return Optional.absent();
+      }
+      throw e;
+    }
+
+    String contents = output.getContents() == null ? "" : output.getContents();
+    long actualStart = getLongField(output, "start", start);
+    return Optional.of(new SerialConsoleOutput()
+        .setContents(contents)
+        .setStart(actualStart)
+        .setNext(getLongField(output, "next",
+            actualStart + contents.getBytes(Charsets.UTF_8).length)));
   }
 
   public Optional<Instance> getInstanceInformation(Instance instanceTemplate) {
     checkNotNull(instanceTemplate);
     try {
-      return Optional.of(this.compute.instances().get(Constants.PROJECT_ID, Constants.DEFAULT_ZONE,
-          instanceTemplate.getName()).execute());
+      return Optional.of(execute("getInstanceInformation",
+          this.compute.instances().get(Constants.PROJECT_ID,
+              ComputeInstanceHelper.getZoneName(instanceTemplate), instanceTemplate.getName())));
     } catch (Exception e) {
       return Optional.absent();
     }
   }
 
-  private Compute buildComputeService() {
-    return new Compute(HTTP_TRANSPORT, JSON_FACTORY, getCredentialsForServerToServer());
+  // instances.stop/start requests, built directly on ComputeRequest so that
+  // they don't depend on the pinned client library revision exposing them
+  private static final class InstanceActionRequest extends ComputeRequest<Operation> {
+    @Key
+    private String project = Constants.PROJECT_ID;
+    @Key
+    private String zone;
+    @Key
+    private String instance;
+
+    InstanceActionRequest(Compute compute, Instance instance, String action) {
+      super(compute, "POST", "{project}/zones/{zone}/instances/{instance}/" + action,
+          null, Operation.class);
+      this.zone = ComputeInstanceHelper.getZoneName(instance);
+      this.instance = checkNotNull(instance.getName());
+    }
+  }
+
+  // executes the request, timing and tracing it as compute.<name> (and
+  // counting failures as compute.<name>.errors). the same as
+  // request.execute(), but with the response's size at hand for the trace.
+  private static <T> T execute(String name, ComputeRequest<T> request) throws IOException {
+    Metrics.Timer timer = Metrics.startTimer("compute." + name);
+    Tracing.Span span = Tracing.startSpan("compute." + name);
+    try {
+      if (request.getHttpContent() != null) {
+        span.set("requestBytes", request.getHttpContent().getLength());
+      }
+      HttpResponse response = request.executeUnparsed();
+      span.set("status", response.getStatusCode())
+          .set("responseBytes", response.getHeaders().getContentLength());
+      return response.parseAs(request.getResponseClass());
+    } catch (HttpResponseException e) {
+      span.set("status", e.getStatusCode());
+      timer.markError();
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      timer.markError();
+      throw e;
+    } finally {
+      span.close();
+      timer.stop();
+    }
+  }
+
+  private static Compute makeCompute(String rootUrl, HttpRequestInitializer credentials) {
+    return new Compute.Builder(HTTP_TRANSPORT, JSON_FACTORY, credentials)
+        .setRootUrl(rootUrl)
+        .build();
+  }
+
+  // int64 fields come back as JSON strings; unknown fields aren't converted
+  private static long getLongField(SerialPortOutput output, String name, long defaultValue) {
+    Object value = output.get(name);
+    return value == null ? defaultValue : Long.parseLong(value.toString());
   }
 
   private static SystemProperty.Environment.Value getEnvValue() {
@@ -0,0 +1,160 @@
+package com.google.solutions.cloud.compute;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.ImmutableList;
+import com.google.solutions.cloud.Constants;
+
+import java.util.List;
+
+/**
+ * "Java bean"-style class describing the machine type, zone, image, tags and
+ * scopes of the GCE instances created for a demo. Profiles are stored in
+ * Datastore, so that they can be changed (and picked per demo) without
+ * redeploying the application.
+ */
+public class DeploymentProfile {
+  public static final String DEPLOYMENT_PROFILE_KIND = "DeploymentProfile";
+  public static final String DEFAULT_PROFILE_NAME = "default";
+  public static final String DESCRIPTION = "description";
+  public static final String MACHINE_TYPE = "machineType";
+  public static final String ZONE = "zone";
+  public static final String IMAGE_PROJECT = "imageProject";
+  public static final String IMAGE_NAME = "imageName";
+  public static final String TAGS = "tags";
+  public static final String ADDITIONAL_SCOPES = "additionalScopes";
+
+  private String name;
+  private String description;
+  private String machineType;
+  private String zone;
+  private String imageProject;
+  private String imageName;
+  private List<String> tags;
+  private List<String> additionalScopes;
+
+  public String getName() {
+    return this.name;
+  }
+
+  public String getDescription() {
+    return this.description;
+  }
+
+  public String getMachineType() {
+    return this.machineType;
+  }
+
+  public String getZone() {
+    return this.zone;
+  }
+
+  public String getImageProject() {
+    return this.imageProject;
+  }
+
+  public String getImageName() {
+    return this.imageName;
+  }
+
+  public List<String> getTags() {
+    return this.tags;
+  }
+
+  public List<String> getAdditionalScopes() {
+    return this.additionalScopes;
+  }
+
+  public DeploymentProfile setName(String newName) {
+    this.name = newName;
+    return this;
+  }
+
+  public DeploymentProfile setDescription(String newDescription) {
+    this.description = newDescription;
+    return this;
+  }
+
+  public DeploymentProfile setMachineType(String newMachineType) {
+    this.machineType = newMachineType;
+    return this;
+  }
+
+  public DeploymentProfile setZone(String newZone) {
+    this.zone = newZone;
+    return this;
+  }
+
+  public DeploymentProfile setImageProject(String newImageProject) {
+    this.imageProject = newImageProject;
+    return this;
+  }
+
+  public DeploymentProfile setImageName(String newImageName) {
+    this.imageName = newImageName;
+    return this;
+  }
+
+  public DeploymentProfile setTags(List<String> newTags) {
+    this.tags = newTags;
+    return this;
+  }
+
+  public DeploymentProfile setAdditionalScopes(List<String> newAdditionalScopes) {
+    this.additionalScopes = newAdditionalScopes;
+    return this;
+  }
+
+  // the profile used under the default name until one is stored in Datastore
+  public static DeploymentProfile makeDefaultProfile() {
+    return new DeploymentProfile()
+        .setName(DEFAULT_PROFILE_NAME)
+        .setDescription("built-in default profile")
+        .setMachineType(Constants.MACHINE_TYPE)
+        .setZone(Constants.DEFAULT_ZONE)
+        .setImageProject(Constants.IMAGE_PROJECT_URL)
+        .setImageName(Constants.IMAGE_NAME)
+        .setTags(ImmutableList.copyOf(Constants.INSTANCE_TAGS))
+        .setAdditionalScopes(ImmutableList.copyOf(Constants.ADDITONAL_SERVICE_SCOPES));
+  }
+
+  public Entity toDatastoreEntity(Key parentKey) {
+    checkNotNull(parentKey);
+    checkState(this.name != null && !this.name.isEmpty(),
+        "cannot create a Datastore Entity for DeploymentProfile instance without name");
+
+    Entity e = new Entity(DEPLOYMENT_PROFILE_KIND, this.name, parentKey);
+    e.setUnindexedProperty(DESCRIPTION, this.description);
+    e.setUnindexedProperty(MACHINE_TYPE, this.machineType);
+    e.setUnindexedProperty(ZONE, this.zone);
+    e.setUnindexedProperty(IMAGE_PROJECT, this.imageProject);
+    e.setUnindexedProperty(IMAGE_NAME, this.imageName);
+    e.setUnindexedProperty(TAGS, this.tags);
+    e.setUnindexedProperty(ADDITIONAL_SCOPES, this.additionalScopes);
+    return e;
+  }
+
+  public static DeploymentProfile fromDatastoreEntity(Entity e) {
+    checkNotNull(e);
+
+    return new DeploymentProfile()
+        .setName(e.getKey().getName())
+        .setDescription((String) e.getProperty(DESCRIPTION))
+        .setMachineType((String) e.getProperty(MACHINE_TYPE))
+        .setZone((String) e.getProperty(ZONE))
+        .setImageProject((String) e.getProperty(IMAGE_PROJECT))
+        .setImageName((String) e.getProperty(IMAGE_NAME))
+        .setTags(getStringListProperty(e, TAGS))
+        .setAdditionalScopes(getStringListProperty(e, ADDITIONAL_SCOPES));
+  }
+
+  // Datastore stores empty lists as null
+  @SuppressWarnings("unchecked")
+  private static List<String> getStringListProperty(Entity e, String propertyName) {
+    Object value = e.getProperty(propertyName);
+    return value == null ? ImmutableList.<String>of() : ImmutableList.copyOf((List<String>) value);
+  }
+}
@@ -0,0 +1,84 @@
+package com.google.solutions.cloud.compute;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.services.compute.model.AccessConfig;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.NetworkInterface;
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.solutions.cloud.Constants;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether the demo app on an instance is serving, by fetching
+ * {@link Constants#READINESS_PROBE_PATH} on
+ * {@link Constants#READINESS_PROBE_PORT} of the instance's external IP. Any
+ * 2xx or 3xx response counts as serving.
+ *
+ * If the {@value #PROBE_HOST_PROPERTY} system property is set, probes go to
+ * that host instead (e.g. "localhost:8081"), so that a local HTTP server can
+ * stand in for the demo app when running in the dev server.
+ */
+public class ReadinessProber {
+  private static final Logger LOGGER = Logger.getLogger(ReadinessProber.class.toString());
+
+  public static final String PROBE_HOST_PROPERTY = "demo.readinessProbeHost";
+
+  private final URLFetchService urlFetchService;
+
+  public ReadinessProber(URLFetchService urlFetchService) {
+    this.urlFetchService = checkNotNull(urlFetchService);
+  }
+
+  public boolean isServing(Instance fullInstance) {
+    checkNotNull(fullInstance);
+
+    Optional<String> host = getProbeHost(fullInstance);
+    if (!host.isPresent()) {
+      // no external IP (yet)
+      return false;
+    }
+    try {
+      URL url = new URL("http://" + host.get() + Constants.READINESS_PROBE_PATH);
+      HTTPResponse response = this.urlFetchService.fetch(new HTTPRequest(url, HTTPMethod.GET,
+          FetchOptions.Builder.withDeadline(Constants.READINESS_PROBE_DEADLINE_SECONDS)
+              .doNotFollowRedirects()));
+      int code = response.getResponseCode();
+      return code >= 200 && code < 400;
+    } catch (IOException e) {
+      // refused connections and timeouts are expected while the app starts
+      LOGGER.fine(String.format("probe of instance %s failed: %s", fullInstance.getName(), e));
+      return false;
+    }
+  }
+
+  private static Optional<String> getProbeHost(Instance fullInstance) {
+    String hostOverride = System.getProperty(PROBE_HOST_PROPERTY);
+    if (!Strings.isNullOrEmpty(hostOverride)) {
+      return Optional.of(hostOverride);
+    }
+    if (fullInstance.getNetworkInterfaces() == null) {
+      return Optional.absent();
+    }
+    for (NetworkInterface networkInterface : fullInstance.getNetworkInterfaces()) {
+      if (networkInterface.getAccessConfigs() == null) {
+        continue;
+      }
+      for (AccessConfig accessConfig : networkInterface.getAccessConfigs()) {
+        if (!Strings.isNullOrEmpty(accessConfig.getNatIP())) {
+          return Optional.of(accessConfig.getNatIP() + ":" + Constants.READINESS_PROBE_PORT);
+        }
+      }
+    }
+    return Optional.absent();
+  }
+}
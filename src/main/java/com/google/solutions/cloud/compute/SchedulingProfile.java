@@ -0,0 +1,11 @@
+package com.google.solutions.cloud.compute;
+
+/**
+ * scheduling options for the GCE instances backing a demo. PREEMPTIBLE
+ * instances are much cheaper on quota, but may be terminated at any time
+ * (and are relaunched automatically when that happens), so they're best
+ * suited to short-lived demos.
+ */
+public enum SchedulingProfile {
+  STANDARD, PREEMPTIBLE
+}
@@ -0,0 +1,45 @@
+package com.google.solutions.cloud.compute;
+
+import java.io.Serializable;
+
+/**
+ * "Java bean"-style chunk of an instance's serial console output. Offsets
+ * are byte offsets into the instance's whole console output; start is where
+ * contents actually begins (later than requested if Compute has already
+ * discarded the requested bytes), and next is the offset to ask for to get
+ * whatever is written after this chunk.
+ */
+public class SerialConsoleOutput implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private String contents;
+  private long start;
+  private long next;
+
+  public String getContents() {
+    return this.contents;
+  }
+
+  public long getStart() {
+    return this.start;
+  }
+
+  public long getNext() {
+    return this.next;
+  }
+
+  public SerialConsoleOutput setContents(String newContents) {
+    this.contents = newContents;
+    return this;
+  }
+
+  public SerialConsoleOutput setStart(long newStart) {
+    this.start = newStart;
+    return this;
+  }
+
+  public SerialConsoleOutput setNext(long newNext) {
+    this.next = newNext;
+    return this;
+  }
+}
@@ -0,0 +1,129 @@
+package com.google.solutions.cloud.demo.info;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.Date;
+
+/**
+ * "Java bean"-style class for a single entry of a demo's append-only event
+ * log. Events are written as children of the demo, in the same transaction
+ * as the change they record, and are never updated; the demo's own record
+ * is the snapshot of its current state, so reads never replay events.
+ * Events outlive their demo, and keep the zone and image it had, so that
+ * fleet-wide latencies (e.g. from LAUNCHED to RUNNING) can be computed from
+ * them.
+ */
+public class DemoEvent {
+  public static final String DEMO_EVENT_KIND = "DemoEvent";
+  public static final String TYPE = "type";
+  public static final String TIME = "time";
+  public static final String DEMO_ID = "demoId";
+  public static final String OWNER = "owner";
+  public static final String ZONE = "zone";
+  public static final String IMAGE = "image";
+
+  private Long demoId;
+  private DemoEventType type;
+  private Date time;
+  private String owner;
+  private String zone;
+  private String image;
+
+  public Long getDemoId() {
+    return this.demoId;
+  }
+
+  public DemoEventType getType() {
+    return this.type;
+  }
+
+  public Date getTime() {
+    return this.time;
+  }
+
+  public String getOwner() {
+    return this.owner;
+  }
+
+  public String getZone() {
+    return this.zone;
+  }
+
+  public String getImage() {
+    return this.image;
+  }
+
+  public DemoEvent setDemoId(Long newDemoId) {
+    this.demoId = newDemoId;
+    return this;
+  }
+
+  public DemoEvent setType(DemoEventType newType) {
+    this.type = newType;
+    return this;
+  }
+
+  public DemoEvent setTime(Date newTime) {
+    this.time = newTime;
+    return this;
+  }
+
+  public DemoEvent setOwner(String newOwner) {
+    this.owner = newOwner;
+    return this;
+  }
+
+  public DemoEvent setZone(String newZone) {
+    this.zone = newZone;
+    return this;
+  }
+
+  public DemoEvent setImage(String newImage) {
+    this.image = newImage;
+    return this;
+  }
+
+  // event of the given type for the demo, as of its given record
+  public static DemoEvent of(DemoEventType type, DemoInfo demoInfo, Date time) {
+    Utils.checkAllParamsNotNull(type, demoInfo, time);
+
+    return new DemoEvent()
+        .setDemoId(demoInfo.getDemoId())
+        .setType(type)
+        .setTime(time)
+        .setOwner(demoInfo.getOwner())
+        .setZone(demoInfo.getZone())
+        .setImage(demoInfo.getImage());
+  }
+
+  public Entity toDatastoreEntity(Key demoKey) {
+    checkNotNull(demoKey);
+
+    Entity e = new Entity(DEMO_EVENT_KIND, demoKey);
+    // indexed
+    e.setProperty(TYPE, this.type.toString());
+    e.setProperty(TIME, this.time);
+    e.setProperty(DEMO_ID, demoKey.getId());
+    // unindexed
+    e.setUnindexedProperty(OWNER, this.owner);
+    e.setUnindexedProperty(ZONE, this.zone);
+    e.setUnindexedProperty(IMAGE, this.image);
+    return e;
+  }
+
+  public static DemoEvent fromDatastoreEntity(Entity e) {
+    checkNotNull(e);
+
+    return new DemoEvent()
+        .setDemoId((Long) e.getProperty(DEMO_ID))
+        .setType(DemoEventType.valueOf((String) e.getProperty(TYPE)))
+        .setTime((Date) e.getProperty(TIME))
+        .setOwner((String) e.getProperty(OWNER))
+        .setZone((String) e.getProperty(ZONE))
+        .setImage((String) e.getProperty(IMAGE));
+  }
+}
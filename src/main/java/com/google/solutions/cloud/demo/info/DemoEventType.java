@@ -0,0 +1,40 @@
+package com.google.solutions.cloud.demo.info;
+
+import com.google.common.base.Optional;
+
+/**
+ * Lifecycle events recorded in a demo's event log (see {@link DemoEvent}).
+ *
+ * LAUNCHED is recorded once the Compute API has accepted the launch, and
+ * RUNNING when the instance is first seen running after that: by the
+ * readiness probe, which checks on it every few seconds up to a minute, or
+ * by someone viewing the demo, whichever comes first. READY is recorded by
+ * the readiness probe (along with RUNNING, if that wasn't seen before), and
+ * PURGED when the demo's record is deleted.
+ */
+public enum DemoEventType {
+  CREATED, LAUNCHED, RUNNING, READY, STOPPED, FAILED, PREEMPTED, DELETING, PURGED;
+
+  // the event recorded when a demo moves to the given status; demos only
+  // start out CREATED
+  public static Optional<DemoEventType> forStatus(DemoStatus status) {
+    switch (status) {
+      case LAUNCHED:
+        return Optional.of(LAUNCHED);
+      case STOPPED:
+        return Optional.of(STOPPED);
+      case FAILED:
+        return Optional.of(FAILED);
+      case DELETING:
+        return Optional.of(DELETING);
+      default:
+        return Optional.absent();
+    }
+  }
+
+  // the event recorded when the given deployment status is first observed
+  public static Optional<DemoEventType> forDeploymentStatus(String deploymentStatus) {
+    return "RUNNING".equals(deploymentStatus)
+        ? Optional.of(RUNNING) : Optional.<DemoEventType>absent();
+  }
+}
@@ -1,13 +1,17 @@
 package com.google.solutions.cloud.demo.info;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.Lists;
 import com.google.solutions.cloud.deployment.DeploymentTemplate;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -17,27 +21,100 @@ import java.util.Map;
  */
 public class DemoInfo {
   public static final String DEMO_KIND = "Demo";
+  // the deployment template is kept in a child entity of the demo (with this
+  // kind and name), written once when the demo is created, so that status
+  // changes only rewrite the (much smaller) demo record
+  public static final String DEMO_TEMPLATE_KIND = "DemoTemplate";
+  public static final String DEMO_TEMPLATE_NAME = "template";
   public static final String STATUS = "status";
   public static final String DESCRIPTION = "description";
   public static final String CREATION_TIME = "creationTime";
+  public static final String STATUS_CHANGE_TIME = "statusChangeTime";
   public static final String DEPLOYMENT_TEMPLATE = "deploymentTemplate";
+  public static final String DEPLOYMENT_PROFILE = "deploymentProfile";
+  public static final String DEPLOYMENT_STATUS = "deploymentStatus";
+  public static final String VERSION = "version";
+  public static final String PREEMPTION_COUNT = "preemptionCount";
+  public static final String RESTART_COUNT = "restartCount";
+  public static final String WORKSHOP_ID = "workshopId";
+  public static final String ATTENDEE = "attendee";
+  public static final String SCHEDULED_LAUNCH_TIME = "scheduledLaunchTime";
+  public static final String SCHEDULED_TEARDOWN_TIME = "scheduledTeardownTime";
+  public static final String ZONE = "zone";
+  public static final String IMAGE = "image";
+  public static final String OWNER_PREFIXES = "ownerPrefixes";
+  // only set on root-level records (see RootDemoInfoPersistence); the owner
+  // of a record stored under its User is the parent key's name
+  public static final String OWNER = "owner";
+  public static final String READY_TIME = "readyTime";
+  public static final String TIME_TO_READY_MILLIS = "timeToReadyMillis";
+  public static final String PREVIOUS_DEMO_ID = "previousDemoId";
+  public static final String LAST_PREEMPTION_TIME = "lastPreemptionTime";
+
+  // reported in place of the compute API's RUNNING once the demo app on the
+  // instance has answered a readiness probe
+  public static final String READY_DEPLOYMENT_STATUS = "READY";
+
+  // owner prefixes are indexed up to this length, so that searching by a
+  // username prefix is an equality filter (and can be combined with a
+  // creation time range)
+  public static final int MAX_OWNER_PREFIX_LENGTH = 32;
 
   private Long demoId;
+  // bumped whenever anything visible about the demo changes
+  private long version;
+  // set on the stub records returned for conditional reads of unchanged demos
+  private boolean notModified;
   private DemoStatus status;
   private String description;
   private Date creationTime;
+  private Date statusChangeTime;
   private DeploymentTemplate deploymentTemplate;
+  private String deploymentProfile;
+  private long preemptionCount;
+  private long restartCount;
+  private String workshopId;
+  private String attendee;
+  private Date scheduledLaunchTime;
+  private Date scheduledTeardownTime;
+  private String zone;
+  // name of the image the deployment boots from, taken from the template on
+  // creation; kept on the record (and the demo's events) for reporting
+  private String image;
+  // set when a readiness probe first succeeds after a launch (or relaunch),
+  // and cleared on the next status change
+  private Date readyTime;
+  private Long timeToReadyMillis;
+  // when the preemption last counted in preemptionCount happened, so that an
+  // outage isn't counted again while relaunching it is retried
+  private Date lastPreemptionTime;
+  // username of the demo's owner; the parent key's name, or the owner
+  // property of a root-level record
+  private String owner;
+  // ID the demo had under its User, if it had to be given a new one when it
+  // was moved to a root-level key (see RootDemoInfoPersistence)
+  private Long previousDemoId;
 
   // TODO: enum this...
+  // the last deployment status observed through the compute API is saved, so
+  // that changes to it bump the version
   private String deploymentStatus;
   private Map<String, String> fullDeploymentMetadata;
-  // ...also note that the fields above are not saved to DataStore, as they are
-  // synthetic fields, populated a) by default b) based on compute API calls
+  // ...note that the field above is not saved to DataStore, as it's a
+  // synthetic field, populated a) by default b) based on compute API calls
 
   public Long getDemoId() {
     return this.demoId;
   }
 
+  public long getVersion() {
+    return this.version;
+  }
+
+  public boolean isNotModified() {
+    return this.notModified;
+  }
+
   public DemoStatus getStatus() {
     return this.status;
   }
@@ -50,10 +127,70 @@ public class DemoInfo {
     return this.creationTime;
   }
 
+  public Date getStatusChangeTime() {
+    return this.statusChangeTime;
+  }
+
   public DeploymentTemplate getDeploymentTemplate() {
     return this.deploymentTemplate;
   }
 
+  public String getDeploymentProfile() {
+    return this.deploymentProfile;
+  }
+
+  public long getPreemptionCount() {
+    return this.preemptionCount;
+  }
+
+  public long getRestartCount() {
+    return this.restartCount;
+  }
+
+  public String getWorkshopId() {
+    return this.workshopId;
+  }
+
+  public String getAttendee() {
+    return this.attendee;
+  }
+
+  public Date getScheduledLaunchTime() {
+    return this.scheduledLaunchTime;
+  }
+
+  public Date getScheduledTeardownTime() {
+    return this.scheduledTeardownTime;
+  }
+
+  public String getZone() {
+    return this.zone;
+  }
+
+  public String getImage() {
+    return this.image;
+  }
+
+  public Date getReadyTime() {
+    return this.readyTime;
+  }
+
+  public Long getTimeToReadyMillis() {
+    return this.timeToReadyMillis;
+  }
+
+  public Date getLastPreemptionTime() {
+    return this.lastPreemptionTime;
+  }
+
+  public String getOwner() {
+    return this.owner;
+  }
+
+  public Long getPreviousDemoId() {
+    return this.previousDemoId;
+  }
+
   public String getDeploymentStatus() {
     return this.deploymentStatus;
   }
@@ -67,6 +204,16 @@ public class DemoInfo {
     return this;
   }
 
+  public DemoInfo setVersion(long newVersion) {
+    this.version = newVersion;
+    return this;
+  }
+
+  public DemoInfo setNotModified(boolean newNotModified) {
+    this.notModified = newNotModified;
+    return this;
+  }
+
   public DemoInfo setStatus(DemoStatus newStatus) {
     this.status = newStatus;
     return this;
@@ -82,11 +229,86 @@ public class DemoInfo {
     return this;
   }
 
+  public DemoInfo setStatusChangeTime(Date newStatusChangeTime) {
+    this.statusChangeTime = newStatusChangeTime;
+    return this;
+  }
+
   public DemoInfo setDeploymentTemplate(DeploymentTemplate newDeploymentTemplate) {
     this.deploymentTemplate = newDeploymentTemplate;
     return this;
   }
 
+  public DemoInfo setDeploymentProfile(String newDeploymentProfile) {
+    this.deploymentProfile = newDeploymentProfile;
+    return this;
+  }
+
+  public DemoInfo setPreemptionCount(long newPreemptionCount) {
+    this.preemptionCount = newPreemptionCount;
+    return this;
+  }
+
+  public DemoInfo setRestartCount(long newRestartCount) {
+    this.restartCount = newRestartCount;
+    return this;
+  }
+
+  public DemoInfo setWorkshopId(String newWorkshopId) {
+    this.workshopId = newWorkshopId;
+    return this;
+  }
+
+  public DemoInfo setAttendee(String newAttendee) {
+    this.attendee = newAttendee;
+    return this;
+  }
+
+  public DemoInfo setScheduledLaunchTime(Date newScheduledLaunchTime) {
+    this.scheduledLaunchTime = newScheduledLaunchTime;
+    return this;
+  }
+
+  public DemoInfo setScheduledTeardownTime(Date newScheduledTeardownTime) {
+    this.scheduledTeardownTime = newScheduledTeardownTime;
+    return this;
+  }
+
+  public DemoInfo setZone(String newZone) {
+    this.zone = newZone;
+    return this;
+  }
+
+  public DemoInfo setImage(String newImage) {
+    this.image = newImage;
+    return this;
+  }
+
+  public DemoInfo setReadyTime(Date newReadyTime) {
+    this.readyTime = newReadyTime;
+    return this;
+  }
+
+  public DemoInfo setTimeToReadyMillis(Long newTimeToReadyMillis) {
+    this.timeToReadyMillis = newTimeToReadyMillis;
+    return this;
+  }
+
+  public DemoInfo setLastPreemptionTime(Date newLastPreemptionTime) {
+    this.lastPreemptionTime = newLastPreemptionTime;
+    return this;
+  }
+
+  public DemoInfo setOwner(String newOwner) {
+    this.owner = newOwner;
+    return this;
+  }
+
+  public DemoInfo setPreviousDemoId(Long newPreviousDemoId) {
+    this.previousDemoId = newPreviousDemoId;
+    return this;
+  }
+
   public DemoInfo setDeploymentStatus(String newDeploymentStatus) {
     this.deploymentStatus = newDeploymentStatus;
     return this;
@@ -97,6 +319,44 @@ public class DemoInfo {
     return this;
   }
 
+  // copy of this record with only the fields which are part of the given
+  // view; used for records about to be returned to a client, which may be
+  // shared with other requests (so they can't just be cleared in place)
+  public DemoInfo toView(DemoInfoView view) {
+    checkNotNull(view);
+
+    if (view == DemoInfoView.FULL) {
+      return this;
+    }
+
+    DemoInfo viewed = new DemoInfo()
+        .setDemoId(this.demoId)
+        .setOwner(this.owner)
+        .setVersion(this.version)
+        .setNotModified(this.notModified)
+        .setStatus(this.status)
+        .setDescription(this.description)
+        .setCreationTime(this.creationTime)
+        .setDeploymentStatus(this.deploymentStatus);
+    if (view == DemoInfoView.STANDARD) {
+      viewed.setStatusChangeTime(this.statusChangeTime)
+          .setDeploymentProfile(this.deploymentProfile)
+          .setZone(this.zone)
+          .setImage(this.image)
+          .setReadyTime(this.readyTime)
+          .setTimeToReadyMillis(this.timeToReadyMillis)
+          .setPreviousDemoId(this.previousDemoId)
+          .setPreemptionCount(this.preemptionCount)
+          .setLastPreemptionTime(this.lastPreemptionTime)
+          .setRestartCount(this.restartCount)
+          .setWorkshopId(this.workshopId)
+          .setAttendee(this.attendee)
+          .setScheduledLaunchTime(this.scheduledLaunchTime)
+          .setScheduledTeardownTime(this.scheduledTeardownTime)
+          .setFullDeploymentMetadta(this.fullDeploymentMetadata);
+    }
+    return viewed;
+  }
 
   public Entity toDatastoreEntity(Key parentKey) {
     checkNotNull(parentKey);
@@ -107,27 +367,153 @@ public class DemoInfo {
     } else {
       e = new Entity(DEMO_KIND, parentKey);
     }
+    return this.setEntityProperties(e, parentKey.getName());
+  }
+
+  // root-level record, i.e. one without a parent, naming its owner in an
+  // indexed property instead
+  public Entity toRootDatastoreEntity() {
+    checkNotNull(this.owner);
+
+    Entity e;
+    if (this.demoId != null) {
+      e = new Entity(DEMO_KIND, this.demoId);
+    } else {
+      e = new Entity(DEMO_KIND);
+    }
+    e.setProperty(OWNER, this.owner);
+    return this.setEntityProperties(e, this.owner);
+  }
 
+  private Entity setEntityProperties(Entity e, String owner) {
     // indexed
     e.setProperty(STATUS, this.status.toString());
     e.setProperty(CREATION_TIME, this.creationTime);
+    if (this.workshopId != null) {
+      e.setProperty(WORKSHOP_ID, this.workshopId);
+    }
+    if (this.zone != null) {
+      e.setProperty(ZONE, this.zone);
+    }
+    e.setProperty(OWNER_PREFIXES, makeOwnerPrefixes(owner));
     // unindexed
-    e.setUnindexedProperty(DEPLOYMENT_TEMPLATE, this.deploymentTemplate.toEmbeddedEntity());
     e.setUnindexedProperty(DESCRIPTION, this.description);
+    e.setUnindexedProperty(IMAGE, this.image);
+    e.setUnindexedProperty(STATUS_CHANGE_TIME, this.statusChangeTime);
+    e.setUnindexedProperty(DEPLOYMENT_PROFILE, this.deploymentProfile);
+    e.setUnindexedProperty(DEPLOYMENT_STATUS, this.deploymentStatus);
+    e.setUnindexedProperty(VERSION, this.version);
+    e.setUnindexedProperty(PREEMPTION_COUNT, this.preemptionCount);
+    e.setUnindexedProperty(RESTART_COUNT, this.restartCount);
+    e.setUnindexedProperty(ATTENDEE, this.attendee);
+    e.setUnindexedProperty(SCHEDULED_LAUNCH_TIME, this.scheduledLaunchTime);
+    e.setUnindexedProperty(SCHEDULED_TEARDOWN_TIME, this.scheduledTeardownTime);
+    e.setUnindexedProperty(READY_TIME, this.readyTime);
+    e.setUnindexedProperty(TIME_TO_READY_MILLIS, this.timeToReadyMillis);
+    e.setUnindexedProperty(LAST_PREEMPTION_TIME, this.lastPreemptionTime);
+    if (this.previousDemoId != null) {
+      e.setUnindexedProperty(PREVIOUS_DEMO_ID, this.previousDemoId);
+    }
 
     return e;
   }
 
-  @SuppressWarnings("unchecked")
+  // the demo's template record (see DEMO_TEMPLATE_KIND); the demo needs an ID
+  public Entity toTemplateDatastoreEntity(Key demoKey) {
+    checkNotNull(demoKey);
+    checkNotNull(this.deploymentTemplate);
+
+    Entity e = new Entity(createTemplateKey(demoKey));
+    e.setUnindexedProperty(DEPLOYMENT_TEMPLATE, this.deploymentTemplate.toEmbeddedEntity());
+    return e;
+  }
+
+  public static Key createTemplateKey(Key demoKey) {
+    checkNotNull(demoKey);
+    return KeyFactory.createKey(demoKey, DEMO_TEMPLATE_KIND, DEMO_TEMPLATE_NAME);
+  }
+
+  // the full record, given the demo's template record; that can be null for
+  // records written before templates were split out, which still embed theirs
+  public static DemoInfo fromDatastoreEntities(Entity e, Entity templateEntity) {
+    checkNotNull(e);
+
+    EmbeddedEntity template = (EmbeddedEntity) (templateEntity != null
+        ? templateEntity.getProperty(DEPLOYMENT_TEMPLATE) : e.getProperty(DEPLOYMENT_TEMPLATE));
+    checkState(template != null, "DemoInfo record, '%s', has no deployment template", e.getKey());
+    return fromDatastoreEntity(e)
+        .setDeploymentTemplate(DeploymentTemplate.fromEmbeddedEntity(template));
+  }
+
+  // the record without its deployment template, which is all that's needed
+  // (and all that's rewritten) to update it
   public static DemoInfo fromDatastoreEntity(Entity e) {
     checkNotNull(e);
 
     return new DemoInfo()
         .setDemoId(e.getKey().getId())
+        .setOwner(getOwner(e))
         .setStatus(DemoStatus.valueOf((String) e.getProperty(STATUS)))
         .setCreationTime((Date) e.getProperty(CREATION_TIME))
         .setDescription((String) e.getProperty(DESCRIPTION))
-        .setDeploymentTemplate(DeploymentTemplate.fromEmbeddedEntity(
-            (EmbeddedEntity) e.getProperty(DEPLOYMENT_TEMPLATE)));
+        .setStatusChangeTime((Date) e.getProperty(STATUS_CHANGE_TIME))
+        .setDeploymentProfile((String) e.getProperty(DEPLOYMENT_PROFILE))
+        .setDeploymentStatus((String) e.getProperty(DEPLOYMENT_STATUS))
+        .setVersion(getLongProperty(e, VERSION))
+        .setPreemptionCount(getLongProperty(e, PREEMPTION_COUNT))
+        .setLastPreemptionTime((Date) e.getProperty(LAST_PREEMPTION_TIME))
+        .setRestartCount(getLongProperty(e, RESTART_COUNT))
+        .setWorkshopId((String) e.getProperty(WORKSHOP_ID))
+        .setAttendee((String) e.getProperty(ATTENDEE))
+        .setScheduledLaunchTime((Date) e.getProperty(SCHEDULED_LAUNCH_TIME))
+        .setScheduledTeardownTime((Date) e.getProperty(SCHEDULED_TEARDOWN_TIME))
+        .setZone((String) e.getProperty(ZONE))
+        .setImage((String) e.getProperty(IMAGE))
+        .setReadyTime((Date) e.getProperty(READY_TIME))
+        .setTimeToReadyMillis((Long) e.getProperty(TIME_TO_READY_MILLIS))
+        .setPreviousDemoId((Long) e.getProperty(PREVIOUS_DEMO_ID));
+  }
+
+  // stub record for a conditional read of an unchanged demo; only the small,
+  // indexed-or-scalar properties are read, and the deployment template (the
+  // expensive part to deserialize) is left out
+  public static DemoInfo notModifiedFromDatastoreEntity(Entity e) {
+    checkNotNull(e);
+
+    return new DemoInfo()
+        .setDemoId(e.getKey().getId())
+        .setVersion(getLongProperty(e, VERSION))
+        .setStatus(DemoStatus.valueOf((String) e.getProperty(STATUS)))
+        .setDeploymentStatus((String) e.getProperty(DEPLOYMENT_STATUS))
+        .setNotModified(true);
+  }
+
+  // the owner of either kind of record: the parent's name, or (for a
+  // root-level record) the owner property
+  public static String getOwner(Entity e) {
+    checkNotNull(e);
+    return e.getParent() == null ? (String) e.getProperty(OWNER) : e.getParent().getName();
+  }
+
+  // every prefix of the owner's username, up to MAX_OWNER_PREFIX_LENGTH
+  // (the full username is always included)
+  private static List<String> makeOwnerPrefixes(String owner) {
+    List<String> prefixes = Lists.newArrayList();
+    if (owner == null || owner.isEmpty()) {
+      return prefixes;
+    }
+    for (int i = 1; i <= Math.min(owner.length(), MAX_OWNER_PREFIX_LENGTH); i++) {
+      prefixes.add(owner.substring(0, i));
+    }
+    if (owner.length() > MAX_OWNER_PREFIX_LENGTH) {
+      prefixes.add(owner);
+    }
+    return prefixes;
+  }
+
+  // counters are missing from records written before they were introduced
+  private static long getLongProperty(Entity e, String propertyName) {
+    Object value = e.getProperty(propertyName);
+    return value == null ? 0L : (Long) value;
   }
 }
@@ -0,0 +1,42 @@
+package com.google.solutions.cloud.demo.info;
+
+import java.util.List;
+
+/**
+ * "Java bean"-style list of {@link DemoInfo} records, along with the version
+ * of the list they were read at. If a conditional read finds that the list
+ * hasn't changed since the version the client already has, items is left
+ * empty and notModified is set.
+ */
+public class DemoInfoCollection {
+  private long version;
+  private boolean notModified;
+  private List<DemoInfo> items;
+
+  public long getVersion() {
+    return this.version;
+  }
+
+  public boolean isNotModified() {
+    return this.notModified;
+  }
+
+  public List<DemoInfo> getItems() {
+    return this.items;
+  }
+
+  public DemoInfoCollection setVersion(long newVersion) {
+    this.version = newVersion;
+    return this;
+  }
+
+  public DemoInfoCollection setNotModified(boolean newNotModified) {
+    this.notModified = newNotModified;
+    return this;
+  }
+
+  public DemoInfoCollection setItems(List<DemoInfo> newItems) {
+    this.items = newItems;
+    return this;
+  }
+}
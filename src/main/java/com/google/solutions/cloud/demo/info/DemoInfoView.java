@@ -0,0 +1,17 @@
+package com.google.solutions.cloud.demo.info;
+
+/**
+ * how much of a {@link DemoInfo} record to return from the API.
+ *
+ * SUMMARY returns just enough to list demos: id, version, status,
+ * deployment status, description and creation time.
+ *
+ * STANDARD (the default) returns everything except the deployment template,
+ * which carries the whole compute instance definition and isn't needed to
+ * show or use a demo.
+ *
+ * FULL returns the complete record.
+ */
+public enum DemoInfoView {
+  SUMMARY, STANDARD, FULL
+}
@@ -0,0 +1,101 @@
+package com.google.solutions.cloud.demo.info;
+
+/**
+ * "Java bean"-style summary of the latencies between two lifecycle events
+ * (e.g. from LAUNCHED to RUNNING) over the demos launched in one zone from
+ * one image, as computed from their event logs (see {@link DemoEvent}).
+ * A truncated distribution only covers the most recent events, because
+ * there were too many to read them all.
+ */
+public class DemoLatencyDistribution {
+  private String zone;
+  private String image;
+  private long count;
+  private long meanMillis;
+  private long p50Millis;
+  private long p90Millis;
+  private long p99Millis;
+  private long maxMillis;
+  private boolean truncated;
+
+  public String getZone() {
+    return this.zone;
+  }
+
+  public String getImage() {
+    return this.image;
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  public long getMeanMillis() {
+    return this.meanMillis;
+  }
+
+  public long getP50Millis() {
+    return this.p50Millis;
+  }
+
+  public long getP90Millis() {
+    return this.p90Millis;
+  }
+
+  public long getP99Millis() {
+    return this.p99Millis;
+  }
+
+  public long getMaxMillis() {
+    return this.maxMillis;
+  }
+
+  public boolean isTruncated() {
+    return this.truncated;
+  }
+
+  public DemoLatencyDistribution setZone(String newZone) {
+    this.zone = newZone;
+    return this;
+  }
+
+  public DemoLatencyDistribution setImage(String newImage) {
+    this.image = newImage;
+    return this;
+  }
+
+  public DemoLatencyDistribution setCount(long newCount) {
+    this.count = newCount;
+    return this;
+  }
+
+  public DemoLatencyDistribution setMeanMillis(long newMeanMillis) {
+    this.meanMillis = newMeanMillis;
+    return this;
+  }
+
+  public DemoLatencyDistribution setP50Millis(long newP50Millis) {
+    this.p50Millis = newP50Millis;
+    return this;
+  }
+
+  public DemoLatencyDistribution setP90Millis(long newP90Millis) {
+    this.p90Millis = newP90Millis;
+    return this;
+  }
+
+  public DemoLatencyDistribution setP99Millis(long newP99Millis) {
+    this.p99Millis = newP99Millis;
+    return this;
+  }
+
+  public DemoLatencyDistribution setMaxMillis(long newMaxMillis) {
+    this.maxMillis = newMaxMillis;
+    return this;
+  }
+
+  public DemoLatencyDistribution setTruncated(boolean newTruncated) {
+    this.truncated = newTruncated;
+    return this;
+  }
+}
@@ -0,0 +1,30 @@
+package com.google.solutions.cloud.demo.info;
+
+import java.util.List;
+
+/**
+ * "Java bean"-style page of {@link DemoInfo} search results. nextPageToken is
+ * null on the last page.
+ */
+public class DemoSearchResults {
+  private List<DemoInfo> items;
+  private String nextPageToken;
+
+  public List<DemoInfo> getItems() {
+    return this.items;
+  }
+
+  public String getNextPageToken() {
+    return this.nextPageToken;
+  }
+
+  public DemoSearchResults setItems(List<DemoInfo> newItems) {
+    this.items = newItems;
+    return this;
+  }
+
+  public DemoSearchResults setNextPageToken(String newNextPageToken) {
+    this.nextPageToken = newNextPageToken;
+    return this;
+  }
+}
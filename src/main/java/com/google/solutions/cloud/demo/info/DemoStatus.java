@@ -2,7 +2,15 @@ package com.google.solutions.cloud.demo.info;
 
 /**
  * possible states for a given demo at any time.
+ *
+ * STOPPED demos still own their deployment resources, but those resources
+ * have been shut down after sitting idle; they are brought back up the next
+ * time the demo is accessed.
+ *
+ * FAILED demos could not be launched in the background (e.g. as part of a
+ * workshop), and whatever deployment resources they got as far as creating
+ * have been torn down; launching them again retries the launch.
  */
 public enum DemoStatus {
-  CREATED, LAUNCHED, DELETING
+  CREATED, LAUNCHED, STOPPED, FAILED, DELETING
 }
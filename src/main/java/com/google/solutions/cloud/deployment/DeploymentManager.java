@@ -2,29 +2,69 @@ package com.google.solutions.cloud.deployment;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.Operation;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
 import com.google.common.base.Optional;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.Constants;
 import com.google.solutions.cloud.compute.ComputeInstanceHelper;
 import com.google.solutions.cloud.compute.ComputeService;
+import com.google.solutions.cloud.compute.ReadinessProber;
+import com.google.solutions.cloud.compute.SerialConsoleOutput;
 import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.metrics.Tracing;
+
+import org.joda.time.DateTime;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class DeploymentManager {
   private static final Logger LOGGER = Logger.getLogger(DeploymentManager.class.toString());
+  // type of the system operation that terminates a preempted instance
+  private static final String PREEMPTED_OPERATION_TYPE = "compute.instances.preempted";
+  // operations which change whether an instance is running: API calls, and
+  // system events (e.g. a shutdown from within the instance)
+  private static final Set<String> STATUS_CHANGE_OPERATION_TYPES = ImmutableSet.of(
+      "start", "stop", PREEMPTED_OPERATION_TYPE, "compute.instances.guestTerminate");
   private final ComputeService computeService;
+  private final ReadinessProber readinessProber;
 
   public DeploymentManager(ComputeService computeService) {
+    this(computeService, new ReadinessProber(URLFetchServiceFactory.getURLFetchService()));
+  }
+
+  public DeploymentManager(ComputeService computeService, ReadinessProber readinessProber) {
     this.computeService = checkNotNull(computeService);
+    this.readinessProber = checkNotNull(readinessProber);
   }
 
+  // idempotent: an instance which already exists (e.g. created by an earlier
+  // attempt whose status update failed) counts as launched
   public void launch(SingleInstanceDeployment sid) {
-    try {
-      this.computeService.createInstance(sid.getInstanceTemplate());
+    Instance instanceTemplate = sid.getInstanceTemplate();
+    try (Tracing.Span span = Tracing.startSpan("deployment.launch")) {
+      span.set("instance", instanceTemplate.getName());
+      this.computeService.createInstance(instanceTemplate);
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() != HttpURLConnection.HTTP_CONFLICT) {
+        Throwables.propagate(e);
+      }
+      LOGGER.info(String.format("instance, %s, in zone %s, already exists; not creating it again",
+          instanceTemplate.getName(), instanceTemplate.getZone()));
     } catch (IOException e) {
       Throwables.propagate(e);
     }
@@ -32,7 +72,8 @@ public class DeploymentManager {
 
   public void teardown(SingleInstanceDeployment sid) {
     Instance instanceTemplate = sid.getInstanceTemplate();
-    try {
+    try (Tracing.Span span = Tracing.startSpan("deployment.teardown")) {
+      span.set("instance", instanceTemplate.getName());
       Optional<Instance> instance = this.computeService.getInstanceInformation(instanceTemplate);
       if (instance.isPresent()) {
         this.computeService.deleteInstance(instance.get());
@@ -47,15 +88,220 @@ public class DeploymentManager {
 
   public void updateDemoInfo(SingleInstanceDeployment sid, DemoInfo demoInfo) {
     Instance instanceTemplate = sid.getInstanceTemplate();
-    String instanceName = instanceTemplate.getName();
-    Optional<Instance> fullInstance = this.computeService.getInstanceInformation(instanceTemplate);
-    if (fullInstance.isPresent()) {
-      demoInfo.setDeploymentStatus(fullInstance.get().getStatus());
-      Map<String, String> fullDeploymentMetadata = ImmutableMap.of(
-          "instanceDetailURL", ComputeInstanceHelper.getInstanceDetailUrl(instanceName),
-          "sshURL", ComputeInstanceHelper.getSshUrl(instanceName));
-      demoInfo.setFullDeploymentMetadta(fullDeploymentMetadata);
+    try (Tracing.Span span = Tracing.startSpan("deployment.updateDemoInfo")) {
+      span.set("instance", instanceTemplate.getName());
+      Optional<Instance> fullInstance =
+          this.computeService.getInstanceInformation(instanceTemplate);
+      if (fullInstance.isPresent()) {
+        populateDemoInfo(demoInfo, fullInstance.get());
+      }
+    }
+  }
+
+  // equivalent to calling updateDemoInfo on each demo's deployment template,
+  // except that single instance deployments are looked up with one (paginated)
+  // list call per zone, rather than one call per instance
+  public void updateDemoInfos(Collection<DemoInfo> demoInfos) {
+    checkNotNull(demoInfos);
+
+    try (Tracing.Span span = Tracing.startSpan("deployment.updateDemoInfos")) {
+      span.set("demos", demoInfos.size());
+      Map<String, Map<String, DemoInfo>> demoInfosByZoneAndInstanceName = Maps.newHashMap();
+      Map<String, String> commonNamePrefixesByZone = Maps.newHashMap();
+      for (DemoInfo demoInfo : demoInfos) {
+        DeploymentTemplate template = demoInfo.getDeploymentTemplate();
+        if (!(template instanceof SingleInstanceDeployment)) {
+          template.updateDemoInfo(this, demoInfo);
+          continue;
+        }
+
+        Instance instanceTemplate = ((SingleInstanceDeployment) template).getInstanceTemplate();
+        String zone = ComputeInstanceHelper.getZoneName(instanceTemplate);
+        String instanceName = instanceTemplate.getName();
+        if (!demoInfosByZoneAndInstanceName.containsKey(zone)) {
+          demoInfosByZoneAndInstanceName.put(zone, Maps.<String, DemoInfo>newHashMap());
+          commonNamePrefixesByZone.put(zone, instanceName);
+        }
+        demoInfosByZoneAndInstanceName.get(zone).put(instanceName, demoInfo);
+        commonNamePrefixesByZone.put(zone,
+            Strings.commonPrefix(commonNamePrefixesByZone.get(zone), instanceName));
+      }
+
+      try {
+        for (Map.Entry<String, Map<String, DemoInfo>> zoneEntry
+            : demoInfosByZoneAndInstanceName.entrySet()) {
+          String zone = zoneEntry.getKey();
+          for (Instance instance : this.computeService.listInstances(zone,
+              String.format("name eq '%s.*'", commonNamePrefixesByZone.get(zone)))) {
+            DemoInfo demoInfo = zoneEntry.getValue().get(instance.getName());
+            if (demoInfo != null) {
+              populateDemoInfo(demoInfo, instance);
+            }
+          }
+        }
+      } catch (IOException e) {
+        Throwables.propagate(e);
+      }
+    }
+  }
+
+  private static void populateDemoInfo(DemoInfo demoInfo, Instance fullInstance) {
+    String instanceName = fullInstance.getName();
+    String zone = ComputeInstanceHelper.getZoneName(fullInstance);
+    // RUNNING only means the instance has booted; READY means the demo app
+    // on it has answered a probe since it was (re)launched
+    if ("RUNNING".equals(fullInstance.getStatus()) && demoInfo.getReadyTime() != null) {
+      demoInfo.setDeploymentStatus(DemoInfo.READY_DEPLOYMENT_STATUS);
+    } else {
+      demoInfo.setDeploymentStatus(fullInstance.getStatus());
+    }
+    Map<String, String> fullDeploymentMetadata = ImmutableMap.of(
+        "instanceDetailURL", ComputeInstanceHelper.getInstanceDetailUrl(zone, instanceName),
+        "sshURL", ComputeInstanceHelper.getSshUrl(zone, instanceName));
+    demoInfo.setFullDeploymentMetadta(fullDeploymentMetadata);
+  }
+
+  public void suspend(SingleInstanceDeployment sid) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.suspend")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      this.computeService.stopInstance(sid.getInstanceTemplate());
+    } catch (IOException e) {
+      Throwables.propagate(e);
+    }
+  }
+
+  public void resume(SingleInstanceDeployment sid) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.resume")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      this.computeService.startInstance(sid.getInstanceTemplate());
+    } catch (IOException e) {
+      Throwables.propagate(e);
+    }
+  }
+
+  // an instance is idle if it's running and its guest agent hasn't reported
+  // any activity since the cutoff. an instance without any reported activity
+  // has no agent (the default image has none), and so isn't known to
+  // be idle: it's never stopped.
+  public boolean isIdleSince(SingleInstanceDeployment sid, Date cutoff) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.isIdleSince")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      Optional<Instance> fullInstance = this.computeService.getInstanceInformation(
+          sid.getInstanceTemplate());
+      if (!fullInstance.isPresent() || !"RUNNING".equals(fullInstance.get().getStatus())) {
+        return false;
+      }
+      Optional<Date> lastActivityTime = getLastActivityTime(fullInstance.get());
+      return lastActivityTime.isPresent() && lastActivityTime.get().before(cutoff);
+    }
+  }
+
+  // when the deployment was preempted, if it's down because of that: only
+  // preemptible deployments are ever considered preempted, and only when
+  // their instance has terminated, and the last thing that happened to it was
+  // a compute.instances.preempted operation (rather than, say, its owner
+  // stopping it in the Console). an instance which is missing altogether was
+  // deleted rather than preempted, so it's only logged.
+  public Optional<Date> getPreemptionTime(SingleInstanceDeployment sid) {
+    Instance instanceTemplate = sid.getInstanceTemplate();
+    try (Tracing.Span span = Tracing.startSpan("deployment.getPreemptionTime")) {
+      span.set("instance", instanceTemplate.getName());
+      if (!ComputeInstanceHelper.isPreemptible(instanceTemplate)) {
+        return Optional.absent();
+      }
+      Optional<Instance> fullInstance =
+          this.computeService.getInstanceInformation(instanceTemplate);
+      if (!fullInstance.isPresent()) {
+        LOGGER.warning(String.format("instance, %s, in zone %s, of a launched demo not found; "
+            + "not treating it as preempted", instanceTemplate.getName(),
+            instanceTemplate.getZone()));
+        return Optional.absent();
+      }
+      if (!"TERMINATED".equals(fullInstance.get().getStatus())) {
+        return Optional.absent();
+      }
+
+      Optional<Operation> lastOperation = getLastStatusChange(
+          this.computeService.listInstanceOperations(instanceTemplate));
+      if (!lastOperation.isPresent()
+          || !PREEMPTED_OPERATION_TYPE.equals(lastOperation.get().getOperationType())) {
+        LOGGER.info(String.format("instance, %s, in zone %s, was terminated by %s; "
+            + "not treating it as preempted", instanceTemplate.getName(),
+            instanceTemplate.getZone(), lastOperation.isPresent()
+                ? lastOperation.get().getOperationType() : "an expired operation"));
+        return Optional.absent();
+      }
+      return Optional.of(DateTime.parse(lastOperation.get().getInsertTime()).toDate());
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  // a preempted instance still has its boot disk, so it's simply restarted
+  public void relaunch(SingleInstanceDeployment sid) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.relaunch")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      this.computeService.startInstance(sid.getInstanceTemplate());
+    } catch (IOException e) {
+      Throwables.propagate(e);
+    }
+  }
+
+  public boolean isReady(SingleInstanceDeployment sid) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.isReady")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      Optional<Instance> fullInstance = this.computeService.getInstanceInformation(
+          sid.getInstanceTemplate());
+      return fullInstance.isPresent() && "RUNNING".equals(fullInstance.get().getStatus())
+          && this.readinessProber.isServing(fullInstance.get());
+    }
+  }
+
+  public Optional<SerialConsoleOutput> getSerialConsoleOutput(SingleInstanceDeployment sid,
+      long start) {
+    try (Tracing.Span span = Tracing.startSpan("deployment.getSerialConsoleOutput")) {
+      span.set("instance", sid.getInstanceTemplate().getName());
+      return this.computeService.getSerialPortOutput(sid.getInstanceTemplate(), start);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static Optional<Date> getLastActivityTime(Instance instance) {
+    Metadata metadata = instance.getMetadata();
+    if (metadata == null || metadata.getItems() == null) {
+      return Optional.absent();
+    }
+    for (Metadata.Items item : metadata.getItems()) {
+      if (Constants.LAST_ACTIVITY_METADATA_KEY.equals(item.getKey())) {
+        try {
+          return Optional.of(DateTime.parse(item.getValue()).toDate());
+        } catch (IllegalArgumentException e) {
+          LOGGER.warning(String.format("instance, %s, has unparseable %s value: '%s'",
+              instance.getName(), Constants.LAST_ACTIVITY_METADATA_KEY, item.getValue()));
+        }
+      }
+    }
+    return Optional.absent();
+  }
+
+  // the most recent of the operations which succeeded in starting or
+  // stopping the instance; failed (re)starts don't count
+  private static Optional<Operation> getLastStatusChange(List<Operation> operations) {
+    Operation lastOperation = null;
+    DateTime lastInsertTime = null;
+    for (Operation operation : operations) {
+      if (!STATUS_CHANGE_OPERATION_TYPES.contains(operation.getOperationType())
+          || !"DONE".equals(operation.getStatus()) || operation.getError() != null) {
+        continue;
+      }
+      DateTime insertTime = DateTime.parse(operation.getInsertTime());
+      if (lastInsertTime == null || insertTime.isAfter(lastInsertTime)) {
+        lastOperation = operation;
+        lastInsertTime = insertTime;
+      }
     }
+    return Optional.fromNullable(lastOperation);
   }
 
   public void launch(DeploymentTemplate unsupported) {
@@ -69,4 +315,33 @@ public class DeploymentManager {
   public void updateDemoInfo(DeploymentTemplate unsupported) {
     throw new UnsupportedOperationException("unsupported template: " + unsupported);
   }
+
+  public void suspend(DeploymentTemplate unsupported) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public void resume(DeploymentTemplate unsupported) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public boolean isIdleSince(DeploymentTemplate unsupported, Date cutoff) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public Optional<Date> getPreemptionTime(DeploymentTemplate unsupported) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public void relaunch(DeploymentTemplate unsupported) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public boolean isReady(DeploymentTemplate unsupported) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
+
+  public Optional<SerialConsoleOutput> getSerialConsoleOutput(DeploymentTemplate unsupported,
+      long start) {
+    throw new UnsupportedOperationException("unsupported template: " + unsupported);
+  }
 }
@@ -4,13 +4,20 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.compute.SerialConsoleOutput;
 import com.google.solutions.cloud.demo.info.DemoInfo;
 
+import java.util.Date;
+
 public abstract class DeploymentTemplate {
   public static String TYPE = "type";
 
   public abstract DeploymentType getDeploymentType();
   public abstract EmbeddedEntity toEmbeddedEntity();
+  // name of the image the deployment boots from, for reporting; null if it
+  // can't be told from the template
+  public abstract String getImageName();
 
   public static DeploymentTemplate fromEmbeddedEntity(EmbeddedEntity e) {
     checkNotNull(e);
@@ -30,4 +37,13 @@ public abstract class DeploymentTemplate {
   public abstract void teardown(DeploymentManager deploymentManager);
   public abstract void updateDemoInfo(DeploymentManager deploymentManager,
       DemoInfo demoInfo);
+  public abstract void suspend(DeploymentManager deploymentManager);
+  public abstract void resume(DeploymentManager deploymentManager);
+  public abstract boolean isIdleSince(DeploymentManager deploymentManager,
+      Date cutoff);
+  public abstract Optional<Date> getPreemptionTime(DeploymentManager deploymentManager);
+  public abstract void relaunch(DeploymentManager deploymentManager);
+  public abstract boolean isReady(DeploymentManager deploymentManager);
+  public abstract Optional<SerialConsoleOutput> getSerialConsoleOutput(
+      DeploymentManager deploymentManager, long start);
 }
@@ -3,12 +3,20 @@ package com.google.solutions.cloud.deployment;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.compute.model.AttachedDisk;
 import com.google.api.services.compute.model.Instance;
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Text;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.solutions.cloud.compute.ComputeInstanceHelper;
+import com.google.solutions.cloud.compute.DeploymentProfile;
+import com.google.solutions.cloud.compute.SchedulingProfile;
+import com.google.solutions.cloud.compute.SerialConsoleOutput;
 import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.Date;
 
 public class SingleInstanceDeployment extends DeploymentTemplate {
   public static final String INSTANCE_TEMPLATE = "instanceTemplate";
@@ -32,9 +40,40 @@ public class SingleInstanceDeployment extends DeploymentTemplate {
     return DeploymentType.SINGLE_INSTANCE;
   }
 
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#getImageName()
+   */
+  @Override
+  public String getImageName() {
+    if (this.instanceTemplate == null || this.instanceTemplate.getDisks() == null) {
+      return null;
+    }
+    for (AttachedDisk disk : this.instanceTemplate.getDisks()) {
+      if (Boolean.TRUE.equals(disk.getBoot()) && disk.getInitializeParams() != null
+          && disk.getInitializeParams().getSourceImage() != null) {
+        // .../projects/<image project>/global/images/<image name>
+        String sourceImage = disk.getInitializeParams().getSourceImage();
+        return sourceImage.substring(sourceImage.lastIndexOf('/') + 1);
+      }
+    }
+    return null;
+  }
+
   public static SingleInstanceDeployment makeDefaultTemplate(String name) {
+    return makeDefaultTemplate(name, SchedulingProfile.STANDARD);
+  }
+
+  public static SingleInstanceDeployment makeDefaultTemplate(String name,
+      SchedulingProfile schedulingProfile) {
     return new SingleInstanceDeployment()
-        .setInstanceTemplate(ComputeInstanceHelper.makeDefaultInstance(name));
+        .setInstanceTemplate(ComputeInstanceHelper.makeDefaultInstance(name, schedulingProfile));
+  }
+
+  public static SingleInstanceDeployment makeTemplate(String name,
+      DeploymentProfile deploymentProfile, SchedulingProfile schedulingProfile) {
+    return new SingleInstanceDeployment()
+        .setInstanceTemplate(ComputeInstanceHelper.makeInstance(
+            name, deploymentProfile, schedulingProfile));
   }
 
   public static SingleInstanceDeployment fromEmbeddedEntity(EmbeddedEntity e) {
@@ -100,4 +139,68 @@ public class SingleInstanceDeployment extends DeploymentTemplate {
     checkNotNull(demoInfo);
     deploymentManager.updateDemoInfo(this, demoInfo);
   }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#suspend(com.google.solutions.cloud.deployment.DeploymentManager)
+   */
+  @Override
+  public void suspend(DeploymentManager deploymentManager) {
+    checkNotNull(deploymentManager);
+    deploymentManager.suspend(this);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#resume(com.google.solutions.cloud.deployment.DeploymentManager)
+   */
+  @Override
+  public void resume(DeploymentManager deploymentManager) {
+    checkNotNull(deploymentManager);
+    deploymentManager.resume(this);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#isIdleSince(com.google.solutions.cloud.deployment.DeploymentManager, java.util.Date)
+   */
+  @Override
+  public boolean isIdleSince(DeploymentManager deploymentManager, Date cutoff) {
+    Utils.checkAllParamsNotNull(deploymentManager, cutoff);
+    return deploymentManager.isIdleSince(this, cutoff);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#getPreemptionTime(com.google.solutions.cloud.deployment.DeploymentManager)
+   */
+  @Override
+  public Optional<Date> getPreemptionTime(DeploymentManager deploymentManager) {
+    checkNotNull(deploymentManager);
+    return deploymentManager.getPreemptionTime(this);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#relaunch(com.google.solutions.cloud.deployment.DeploymentManager)
+   */
+  @Override
+  public void relaunch(DeploymentManager deploymentManager) {
+    checkNotNull(deploymentManager);
+    deploymentManager.relaunch(this);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#isReady(com.google.solutions.cloud.deployment.DeploymentManager)
+   */
+  @Override
+  public boolean isReady(DeploymentManager deploymentManager) {
+    checkNotNull(deploymentManager);
+    return deploymentManager.isReady(this);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.deployment.DeploymentTemplate#getSerialConsoleOutput(com.google.solutions.cloud.deployment.DeploymentManager, long)
+   */
+  @Override
+  public Optional<SerialConsoleOutput> getSerialConsoleOutput(DeploymentManager deploymentManager,
+      long start) {
+    checkNotNull(deploymentManager);
+    return deploymentManager.getSerialConsoleOutput(this, start);
+  }
 }
@@ -0,0 +1,106 @@
+package com.google.solutions.cloud.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values (in
+ * microseconds) go into log-linear buckets, each power of two split into
+ * {@value #SUB_BUCKET_COUNT} sub-buckets, so recorded values keep about two
+ * significant digits of precision over the whole range while recording stays
+ * a couple of atomic increments. Values above 2^38 - 1 microseconds (about
+ * 76 hours) are clamped.
+ *
+ * <p>Reads aren't atomic with respect to concurrent writes: a snapshot taken
+ * under load may be off by the few values recorded while it was being taken.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 37;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void recordMicros(long micros) {
+    long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+    this.counts.incrementAndGet(bucketIndex(value));
+    this.totalCount.incrementAndGet();
+    this.totalMicros.addAndGet(value);
+
+    long max = this.maxMicros.get();
+    while (value > max && !this.maxMicros.compareAndSet(max, value)) {
+      max = this.maxMicros.get();
+    }
+  }
+
+  public long getCount() {
+    return this.totalCount.get();
+  }
+
+  public long getTotalMicros() {
+    return this.totalMicros.get();
+  }
+
+  public long getMaxMicros() {
+    return this.maxMicros.get();
+  }
+
+  // the smallest recorded value (to the histogram's precision) that at least
+  // the given fraction of recorded values are less than or equal to, or 0 if
+  // nothing's been recorded
+  public long getValueAtPercentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in [0, 100]");
+
+    long count = this.totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        // never report more than the largest value actually recorded
+        return Math.min(highestEquivalentValue(i), this.maxMicros.get());
+      }
+    }
+    return this.maxMicros.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      this.counts.set(i, 0);
+    }
+    this.totalCount.set(0);
+    this.totalMicros.set(0);
+    this.maxMicros.set(0);
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowest = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
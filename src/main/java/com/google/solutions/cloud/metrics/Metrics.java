@@ -0,0 +1,158 @@
+package com.google.solutions.cloud.metrics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-instance registry of named latency timers and event counters. Names are
+ * dotted paths like "compute.createInstance" or "persistence.get"; a timer's
+ * errors are counted under its name plus ".errors". Everything here is cheap
+ * enough to call on every request, and safe to call from any thread.
+ *
+ * <p>Like everything else in memory, metrics are per App Engine instance, and
+ * start over whenever an instance does.
+ */
+public final class Metrics {
+  private static final ConcurrentMap<String, LatencyHistogram> TIMERS =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+  private Metrics() {}
+
+  public static Timer startTimer(String name) {
+    return new Timer(name, getHistogram(name));
+  }
+
+  public static void recordLatency(String name, long duration, TimeUnit unit) {
+    getHistogram(name).recordMicros(unit.toMicros(duration));
+  }
+
+  public static void increment(String name) {
+    increment(name, 1);
+  }
+
+  public static void increment(String name, long delta) {
+    checkNotNull(name);
+    AtomicLong counter = COUNTERS.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = COUNTERS.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  public static long getCount(String name) {
+    AtomicLong counter = COUNTERS.get(checkNotNull(name));
+    return counter == null ? 0 : counter.get();
+  }
+
+  // counts a cache lookup as a hit or miss of the named cache
+  public static void recordCacheLookup(String cacheName, boolean hit) {
+    increment(cacheName + (hit ? ".hits" : ".misses"));
+  }
+
+  public static Map<String, LatencyHistogram> getTimers() {
+    return ImmutableSortedMap.copyOf(TIMERS);
+  }
+
+  public static Map<String, Long> getCounters() {
+    ImmutableSortedMap.Builder<String, Long> counters = ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+      counters.put(entry.getKey(), entry.getValue().get());
+    }
+    return counters.build();
+  }
+
+  public static void reset() {
+    TIMERS.clear();
+    COUNTERS.clear();
+  }
+
+  // wraps the given implementation of an interface so that each call of an
+  // interface method is timed (and traced) as <prefix>.<method name>, and
+  // each exception it throws counted as <prefix>.<method name>.errors
+  public static <T> T timed(Class<T> iface, final T delegate, final String prefix) {
+    checkArgument(iface.isInterface(), "%s isn't an interface", iface);
+    checkNotNull(delegate);
+    checkNotNull(prefix);
+
+    return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(delegate, args);
+            }
+            String name = prefix + "." + method.getName();
+            Timer timer = startTimer(name);
+            Tracing.Span span = Tracing.startSpan(name);
+            try {
+              return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+              timer.markError();
+              span.set("error", e.getCause().getClass().getSimpleName());
+              throw e.getCause();
+            } finally {
+              span.close();
+              timer.stop();
+            }
+          }
+        }));
+  }
+
+  private static LatencyHistogram getHistogram(String name) {
+    checkNotNull(name);
+    LatencyHistogram histogram = TIMERS.get(name);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = TIMERS.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * A single timed call, started by {@link Metrics#startTimer}. Stopped in a
+   * finally block; calls that fail are marked as errors before that.
+   */
+  public static final class Timer {
+    private final String name;
+    private final LatencyHistogram histogram;
+    private final long startNanos = System.nanoTime();
+    private boolean error;
+
+    private Timer(String name, LatencyHistogram histogram) {
+      this.name = name;
+      this.histogram = histogram;
+    }
+
+    public void markError() {
+      this.error = true;
+    }
+
+    public void stop() {
+      this.histogram.recordMicros(
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - this.startNanos));
+      if (this.error) {
+        increment(this.name + ".errors");
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.google.solutions.cloud.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.util.Utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Request-scoped tracing. A trace is started for each request (by
+ * TracingFilter), and spans are opened around the interesting parts of it:
+ * persistence calls, Datastore transactions and queries, deployment
+ * operations and Compute API calls. Spans are only recorded on the thread
+ * that started the trace; opening one without a trace is a cheap no-op.
+ *
+ * <p>Every trace is recorded, but only a sample of them
+ * ({@link Constants#TRACE_SAMPLE_RATE}) is logged, along with every trace
+ * which took at least {@link Constants#SLOW_TRACE_THRESHOLD_MILLIS}, so
+ * that slow requests are always there in full. Each logged trace is a
+ * single INFO line of JSON, prefixed with "trace ".
+ */
+public final class Tracing {
+  private static final Logger LOGGER = Logger.getLogger(Tracing.class.toString());
+
+  // spans past this many are dropped (and counted), to bound a trace's size
+  private static final int MAX_SPANS_PER_TRACE = 500;
+
+  private static final ThreadLocal<Trace> CURRENT_TRACE = new ThreadLocal<>();
+  private static final Span NOOP_SPAN = new Span(null, null, 0);
+  private static final Random RANDOM = new Random();
+
+  private Tracing() {}
+
+  // starts a trace of the current request, replacing any trace left behind
+  // on this thread. forceSampled logs the trace however long it takes.
+  public static void startTrace(String name, String traceId, boolean forceSampled) {
+    Utils.checkAllParamsNotNull(name, traceId);
+    boolean sampled = forceSampled || RANDOM.nextDouble() < Constants.TRACE_SAMPLE_RATE;
+    CURRENT_TRACE.set(new Trace(name, traceId, sampled));
+  }
+
+  public static String newTraceId() {
+    return String.format("%016x%016x", RANDOM.nextLong(), RANDOM.nextLong());
+  }
+
+  // ends the current trace (if there is one), logging it if it was sampled
+  // or slow
+  public static void endTrace() {
+    Trace trace = CURRENT_TRACE.get();
+    if (trace == null) {
+      return;
+    }
+    CURRENT_TRACE.remove();
+
+    long durationNanos = System.nanoTime() - trace.startNanos;
+    boolean slow = durationNanos
+        >= TimeUnit.MILLISECONDS.toNanos(Constants.SLOW_TRACE_THRESHOLD_MILLIS);
+    if (!trace.sampled && !slow) {
+      return;
+    }
+
+    Map<String, Object> logRecord = Maps.newLinkedHashMap();
+    logRecord.put("traceId", trace.traceId);
+    logRecord.put("name", trace.name);
+    logRecord.put("durationMicros", TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    logRecord.put("slow", slow);
+    if (trace.droppedSpanCount > 0) {
+      logRecord.put("droppedSpans", trace.droppedSpanCount);
+    }
+    List<Map<String, Object>> spanRecords = Lists.newArrayListWithCapacity(trace.spans.size());
+    for (Span span : trace.spans) {
+      spanRecords.add(span.toLogRecord(trace.startNanos));
+    }
+    logRecord.put("spans", spanRecords);
+    try {
+      LOGGER.info("trace " + JacksonFactory.getDefaultInstance().toString(logRecord));
+    } catch (IOException e) {
+      LOGGER.warning(String.format("failed to log trace %s: %s", trace.traceId, e));
+    }
+  }
+
+  // opens a span in the current trace, to be closed (with try-with-resources)
+  // when the work it covers is done
+  public static Span startSpan(String name) {
+    checkNotNull(name);
+    Trace trace = CURRENT_TRACE.get();
+    if (trace == null) {
+      return NOOP_SPAN;
+    }
+    if (trace.spans.size() >= MAX_SPANS_PER_TRACE) {
+      trace.droppedSpanCount++;
+      return NOOP_SPAN;
+    }
+    Span span = new Span(trace, name, trace.depth++);
+    trace.spans.add(span);
+    return span;
+  }
+
+  private static final class Trace {
+    private final String name;
+    private final String traceId;
+    private final boolean sampled;
+    private final long startNanos = System.nanoTime();
+    private final List<Span> spans = Lists.newArrayList();
+    private int depth;
+    private int droppedSpanCount;
+
+    Trace(String name, String traceId, boolean sampled) {
+      this.name = name;
+      this.traceId = traceId;
+      this.sampled = sampled;
+    }
+  }
+
+  /**
+   * A timed part of a trace, with attributes such as attempt counts and
+   * payload sizes. Spans nest: a span's depth is the number of spans which
+   * were open when it was.
+   */
+  public static final class Span implements AutoCloseable {
+    private final Trace trace;
+    private final String name;
+    private final int depth;
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private Map<String, Object> attributes;
+
+    private Span(Trace trace, String name, int depth) {
+      this.trace = trace;
+      this.name = name;
+      this.depth = depth;
+    }
+
+    public Span set(String key, Object value) {
+      if (this.trace != null && value != null) {
+        if (this.attributes == null) {
+          this.attributes = Maps.newLinkedHashMap();
+        }
+        this.attributes.put(key, value);
+      }
+      return this;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() {
+      if (this.trace != null && this.endNanos == 0) {
+        this.endNanos = System.nanoTime();
+        this.trace.depth--;
+      }
+    }
+
+    private Map<String, Object> toLogRecord(long traceStartNanos) {
+      Map<String, Object> logRecord = Maps.newLinkedHashMap();
+      logRecord.put("name", this.name);
+      logRecord.put("depth", this.depth);
+      logRecord.put("startMicros",
+          TimeUnit.NANOSECONDS.toMicros(this.startNanos - traceStartNanos));
+      // a span still open when the trace ended is logged without a duration
+      if (this.endNanos != 0) {
+        logRecord.put("durationMicros",
+            TimeUnit.NANOSECONDS.toMicros(this.endNanos - this.startNanos));
+      }
+      if (this.attributes != null) {
+        logRecord.put("attributes", this.attributes);
+      }
+      return logRecord;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
+import com.google.common.collect.TreeBasedTable;
+import com.google.common.collect.TreeMultimap;
+import com.google.solutions.cloud.demo.info.DemoEvent;
+import com.google.solutions.cloud.demo.info.DemoEventType;
+import com.google.solutions.cloud.demo.info.DemoLatencyDistribution;
+import com.google.solutions.cloud.metrics.LatencyHistogram;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link DemoEventPersistence} backed by Datastore. Events are children of
+ * their demo, under either key layout, but carry the demo's ID as an indexed
+ * property, so that they're found the same way under both.
+ *
+ * <p>Latencies are computed on the fly from at most {@value #MAX_EVENTS}
+ * events of each type, the most recent ones; the earlier events are looked
+ * up from {@value #FROM_EVENT_LOOKBACK_HOURS} hours before the given time,
+ * so that demos which e.g. launched just before it are still counted. When
+ * there are more events than that, the distributions only cover the most
+ * recent ones, and are marked as truncated.
+ */
+public class DatastoreDemoEventPersistence implements DemoEventPersistence {
+  private static final Logger LOGGER =
+      Logger.getLogger(DatastoreDemoEventPersistence.class.toString());
+
+  static final int MAX_EVENTS = 10000;
+  static final int FROM_EVENT_LOOKBACK_HOURS = 24;
+  static final String UNKNOWN = "(unknown)";
+
+  private static final int FETCH_CHUNK_SIZE = 500;
+
+  private final DatastoreService datastore;
+
+  public DatastoreDemoEventPersistence(DatastoreService datastore) {
+    this.datastore = checkNotNull(datastore);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoEventPersistence#getEvents(java.lang.Long)
+   */
+  @Override
+  public List<DemoEvent> getEvents(Long demoId) {
+    checkNotNull(demoId);
+
+    Query query = new Query(DemoEvent.DEMO_EVENT_KIND)
+        .setFilter(new Query.FilterPredicate(DemoEvent.DEMO_ID, FilterOperator.EQUAL, demoId))
+        .addSort(DemoEvent.TIME, SortDirection.ASCENDING);
+    List<DemoEvent> events = Lists.newArrayList();
+    for (Entity e : this.datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(FETCH_CHUNK_SIZE))) {
+      events.add(DemoEvent.fromDatastoreEntity(e));
+    }
+    return events;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoEventPersistence#getLatencies(com.google.solutions.cloud.demo.info.DemoEventType, com.google.solutions.cloud.demo.info.DemoEventType, java.util.Date)
+   */
+  @Override
+  public List<DemoLatencyDistribution> getLatencies(DemoEventType from, DemoEventType to,
+      Date since) {
+    Utils.checkAllParamsNotNull(from, to, since);
+
+    List<DemoEvent> toEvents = Lists.newArrayList();
+    for (Entity e : this.queryEvents(to, since, Optional.<Date>absent())) {
+      toEvents.add(DemoEvent.fromDatastoreEntity(e));
+    }
+    if (toEvents.isEmpty()) {
+      return Lists.newArrayList();
+    }
+
+    // times of the earlier events, by demo, up to the latest later event
+    TreeMultimap<Long, Long> fromTimesByDemo = TreeMultimap.create();
+    long lookbackMillis = TimeUnit.HOURS.toMillis(FROM_EVENT_LOOKBACK_HOURS);
+    int fromEventCount = 0;
+    for (Entity e : this.queryEvents(from, new Date(since.getTime() - lookbackMillis),
+        Optional.of(toEvents.get(0).getTime()))) {
+      fromTimesByDemo.put((Long) e.getProperty(DemoEvent.DEMO_ID),
+          ((Date) e.getProperty(DemoEvent.TIME)).getTime());
+      fromEventCount++;
+    }
+
+    boolean truncated = toEvents.size() == MAX_EVENTS || fromEventCount == MAX_EVENTS;
+    if (truncated) {
+      LOGGER.warning(String.format("%s to %s latencies since %s only cover the latest %d "
+          + "events of each type", from, to, since, MAX_EVENTS));
+    }
+
+    Table<String, String, LatencyHistogram> histograms = TreeBasedTable.create();
+    for (DemoEvent toEvent : toEvents) {
+      long toTime = toEvent.getTime().getTime();
+      Long fromTime = fromTimesByDemo.get(toEvent.getDemoId()).floor(toTime);
+      if (fromTime == null) {
+        continue;
+      }
+      String zone = MoreObjects.firstNonNull(toEvent.getZone(), UNKNOWN);
+      String image = MoreObjects.firstNonNull(toEvent.getImage(), UNKNOWN);
+      LatencyHistogram histogram = histograms.get(zone, image);
+      if (histogram == null) {
+        histogram = new LatencyHistogram();
+        histograms.put(zone, image, histogram);
+      }
+      histogram.recordMicros(TimeUnit.MILLISECONDS.toMicros(toTime - fromTime));
+    }
+
+    List<DemoLatencyDistribution> distributions = Lists.newArrayList();
+    for (Table.Cell<String, String, LatencyHistogram> cell : histograms.cellSet()) {
+      distributions.add(toDistribution(cell.getRowKey(), cell.getColumnKey(), cell.getValue())
+          .setTruncated(truncated));
+    }
+    return distributions;
+  }
+
+  // the (at most MAX_EVENTS) latest events of the given type at or after
+  // the given time (and at or before the other one, if given), latest first
+  private Iterable<Entity> queryEvents(DemoEventType type, Date since, Optional<Date> until) {
+    List<Filter> filters = Lists.<Filter>newArrayList(
+        new Query.FilterPredicate(DemoEvent.TYPE, FilterOperator.EQUAL, type.toString()),
+        new Query.FilterPredicate(DemoEvent.TIME, FilterOperator.GREATER_THAN_OR_EQUAL, since));
+    if (until.isPresent()) {
+      filters.add(new Query.FilterPredicate(DemoEvent.TIME, FilterOperator.LESS_THAN_OR_EQUAL,
+          until.get()));
+    }
+    Query query = new Query(DemoEvent.DEMO_EVENT_KIND)
+        .setFilter(CompositeFilterOperator.and(filters))
+        .addSort(DemoEvent.TIME, SortDirection.DESCENDING);
+    return this.datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withLimit(MAX_EVENTS).chunkSize(FETCH_CHUNK_SIZE));
+  }
+
+  private static DemoLatencyDistribution toDistribution(String zone, String image,
+      LatencyHistogram histogram) {
+    long count = histogram.getCount();
+    return new DemoLatencyDistribution()
+        .setZone(zone)
+        .setImage(image)
+        .setCount(count)
+        .setMeanMillis(count == 0 ? 0 : toMillis(histogram.getTotalMicros() / count))
+        .setP50Millis(toMillis(histogram.getValueAtPercentile(50)))
+        .setP90Millis(toMillis(histogram.getValueAtPercentile(90)))
+        .setP99Millis(toMillis(histogram.getValueAtPercentile(99)))
+        .setMaxMillis(toMillis(histogram.getMaxMicros()));
+  }
+
+  private static long toMillis(long micros) {
+    return TimeUnit.MICROSECONDS.toMillis(micros);
+  }
+}
@@ -4,9 +4,11 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
@@ -15,63 +17,178 @@ import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.search.SearchService;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.solutions.cloud.demo.info.DemoEvent;
+import com.google.solutions.cloud.demo.info.DemoEventType;
 import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoSearchResults;
 import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.metrics.Tracing;
+import com.google.solutions.cloud.persistence.DatastoreTransactions.TransactionBlock;
 import com.google.solutions.cloud.user.info.UserInfo;
+import com.google.solutions.cloud.user.info.UserUsage;
 import com.google.solutions.cloud.util.Utils;
 
 import org.joda.time.DateTime;
 
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.ConcurrentModificationException;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
 public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
-  // FIXME: using a retry helper library with exponential backoff is always better...
-  private static final int MAX_TRANSACTION_RETRIES = 5;
-  private static final long TRANSACTION_RETRY_DELAY_MILLIS = 200;
+  private static final Logger LOGGER =
+      Logger.getLogger(DatastoreDemoInfoPersistence.class.toString());
+
+  // upper bound on the number of entities in a single batch put
+  static final int MAX_BATCH_PUT_SIZE = 500;
+  // each demo is deleted along with its template
+  static final int MAX_BATCH_DELETE_DEMOS = MAX_BATCH_PUT_SIZE / 2;
+  // each creation transaction also writes the user record
+  private static final int MAX_DEMOS_PER_TRANSACTION = MAX_BATCH_PUT_SIZE - 1;
+  // cached usage is dropped on every write, so this only bounds the damage
+  // done by a read racing with a write
+  private static final int USAGE_CACHE_EXPIRATION_SECONDS = 60;
+  private static final String USAGE_CACHE_KEY_PREFIX = "usage/";
 
   private final DatastoreService datastore;
+  private final DemoSearchIndex searchIndex;
+  private final MemcacheService memcache;
 
   public DatastoreDemoInfoPersistence(DatastoreService datastore) {
+    this(datastore, SearchServiceFactory.getSearchService(),
+        MemcacheServiceFactory.getMemcacheService());
+  }
+
+  public DatastoreDemoInfoPersistence(DatastoreService datastore, SearchService searchService,
+      MemcacheService memcache) {
     this.datastore = checkNotNull(datastore);
+    this.searchIndex = new DemoSearchIndex(searchService);
+    this.memcache = checkNotNull(memcache);
   }
 
   /* (non-Javadoc)
    * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#createNewDemo(java.lang.String, java.lang.String)
    */
   @Override
-  public DemoInfo createNewDemo(String username, DemoInfo initialDemoInfo) {
+  public DemoInfo createNewDemo(String username, final DemoInfo initialDemoInfo) {
     checkNotNull(username);
+    prepareForCreation(username, initialDemoInfo, DateTime.now());
+
+    final Key usernameKey = createUsernameKey(username);
+    TransactionBlock<DemoInfo> block = new TransactionBlock<DemoInfo>() {
+      @Override
+      public DemoInfo execute(Transaction txn) throws Exception {
+        UserInfo userInfo = loadUserInfoForUpdate(txn, usernameKey)
+            .addDemoCount(DemoStatus.CREATED, 1);
+        initialDemoInfo.setVersion(putUserInfo(txn, userInfo));
+        Key createdEntityKey = DatastoreDemoInfoPersistence.this.datastore.put(txn,
+            initialDemoInfo.toDatastoreEntity(usernameKey));
+        DatastoreDemoInfoPersistence.this.datastore.put(txn, ImmutableList.of(
+            initialDemoInfo.toTemplateDatastoreEntity(createdEntityKey),
+            createCreationEvent(initialDemoInfo, createdEntityKey)));
+        DatastoreTransactions.commit(txn);
+        return initialDemoInfo.setDemoId(createdEntityKey.getId());
+      }
+    };
+
+    DemoInfo createdDemoInfo = DatastoreTransactions.tryTransaction(this.datastore, usernameKey,
+        "createNewDemo", block);
+    this.invalidateUsage(username);
+    this.indexDescriptions(usernameKey, ImmutableList.of(createdDemoInfo));
+    return createdDemoInfo;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#createNewDemos(java.lang.String, java.util.List)
+   */
+  @Override
+  public List<DemoInfo> createNewDemos(String username, List<DemoInfo> initialDemoInfos) {
+    Utils.checkAllParamsNotNull(username, initialDemoInfos);
+
+    DateTime creationTime = DateTime.now();
+    final Key usernameKey = createUsernameKey(username);
+    for (final List<DemoInfo> batch
+        : Lists.partition(initialDemoInfos, MAX_DEMOS_PER_TRANSACTION)) {
+      for (DemoInfo initialDemoInfo : batch) {
+        prepareForCreation(username, initialDemoInfo, creationTime);
+      }
+
+      TransactionBlock<Void> block = new TransactionBlock<Void>() {
+        @Override
+        public Void execute(Transaction txn) throws Exception {
+          UserInfo userInfo = loadUserInfoForUpdate(txn, usernameKey)
+              .addDemoCount(DemoStatus.CREATED, batch.size());
+          long version = putUserInfo(txn, userInfo);
+          List<Entity> entitiesToPut = Lists.newArrayListWithCapacity(batch.size());
+          for (DemoInfo initialDemoInfo : batch) {
+            initialDemoInfo.setVersion(version);
+            entitiesToPut.add(initialDemoInfo.toDatastoreEntity(usernameKey));
+          }
+          // keys are returned in the same order as the entities that were put
+          List<Key> createdEntityKeys = DatastoreDemoInfoPersistence.this.datastore.put(
+              txn, entitiesToPut);
+          List<Entity> templateEntitiesToPut = Lists.newArrayListWithCapacity(batch.size());
+          List<Entity> eventEntitiesToPut = Lists.newArrayListWithCapacity(batch.size());
+          for (int i = 0; i < batch.size(); i++) {
+            templateEntitiesToPut.add(
+                batch.get(i).toTemplateDatastoreEntity(createdEntityKeys.get(i)));
+            eventEntitiesToPut.add(createCreationEvent(batch.get(i), createdEntityKeys.get(i)));
+          }
+          DatastoreDemoInfoPersistence.this.datastore.put(txn, templateEntitiesToPut);
+          DatastoreDemoInfoPersistence.this.datastore.put(txn, eventEntitiesToPut);
+          DatastoreTransactions.commit(txn);
+          for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setDemoId(createdEntityKeys.get(i).getId());
+          }
+          return null;
+        }
+      };
+      DatastoreTransactions.tryTransaction(this.datastore, usernameKey, "createNewDemos", block);
+    }
+    this.invalidateUsage(username);
+    this.indexDescriptions(usernameKey, initialDemoInfos);
+    return initialDemoInfos;
+  }
+
+  // make sure all fields are in a "pre-creation" state
+  static void prepareForCreation(String username, DemoInfo initialDemoInfo,
+      DateTime creationTime) {
     checkArgument(initialDemoInfo.getDeploymentTemplate() != null,
         "cannot create demo without a deployment template");
 
-    // make sure all fields are in a "pre-creation" state
     initialDemoInfo.setDemoId(null);
+    initialDemoInfo.setOwner(username);
     initialDemoInfo.setStatus(DemoStatus.CREATED);
-
-    DateTime creationTime = DateTime.now();
     initialDemoInfo.setCreationTime(creationTime.toDate());
+    initialDemoInfo.setStatusChangeTime(creationTime.toDate());
+    initialDemoInfo.setImage(initialDemoInfo.getDeploymentTemplate().getImageName());
 
     if (initialDemoInfo.getDescription() == null) {
       initialDemoInfo.setDescription(String.format(
           "demo instance with %s deployment type created by %s at %s",
           initialDemoInfo.getDeploymentTemplate().getDeploymentType(), username, creationTime));
     }
-
-    Key usernameKey = createUsernameKey(username);
-    Entity entityToPut = initialDemoInfo.toDatastoreEntity(usernameKey);
-    Key createdEntityKey = this.datastore.put(entityToPut);
-
-    return initialDemoInfo.setDemoId(createdEntityKey.getId());
   }
 
   /* (non-Javadoc)
@@ -82,19 +199,148 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
     Utils.checkAllParamsNotNull(username, demoId);
 
     Key demoKey = createDemoKey(username, demoId);
+    Key templateKey = DemoInfo.createTemplateKey(demoKey);
+    Map<Key, Entity> entities = this.datastore.get(ImmutableList.of(demoKey, templateKey));
+    if (!entities.containsKey(demoKey)) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        DemoInfo.fromDatastoreEntities(entities.get(demoKey), entities.get(templateKey)));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#get(java.lang.String, java.lang.Long, long)
+   */
+  @Override
+  public Optional<DemoInfo> get(String username, Long demoId, long ifNoneMatchVersion) {
+    Utils.checkAllParamsNotNull(username, demoId);
+
+    Key demoKey = createDemoKey(username, demoId);
+    Entity e;
     try {
-      return Optional.of(DemoInfo.fromDatastoreEntity(this.datastore.get(demoKey)));
-    } catch (EntityNotFoundException e) {
+      e = this.datastore.get(demoKey);
+    } catch (EntityNotFoundException ex) {
       return Optional.absent();
     }
+    // compare before deserializing the deployment template
+    DemoInfo stub = DemoInfo.notModifiedFromDatastoreEntity(e);
+    if (stub.getVersion() == ifNoneMatchVersion) {
+      return Optional.of(stub);
+    }
+    return Optional.of(loadWithTemplates(this.datastore, ImmutableList.of(e)).get(0));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#getListVersion(java.lang.String)
+   */
+  @Override
+  public long getListVersion(String username) {
+    checkNotNull(username);
+
+    try {
+      return UserInfo.fromDatastoreEntity(
+          this.datastore.get(createUsernameKey(username))).getListVersion();
+    } catch (EntityNotFoundException e) {
+      return 0;
+    }
   }
 
   @Override
   public void delete(String username, Long demoId) {
     Utils.checkAllParamsNotNull(username, demoId);
 
-    Key demoKey = createDemoKey(username, demoId);
-    this.datastore.delete(demoKey);
+    final Key demoKey = createDemoKey(username, demoId);
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        DemoInfo currentRecord;
+        try {
+          currentRecord = DemoInfo.fromDatastoreEntity(
+              DatastoreDemoInfoPersistence.this.datastore.get(txn, demoKey));
+        } catch (EntityNotFoundException e) {
+          // already gone
+          return null;
+        }
+        UserInfo userInfo = loadUserInfoForUpdate(txn, demoKey.getParent());
+        DateTime now = DateTime.now();
+        recordStatusChange(userInfo, currentRecord, Optional.<DemoStatus>absent(), now);
+        DatastoreDemoInfoPersistence.this.datastore.delete(txn, demoKey,
+            DemoInfo.createTemplateKey(demoKey));
+        // the event log outlives the demo
+        DatastoreDemoInfoPersistence.this.datastore.put(txn, DemoEvent.of(
+            DemoEventType.PURGED, currentRecord, now.toDate()).toDatastoreEntity(demoKey));
+        putUserInfo(txn, userInfo);
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+
+    DatastoreTransactions.tryTransaction(this.datastore, demoKey, "delete", block);
+    this.invalidateUsage(username);
+    try {
+      this.searchIndex.remove(demoKey);
+    } catch (RuntimeException e) {
+      // a stale document is harmless; matches are loaded from Datastore
+      LOGGER.warning(String.format("failed to remove %s from the search index: %s",
+          demoKey, e));
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#deleteAll(java.lang.String, java.util.List)
+   */
+  @Override
+  public void deleteAll(String username, List<Long> demoIds) {
+    Utils.checkAllParamsNotNull(username, demoIds);
+
+    final Key usernameKey = createUsernameKey(username);
+    List<Key> deletedKeys = Lists.newArrayListWithCapacity(demoIds.size());
+    for (List<Long> batch : Lists.partition(demoIds, MAX_BATCH_DELETE_DEMOS)) {
+      final List<Key> demoKeys = Lists.newArrayListWithCapacity(batch.size());
+      for (Long demoId : batch) {
+        demoKeys.add(createDemoKey(username, demoId));
+      }
+      TransactionBlock<Collection<Key>> block = new TransactionBlock<Collection<Key>>() {
+        @Override
+        public Collection<Key> execute(Transaction txn) throws Exception {
+          Map<Key, Entity> currentEntities =
+              DatastoreDemoInfoPersistence.this.datastore.get(txn, demoKeys);
+          if (currentEntities.isEmpty()) {
+            // already gone
+            return currentEntities.keySet();
+          }
+          UserInfo userInfo = loadUserInfoForUpdate(txn, usernameKey);
+          DateTime now = DateTime.now();
+          List<Key> keysToDelete = Lists.newArrayListWithCapacity(2 * currentEntities.size());
+          List<Entity> eventEntitiesToPut = Lists.newArrayListWithCapacity(
+              currentEntities.size());
+          for (Entity e : currentEntities.values()) {
+            DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+            recordStatusChange(userInfo, currentRecord, Optional.<DemoStatus>absent(), now);
+            keysToDelete.add(e.getKey());
+            keysToDelete.add(DemoInfo.createTemplateKey(e.getKey()));
+            eventEntitiesToPut.add(DemoEvent.of(DemoEventType.PURGED, currentRecord,
+                now.toDate()).toDatastoreEntity(e.getKey()));
+          }
+          DatastoreDemoInfoPersistence.this.datastore.delete(txn, keysToDelete);
+          DatastoreDemoInfoPersistence.this.datastore.put(txn, eventEntitiesToPut);
+          putUserInfo(txn, userInfo);
+          DatastoreTransactions.commit(txn);
+          return currentEntities.keySet();
+        }
+      };
+      deletedKeys.addAll(DatastoreTransactions.tryTransaction(this.datastore, usernameKey,
+          "deleteAll", block));
+    }
+
+    this.invalidateUsage(username);
+    try {
+      this.searchIndex.removeAll(deletedKeys);
+    } catch (RuntimeException e) {
+      // a stale document is harmless; matches are loaded from Datastore
+      LOGGER.warning(String.format("failed to remove %d demos of %s from the search index: %s",
+          deletedKeys.size(), username, e));
+    }
   }
 
   /* (non-Javadoc)
@@ -110,19 +356,129 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
       @Override
       public Void execute(Transaction txn) throws Exception {
         DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(
-            DatastoreDemoInfoPersistence.this.datastore.get(txn, demoKey));
+            getForUpdate(DatastoreDemoInfoPersistence.this.datastore, txn, demoKey));
         DemoStatus previousStatus = currentRecord.getStatus();
         checkState(previousStatus != null,
             "DemoInfo record, '%s' has null DemoStatus value",
             demoKey);
+        DateTime now = DateTime.now();
+        UserInfo userInfo = loadUserInfoForUpdate(txn, demoKey.getParent());
+        recordStatusChange(userInfo, currentRecord, Optional.of(newStatus), now);
+        clearReadiness(currentRecord);
         currentRecord.setStatus(newStatus);
-        DatastoreDemoInfoPersistence.this.datastore.put(txn, currentRecord.toDatastoreEntity(demoKey.getParent()));
-        txn.commit();
+        currentRecord.setStatusChangeTime(now.toDate());
+        currentRecord.setVersion(putUserInfo(txn, userInfo));
+        putRecord(txn, demoKey, currentRecord, DemoEventType.forStatus(newStatus), now.toDate());
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+
+    DatastoreTransactions.tryTransaction(this.datastore, demoKey, "updateStatus", block);
+    this.invalidateUsage(username);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#recordPreemption(java.lang.String, java.lang.Long, java.util.Date, boolean)
+   */
+  @Override
+  public void recordPreemption(String username, Long demoId, final Date preemptionTime,
+      final boolean relaunched) {
+    Utils.checkAllParamsNotNull(username, demoId, preemptionTime);
+
+    final Key demoKey = createDemoKey(username, demoId);
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(
+            getForUpdate(DatastoreDemoInfoPersistence.this.datastore, txn, demoKey));
+        Optional<DemoEventType> eventType =
+            countPreemption(currentRecord, preemptionTime, relaunched);
+        if (!eventType.isPresent() && !relaunched) {
+          // a failed relaunch of an outage that's already counted
+          return null;
+        }
+        currentRecord.setVersion(bumpListVersion(txn, demoKey.getParent()));
+        putRecord(txn, demoKey, currentRecord, eventType, new Date());
+        DatastoreTransactions.commit(txn);
         return null;
       }
     };
 
-    this.tryTransaction(block);
+    DatastoreTransactions.tryTransaction(this.datastore, demoKey, "recordPreemption", block);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#recordReady(java.lang.String, java.lang.Long, java.util.Date, java.util.Date)
+   */
+  @Override
+  public boolean recordReady(String username, Long demoId, final Date launchTime,
+      final Date readyTime) {
+    Utils.checkAllParamsNotNull(username, demoId, launchTime, readyTime);
+
+    final Key demoKey = createDemoKey(username, demoId);
+    TransactionBlock<Boolean> block = new TransactionBlock<Boolean>() {
+      @Override
+      public Boolean execute(Transaction txn) throws Exception {
+        DemoInfo currentRecord;
+        try {
+          currentRecord = DemoInfo.fromDatastoreEntity(
+              getForUpdate(DatastoreDemoInfoPersistence.this.datastore, txn, demoKey));
+        } catch (EntityNotFoundException e) {
+          return false;
+        }
+        if (currentRecord.getStatus() != DemoStatus.LAUNCHED
+            || currentRecord.getReadyTime() != null) {
+          return false;
+        }
+        Optional<Entity> runningEvent = createMissedRunningEvent(currentRecord, demoKey,
+            readyTime);
+        if (runningEvent.isPresent()) {
+          DatastoreDemoInfoPersistence.this.datastore.put(txn, runningEvent.get());
+        }
+        currentRecord.setReadyTime(readyTime)
+            .setTimeToReadyMillis(Math.max(0, readyTime.getTime() - launchTime.getTime()))
+            .setDeploymentStatus(DemoInfo.READY_DEPLOYMENT_STATUS)
+            .setVersion(bumpListVersion(txn, demoKey.getParent()));
+        putRecord(txn, demoKey, currentRecord, Optional.of(DemoEventType.READY), readyTime);
+        DatastoreTransactions.commit(txn);
+        return true;
+      }
+    };
+
+    return DatastoreTransactions.tryTransaction(this.datastore, demoKey, "recordReady", block);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#updateDeploymentStatus(java.lang.String, java.lang.Long, java.lang.String)
+   */
+  @Override
+  public long updateDeploymentStatus(String username, Long demoId,
+      final String newDeploymentStatus) {
+    Utils.checkAllParamsNotNull(username, demoId);
+
+    final Key demoKey = createDemoKey(username, demoId);
+    TransactionBlock<Long> block = new TransactionBlock<Long>() {
+      @Override
+      public Long execute(Transaction txn) throws Exception {
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(
+            getForUpdate(DatastoreDemoInfoPersistence.this.datastore, txn, demoKey));
+        if (Objects.equal(currentRecord.getDeploymentStatus(), newDeploymentStatus)) {
+          // nothing changed, so there's nothing to write (the transaction is
+          // rolled back by tryTransaction)
+          return currentRecord.getVersion();
+        }
+        currentRecord.setDeploymentStatus(newDeploymentStatus);
+        currentRecord.setVersion(bumpListVersion(txn, demoKey.getParent()));
+        putRecord(txn, demoKey, currentRecord,
+            DemoEventType.forDeploymentStatus(newDeploymentStatus), new Date());
+        DatastoreTransactions.commit(txn);
+        return currentRecord.getVersion();
+      }
+    };
+
+    return DatastoreTransactions.tryTransaction(this.datastore, demoKey,
+        "updateDeploymentStatus", block);
   }
 
   /* (non-Javadoc)
@@ -134,7 +490,8 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
 
     Key usernameKey = createUsernameKey(username);
     Multimap<String, DemoInfo> results = this.findAllDemosWithStatuses(
-        Optional.of(usernameKey), DemoStatus.CREATED, DemoStatus.LAUNCHED);
+        Optional.of(usernameKey), DemoStatus.CREATED, DemoStatus.LAUNCHED,
+        DemoStatus.STOPPED, DemoStatus.FAILED);
     checkState(Sets.difference(results.keySet(), ImmutableSet.of(username)).isEmpty(),
         "queried active demos for user '%s', got multimap keys: '%s'",
         username, results.keySet());
@@ -143,6 +500,69 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
         .toSortedList(CREATION_TIME_DESC_COMPARATOR);
   }
 
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#getUsage(java.lang.String)
+   */
+  @Override
+  public UserUsage getUsage(String username) {
+    checkNotNull(username);
+
+    String cacheKey = USAGE_CACHE_KEY_PREFIX + username;
+    UserUsage cachedUsage = (UserUsage) this.memcache.get(cacheKey);
+    Metrics.recordCacheLookup("cache.usage", cachedUsage != null);
+    if (cachedUsage != null) {
+      return cachedUsage;
+    }
+
+    final Key usernameKey = createUsernameKey(username);
+    UserInfo userInfo;
+    try {
+      userInfo = UserInfo.fromDatastoreEntity(this.datastore.get(usernameKey));
+    } catch (EntityNotFoundException e) {
+      userInfo = new UserInfo().setUserName(username);
+    }
+    if (!userInfo.isUsageTracked()) {
+      // seed (and save) the counters, without touching the list version
+      TransactionBlock<UserInfo> block = new TransactionBlock<UserInfo>() {
+        @Override
+        public UserInfo execute(Transaction txn) throws Exception {
+          UserInfo seededUserInfo = loadUserInfoForUpdate(txn, usernameKey);
+          DatastoreDemoInfoPersistence.this.datastore.put(txn, seededUserInfo.toDatastoreEntity());
+          DatastoreTransactions.commit(txn);
+          return seededUserInfo;
+        }
+      };
+      userInfo = DatastoreTransactions.tryTransaction(this.datastore, usernameKey,
+          "getUsage", block);
+    }
+
+    UserUsage usage = UserUsage.fromUserInfo(userInfo);
+    // don't overwrite a value cached by a concurrent read, which may be newer
+    this.memcache.put(cacheKey, usage, Expiration.byDeltaSeconds(USAGE_CACHE_EXPIRATION_SECONDS),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return usage;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#findAllDemosForWorkshop(java.lang.String, java.lang.String)
+   */
+  @Override
+  public List<DemoInfo> findAllDemosForWorkshop(String username, String workshopId) {
+    Utils.checkAllParamsNotNull(username, workshopId);
+
+    Query query = new Query(DemoInfo.DEMO_KIND, createUsernameKey(username))
+        .setFilter(new Query.FilterPredicate(DemoInfo.WORKSHOP_ID,
+            FilterOperator.EQUAL, workshopId));
+
+    List<Entity> results;
+    try (Tracing.Span span = Tracing.startSpan("datastore.query")) {
+      results = this.datastore.prepare(query).asList(
+          FetchOptions.Builder.withChunkSize(MAX_BATCH_PUT_SIZE));
+      span.set("results", results.size());
+    }
+    return loadWithTemplates(this.datastore, results);
+  }
+
   /* (non-Javadoc)
    * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#findAllDemosWithStatus(com.google.solutions.cloud.demo.DemoStatus)
    */
@@ -152,6 +572,71 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
     return this.findAllDemosWithStatuses(Optional.<Key>absent(), status);
   }
 
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#searchDemos(com.google.solutions.cloud.persistence.DemoSearchCriteria)
+   */
+  @Override
+  public DemoSearchResults searchDemos(DemoSearchCriteria criteria) {
+    checkNotNull(criteria);
+    checkArgument(criteria.getPageSize() > 0,
+        "pageSize must be positive, got %d", criteria.getPageSize());
+    checkArgument(criteria.getUsernamePrefix() == null
+        || criteria.getUsernamePrefix().length() <= DemoInfo.MAX_OWNER_PREFIX_LENGTH,
+        "username prefixes can be at most %d characters long", DemoInfo.MAX_OWNER_PREFIX_LENGTH);
+
+    if (criteria.getText() != null) {
+      return this.searchDemosByText(criteria);
+    }
+
+    // at most one inequality (the creation time range), on the sort property,
+    // so that every combination of filters can be served by the indexes
+    List<Filter> filters = Lists.newArrayList();
+    if (criteria.getStatus() != null) {
+      filters.add(new Query.FilterPredicate(DemoInfo.STATUS,
+          FilterOperator.EQUAL, criteria.getStatus().toString()));
+    }
+    if (criteria.getZone() != null) {
+      filters.add(new Query.FilterPredicate(DemoInfo.ZONE,
+          FilterOperator.EQUAL, criteria.getZone()));
+    }
+    if (criteria.getUsernamePrefix() != null) {
+      filters.add(new Query.FilterPredicate(DemoInfo.OWNER_PREFIXES,
+          FilterOperator.EQUAL, criteria.getUsernamePrefix()));
+    }
+    if (criteria.getCreatedAfter() != null) {
+      filters.add(new Query.FilterPredicate(DemoInfo.CREATION_TIME,
+          FilterOperator.GREATER_THAN_OR_EQUAL, criteria.getCreatedAfter()));
+    }
+    if (criteria.getCreatedBefore() != null) {
+      filters.add(new Query.FilterPredicate(DemoInfo.CREATION_TIME,
+          FilterOperator.LESS_THAN, criteria.getCreatedBefore()));
+    }
+
+    Query query = new Query(DemoInfo.DEMO_KIND)
+        .addSort(DemoInfo.CREATION_TIME, SortDirection.DESCENDING);
+    if (filters.size() == 1) {
+      query.setFilter(filters.get(0));
+    } else if (filters.size() > 1) {
+      query.setFilter(CompositeFilterOperator.and(filters));
+    }
+
+    FetchOptions options = FetchOptions.Builder.withLimit(criteria.getPageSize());
+    if (criteria.getPageToken() != null) {
+      options.startCursor(Cursor.fromWebSafeString(criteria.getPageToken()));
+    }
+    QueryResultList<Entity> page;
+    try (Tracing.Span span = Tracing.startSpan("datastore.query")) {
+      page = this.datastore.prepare(query).asQueryResultList(options);
+      span.set("filters", filters.size()).set("results", page.size());
+    }
+
+    // a short page is the last one
+    return new DemoSearchResults()
+        .setItems(loadWithTemplates(this.datastore, page))
+        .setNextPageToken(page.size() < criteria.getPageSize()
+            ? null : page.getCursor().toWebSafeString());
+  }
+
   /* (non-Javadoc)
    * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#reserveInstanceNames(java.lang.String, int)
    */
@@ -182,16 +667,235 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
         }
 
         DatastoreDemoInfoPersistence.this.datastore.put(txn, userInfo.toDatastoreEntity());
-        txn.commit();
+        DatastoreTransactions.commit(txn);
         return nameSuffix;
       }
     };
 
-    return this.tryTransaction(block);
+    return DatastoreTransactions.tryTransaction(this.datastore, userKey,
+        "reserveInstanceNames", block);
+  }
+
+  // write the updated record as part of the given transaction, along with
+  // the event recording the change, if there is one
+  private void putRecord(Transaction txn, Key demoKey, DemoInfo currentRecord,
+      Optional<DemoEventType> eventType, Date eventTime) {
+    Entity e = currentRecord.toDatastoreEntity(demoKey.getParent());
+    this.datastore.put(txn, eventType.isPresent()
+        ? ImmutableList.of(e, DemoEvent.of(eventType.get(), currentRecord, eventTime)
+            .toDatastoreEntity(demoKey))
+        : ImmutableList.of(e));
   }
 
-  // comparator for sorting DemoInfo instances by creation time in descending order
-  private static final Comparator<DemoInfo> CREATION_TIME_DESC_COMPARATOR =
+  // the CREATED event of a new demo, written along with it
+  static Entity createCreationEvent(DemoInfo createdDemoInfo, Key demoKey) {
+    return DemoEvent.of(DemoEventType.CREATED, createdDemoInfo,
+        createdDemoInfo.getCreationTime()).toDatastoreEntity(demoKey);
+  }
+
+  // the RUNNING event of a demo which is about to be recorded as ready
+  // without having been seen RUNNING (e.g. its instance booted and started
+  // serving in between two probes); absent if it was seen RUNNING
+  static Optional<Entity> createMissedRunningEvent(DemoInfo currentRecord, Key demoKey,
+      Date readyTime) {
+    return "RUNNING".equals(currentRecord.getDeploymentStatus())
+        ? Optional.<Entity>absent()
+        : Optional.of(DemoEvent.of(DemoEventType.RUNNING, currentRecord, readyTime)
+            .toDatastoreEntity(demoKey));
+  }
+
+  // increment the user's list version as part of the given transaction, and
+  // return the new value; for demo writes which don't change the user's usage
+  private long bumpListVersion(Transaction txn, Key usernameKey) {
+    return this.putUserInfo(txn, this.loadUserInfoForUpdate(txn, usernameKey));
+  }
+
+  // load the user record as part of the given transaction. the user record
+  // shares an entity group with all of the user's demos, so any demo write
+  // can update it without a cross-group transaction. records written before
+  // usage was tracked get their counters seeded from the user's demos (as of
+  // the start of the transaction, i.e. before the caller's changes).
+  private UserInfo loadUserInfoForUpdate(Transaction txn, Key usernameKey) {
+    UserInfo userInfo;
+    try {
+      userInfo = UserInfo.fromDatastoreEntity(this.datastore.get(txn, usernameKey));
+    } catch (EntityNotFoundException e) {
+      // no user record means no demos yet, so the counters start at zero
+      return new UserInfo().setUserName(usernameKey.getName());
+    }
+    if (!userInfo.isUsageTracked()) {
+      Query query = new Query(DemoInfo.DEMO_KIND, usernameKey);
+      for (Entity e : this.datastore.prepare(txn, query).asIterable()) {
+        userInfo.addDemoCount(DemoStatus.valueOf((String) e.getProperty(DemoInfo.STATUS)), 1);
+      }
+      userInfo.setUsageTracked(true);
+    }
+    return userInfo;
+  }
+
+  // write the user record as part of the given transaction, incrementing its
+  // list version, and return the new value. it doubles as the version of the
+  // demo being written, which keeps per-demo versions increasing as well.
+  private long putUserInfo(Transaction txn, UserInfo userInfo) {
+    userInfo.setListVersion(userInfo.getListVersion() + 1);
+    this.datastore.put(txn, userInfo.toDatastoreEntity());
+    return userInfo.getListVersion();
+  }
+
+  // move a demo from its current status to the new one (absent if the demo
+  // is being deleted) in the user's counters; time spent launched is added
+  // to the user's VM usage when a launched demo changes status
+  private static void recordStatusChange(UserInfo userInfo, DemoInfo currentRecord,
+      Optional<DemoStatus> newStatus, DateTime now) {
+    userInfo.addDemoCount(currentRecord.getStatus(), -1);
+    if (newStatus.isPresent()) {
+      userInfo.addDemoCount(newStatus.get(), 1);
+    }
+    userInfo.addVmMillis(getMillisLaunchedSinceStatusChange(currentRecord, now));
+  }
+
+  // how long the demo has been launched for, as of now; 0 if it isn't
+  static long getMillisLaunchedSinceStatusChange(DemoInfo currentRecord, DateTime now) {
+    if (currentRecord.getStatus() != DemoStatus.LAUNCHED) {
+      return 0;
+    }
+    // records written before statusChangeTime existed fall back to creationTime
+    Date launchedSince = currentRecord.getStatusChangeTime() != null
+        ? currentRecord.getStatusChangeTime() : currentRecord.getCreationTime();
+    return Math.max(0, now.getMillis() - launchedSince.getTime());
+  }
+
+  // the deployment has to be probed again after a status change or
+  // preemption; the recorded READY status is dropped along with the ready
+  // time, and replaced by the next observed deployment status
+  // count a preemption on the record (unless it's one that's been counted
+  // already), and a restart if the deployment was relaunched; the event to
+  // record for it, if it's a new preemption
+  static Optional<DemoEventType> countPreemption(DemoInfo currentRecord, Date preemptionTime,
+      boolean relaunched) {
+    Optional<DemoEventType> eventType = Optional.absent();
+    Date lastPreemptionTime = currentRecord.getLastPreemptionTime();
+    if (lastPreemptionTime == null || preemptionTime.after(lastPreemptionTime)) {
+      currentRecord.setPreemptionCount(currentRecord.getPreemptionCount() + 1)
+          .setLastPreemptionTime(preemptionTime);
+      clearReadiness(currentRecord);
+      eventType = Optional.of(DemoEventType.PREEMPTED);
+    }
+    if (relaunched) {
+      currentRecord.setRestartCount(currentRecord.getRestartCount() + 1);
+    }
+    return eventType;
+  }
+
+  static void clearReadiness(DemoInfo currentRecord) {
+    if (DemoInfo.READY_DEPLOYMENT_STATUS.equals(currentRecord.getDeploymentStatus())) {
+      currentRecord.setDeploymentStatus(null);
+    }
+    currentRecord.setReadyTime(null).setTimeToReadyMillis(null);
+  }
+
+  // the full records of the given demos, reading their templates in batches
+  // (records which still embed their template don't need a read)
+  static List<DemoInfo> loadWithTemplates(DatastoreService datastore,
+      List<Entity> demoEntities) {
+    List<Key> templateKeys = Lists.newArrayList();
+    for (Entity e : demoEntities) {
+      if (!e.hasProperty(DemoInfo.DEPLOYMENT_TEMPLATE)) {
+        templateKeys.add(DemoInfo.createTemplateKey(e.getKey()));
+      }
+    }
+    Map<Key, Entity> templateEntities = Maps.newHashMap();
+    for (List<Key> batch : Lists.partition(templateKeys, MAX_BATCH_PUT_SIZE)) {
+      templateEntities.putAll(datastore.get(batch));
+    }
+
+    List<DemoInfo> demoInfos = Lists.newArrayListWithCapacity(demoEntities.size());
+    for (Entity e : demoEntities) {
+      demoInfos.add(DemoInfo.fromDatastoreEntities(e,
+          templateEntities.get(DemoInfo.createTemplateKey(e.getKey()))));
+    }
+    return demoInfos;
+  }
+
+  // read a demo to update it as part of the given transaction. a record
+  // which still embeds its template has it moved to a template record (as
+  // is, without deserializing it) in the same transaction; the updated
+  // record is then written without it.
+  static Entity getForUpdate(DatastoreService datastore, Transaction txn, Key demoKey)
+      throws EntityNotFoundException {
+    Entity e = datastore.get(txn, demoKey);
+    Object embeddedTemplate = e.getProperty(DemoInfo.DEPLOYMENT_TEMPLATE);
+    if (embeddedTemplate != null) {
+      Entity templateEntity = new Entity(DemoInfo.createTemplateKey(demoKey));
+      templateEntity.setUnindexedProperty(DemoInfo.DEPLOYMENT_TEMPLATE, embeddedTemplate);
+      datastore.put(txn, templateEntity);
+    }
+    return e;
+  }
+
+  private void invalidateUsage(String username) {
+    this.memcache.delete(USAGE_CACHE_KEY_PREFIX + username);
+  }
+
+  // full-text search over descriptions, with the rest of the criteria applied
+  // to the matches; pages can come back short when the other criteria
+  // filter some of them out
+  private DemoSearchResults searchDemosByText(DemoSearchCriteria criteria) {
+    DemoSearchIndex.Page page = this.searchIndex.search(criteria.getText(),
+        criteria.getPageToken(), criteria.getPageSize());
+    Map<Key, Entity> entities = this.datastore.get(page.demoKeys);
+
+    List<Entity> found = Lists.newArrayList();
+    for (Key demoKey : page.demoKeys) {
+      Entity e = entities.get(demoKey);
+      // missing if the demo was deleted after being indexed
+      if (e != null) {
+        found.add(e);
+      }
+    }
+    List<DemoInfo> items = Lists.newArrayList();
+    for (DemoInfo demoInfo : loadWithTemplates(this.datastore, found)) {
+      if (matches(criteria, demoInfo)) {
+        items.add(demoInfo);
+      }
+    }
+    return new DemoSearchResults()
+        .setItems(items)
+        .setNextPageToken(page.nextPageToken);
+  }
+
+  // whether the record matches all of the criteria other than the text
+  private static boolean matches(DemoSearchCriteria criteria, DemoInfo demoInfo) {
+    return (criteria.getStatus() == null || criteria.getStatus() == demoInfo.getStatus())
+        && (criteria.getZone() == null || criteria.getZone().equals(demoInfo.getZone()))
+        && (criteria.getUsernamePrefix() == null
+            || demoInfo.getOwner().startsWith(criteria.getUsernamePrefix()))
+        && (criteria.getCreatedAfter() == null
+            || !demoInfo.getCreationTime().before(criteria.getCreatedAfter()))
+        && (criteria.getCreatedBefore() == null
+            || demoInfo.getCreationTime().before(criteria.getCreatedBefore()));
+  }
+
+  // add the descriptions of newly created demos to the search index. demos
+  // are still created if this fails; they just can't be found by text
+  private void indexDescriptions(Key usernameKey, List<DemoInfo> createdDemoInfos) {
+    Map<Key, String> descriptionsByKey = Maps.newLinkedHashMap();
+    for (DemoInfo demoInfo : createdDemoInfos) {
+      descriptionsByKey.put(
+          KeyFactory.createKey(usernameKey, DemoInfo.DEMO_KIND, demoInfo.getDemoId()),
+          demoInfo.getDescription());
+    }
+    try {
+      this.searchIndex.add(descriptionsByKey);
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to index %d new demos for %s: %s",
+          descriptionsByKey.size(), usernameKey, e));
+    }
+  }
+
+  // comparator for sorting DemoInfo instances by creation time in descending
+  // order; package-private for DemoInfoSortBenchmark
+  static final Comparator<DemoInfo> CREATION_TIME_DESC_COMPARATOR =
     new Comparator<DemoInfo>() {
       @Override
       public int compare(DemoInfo d1, DemoInfo d2) {
@@ -213,13 +917,7 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
     Utils.checkAllParamsNotNull(statuses, ancestorKey);
     checkArgument(statuses.length > 0, "must provide at least one status to match");
 
-    Filter[] statusFilters = new Filter[statuses.length];
-    for (int i = 0; i < statuses.length; i++) {
-      statusFilters[i] = new Query.FilterPredicate(DemoInfo.STATUS,
-          FilterOperator.EQUAL,
-          statuses[i].toString());
-    }
-    Filter compositeStatusFilter = CompositeFilterOperator.or(statusFilters);
+    Filter compositeStatusFilter = createStatusFilter(statuses);
 
     Query query;
     if (ancestorKey.isPresent()) {
@@ -233,53 +931,32 @@ public class DatastoreDemoInfoPersistence implements DemoInfoPersistence {
 
     PreparedQuery pq = this.datastore.prepare(query);
 
+    List<Entity> results;
+    try (Tracing.Span span = Tracing.startSpan("datastore.query")) {
+      results = pq.asList(FetchOptions.Builder.withChunkSize(MAX_BATCH_PUT_SIZE));
+      span.set("statuses", statuses.length).set("results", results.size());
+    }
+
     Multimap<String, DemoInfo> usernamesToDemos = ArrayListMultimap.create();
-    for (Entity e : pq.asIterable()) {
-      Key parent = e.getParent();
-      checkState(parent != null && UserInfo.USER_KIND.equals(parent.getKind()),
-          "found DemoInfo, '%s', with parent '%s' (expected parent kind '%s'",
-          e.getKey(), parent, UserInfo.USER_KIND);
-      String username = e.getParent().getName();
-      usernamesToDemos.put(username, DemoInfo.fromDatastoreEntity(e));
+    for (DemoInfo demoInfo : loadWithTemplates(this.datastore, results)) {
+      // without an ancestor, this also finds records already moved to the
+      // root-level layout (see RootDemoInfoPersistence)
+      checkState(demoInfo.getOwner() != null,
+          "found DemoInfo, '%d', without an owner", demoInfo.getDemoId());
+      usernamesToDemos.put(demoInfo.getOwner(), demoInfo);
     }
     return usernamesToDemos;
   }
 
-  // attempt to execute the given block in a transaction,
-  // retrying only on ConcurrentModificationException and
-  // InterruptedException. if any other exception is thrown
-  // from the block, it will be propagated as a RuntimeException.
-  private <T> T tryTransaction(TransactionBlock<T> block) {
-    checkNotNull(block);
-
-    Transaction txn = this.datastore.beginTransaction();
-
-    int retryCount = 0;
-    do {
-      try {
-        if (retryCount > 0) {
-          Thread.sleep(TRANSACTION_RETRY_DELAY_MILLIS);
-        }
-        return block.execute(txn);
-      } catch (ConcurrentModificationException | InterruptedException e) {
-        // ConcurrentModificationException => maybe retry
-        // InterruptedException => ...just swallow this one
-      } catch (Exception e) {
-        Throwables.propagate(e);
-      } finally {
-        if (txn.isActive()) {
-          txn.rollback();
-        }
-      }
-    } while (retryCount++ < MAX_TRANSACTION_RETRIES);
-
-    throw new ConcurrentModificationException(String.format(
-        "abandoning transaction after %d unsuccessful attempts",
-        MAX_TRANSACTION_RETRIES));
-  }
-
-  private static interface TransactionBlock<T> {
-    T execute(Transaction txn) throws Exception;
+  // filter matching DemoInfo records with any of the given statuses
+  static Filter createStatusFilter(DemoStatus... statuses) {
+    Filter[] statusFilters = new Filter[statuses.length];
+    for (int i = 0; i < statuses.length; i++) {
+      statusFilters[i] = new Query.FilterPredicate(DemoInfo.STATUS,
+          FilterOperator.EQUAL,
+          statuses[i].toString());
+    }
+    return CompositeFilterOperator.or(statusFilters);
   }
 
   private static Key createUsernameKey(String username) {
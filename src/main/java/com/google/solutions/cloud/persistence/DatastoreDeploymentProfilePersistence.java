@@ -0,0 +1,166 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.solutions.cloud.compute.DeploymentProfile;
+import com.google.solutions.cloud.persistence.DatastoreTransactions.TransactionBlock;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Datastore-backed {@link DeploymentProfilePersistence}, with an in-process
+ * cache of all profiles. All profiles are children of a single root entity
+ * which carries a version stamp, bumped by every save; the cache re-reads that
+ * stamp at most every {@link #REFRESH_CHECK_INTERVAL_MILLIS} and only reloads
+ * the profiles when it has changed, so profile edits show up on every
+ * instance within that interval, without a redeploy.
+ */
+public class DatastoreDeploymentProfilePersistence implements DeploymentProfilePersistence {
+  static final String DEPLOYMENT_PROFILES_KIND = "DeploymentProfiles";
+  static final String DEPLOYMENT_PROFILES_NAME = "all";
+  static final String VERSION = "version";
+
+  private static final long REFRESH_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  // shared by all instances, so that the cache is per process rather than per request
+  private static final AtomicReference<ProfileSnapshot> SNAPSHOT =
+      new AtomicReference<>(ProfileSnapshot.EMPTY);
+
+  private final DatastoreService datastore;
+
+  public DatastoreDeploymentProfilePersistence(DatastoreService datastore) {
+    this.datastore = checkNotNull(datastore);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DeploymentProfilePersistence#get(java.lang.String)
+   */
+  @Override
+  public Optional<DeploymentProfile> get(String name) {
+    checkNotNull(name);
+    return Optional.fromNullable(this.getSnapshot().profiles.get(name));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DeploymentProfilePersistence#list()
+   */
+  @Override
+  public List<DeploymentProfile> list() {
+    return this.getSnapshot().profiles.values().asList();
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DeploymentProfilePersistence#save(com.google.solutions.cloud.compute.DeploymentProfile)
+   */
+  @Override
+  public void save(final DeploymentProfile profile) {
+    checkNotNull(profile);
+    checkArgument(profile.getName() != null && !profile.getName().isEmpty(),
+        "cannot save a deployment profile without a name");
+
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        DatastoreService datastore = DatastoreDeploymentProfilePersistence.this.datastore;
+        long version = readVersion(datastore, txn);
+        Entity root = new Entity(createRootKey());
+        root.setUnindexedProperty(VERSION, version + 1);
+        datastore.put(txn, root);
+        datastore.put(txn, profile.toDatastoreEntity(root.getKey()));
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+    DatastoreTransactions.tryTransaction(this.datastore, createRootKey(),
+        "saveDeploymentProfile", block);
+
+    // make sure the next read on this instance picks up the change
+    SNAPSHOT.set(ProfileSnapshot.EMPTY);
+  }
+
+  private ProfileSnapshot getSnapshot() {
+    ProfileSnapshot snapshot = SNAPSHOT.get();
+    long now = System.currentTimeMillis();
+    if (now - snapshot.checkedAtMillis < REFRESH_CHECK_INTERVAL_MILLIS) {
+      return snapshot;
+    }
+
+    // checking the version stamp is a single small get; the profiles
+    // themselves are only reloaded when it has actually changed
+    long storedVersion = readVersion(this.datastore, null);
+    ProfileSnapshot refreshed = storedVersion == snapshot.version
+        ? new ProfileSnapshot(snapshot.version, snapshot.profiles, now)
+        : this.loadSnapshot(now);
+    // concurrent refreshes just race to store equivalent snapshots
+    SNAPSHOT.set(refreshed);
+    return refreshed;
+  }
+
+  // an ancestor query returns the root entity (with its version stamp) along
+  // with all of the profiles, as one strongly consistent read
+  private ProfileSnapshot loadSnapshot(long now) {
+    Key rootKey = createRootKey();
+    long version = 0;
+    ImmutableSortedMap.Builder<String, DeploymentProfile> profiles =
+        ImmutableSortedMap.naturalOrder();
+    boolean hasDefaultProfile = false;
+    for (Entity e : this.datastore.prepare(new Query(rootKey)).asIterable()) {
+      if (e.getKey().equals(rootKey)) {
+        version = (Long) e.getProperty(VERSION);
+      } else if (DeploymentProfile.DEPLOYMENT_PROFILE_KIND.equals(e.getKind())) {
+        DeploymentProfile profile = DeploymentProfile.fromDatastoreEntity(e);
+        hasDefaultProfile |= DeploymentProfile.DEFAULT_PROFILE_NAME.equals(profile.getName());
+        profiles.put(profile.getName(), profile);
+      }
+    }
+    if (!hasDefaultProfile) {
+      profiles.put(DeploymentProfile.DEFAULT_PROFILE_NAME, DeploymentProfile.makeDefaultProfile());
+    }
+    return new ProfileSnapshot(version, profiles.build(), now);
+  }
+
+  // reads the version stamp, within txn (if it's non-null); 0 if nothing has
+  // ever been saved
+  private static long readVersion(DatastoreService datastore, Transaction txn) {
+    try {
+      Key rootKey = createRootKey();
+      Entity root = txn == null ? datastore.get(rootKey) : datastore.get(txn, rootKey);
+      return (Long) root.getProperty(VERSION);
+    } catch (EntityNotFoundException e) {
+      return 0;
+    }
+  }
+
+  private static Key createRootKey() {
+    return KeyFactory.createKey(DEPLOYMENT_PROFILES_KIND, DEPLOYMENT_PROFILES_NAME);
+  }
+
+  private static final class ProfileSnapshot {
+    // version -1 never matches a stored version, so EMPTY always gets reloaded
+    static final ProfileSnapshot EMPTY = new ProfileSnapshot(-1,
+        ImmutableSortedMap.<String, DeploymentProfile>of(), 0);
+
+    final long version;
+    final ImmutableSortedMap<String, DeploymentProfile> profiles;
+    final long checkedAtMillis;
+
+    ProfileSnapshot(long version, ImmutableSortedMap<String, DeploymentProfile> profiles,
+        long checkedAtMillis) {
+      this.version = version;
+      this.profiles = profiles;
+      this.checkedAtMillis = checkedAtMillis;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.solutions.cloud.Constants;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.persistence.DatastoreTransactions.TransactionBlock;
+import com.google.solutions.cloud.util.Utils;
+
+import org.joda.time.DateTime;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IdempotencyPersistence} backed by Datastore, with completed results
+ * cached in Memcache. Claims are made in a Datastore transaction, so two
+ * concurrent requests with the same key can't both go ahead. Each record is
+ * its own (root) entity group, so that claims don't contend with writes to
+ * the user's demos.
+ */
+public class DatastoreIdempotencyPersistence implements IdempotencyPersistence {
+  static final String IDEMPOTENCY_RECORD_KIND = "IdempotencyRecord";
+  static final String RESULT = "result";
+  static final String CLAIM_TIME = "claimTime";
+  static final String EXPIRES_AT = "expiresAt";
+
+  // upper bound on the number of keys in a single batch delete
+  private static final int MAX_BATCH_DELETE_SIZE = 500;
+
+  private final DatastoreService datastore;
+  private final MemcacheService memcache;
+
+  public DatastoreIdempotencyPersistence(DatastoreService datastore, MemcacheService memcache) {
+    this.datastore = checkNotNull(datastore);
+    this.memcache = checkNotNull(memcache);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.IdempotencyPersistence#claim(java.lang.String, java.lang.String, java.lang.String)
+   */
+  @Override
+  public Optional<String> claim(String username, String operation, String idempotencyKey) {
+    Utils.checkAllParamsNotNull(username, operation, idempotencyKey);
+
+    final String name = createRecordName(username, operation, idempotencyKey);
+    String cachedResult = (String) this.memcache.get(name);
+    Metrics.recordCacheLookup("cache.idempotency", cachedResult != null);
+    if (cachedResult != null) {
+      return Optional.of(cachedResult);
+    }
+
+    final Key key = KeyFactory.createKey(IDEMPOTENCY_RECORD_KIND, name);
+
+    // returns the live record for the key, if there is one; otherwise
+    // claims the key, and returns absent
+    TransactionBlock<Optional<Entity>> block = new TransactionBlock<Optional<Entity>>() {
+      @Override
+      public Optional<Entity> execute(Transaction txn) throws Exception {
+        DateTime now = DateTime.now();
+        try {
+          Entity existing = DatastoreIdempotencyPersistence.this.datastore.get(txn, key);
+          if (isLive(existing, now)) {
+            return Optional.of(existing);
+          }
+          // expired results and abandoned claims are simply taken over
+        } catch (EntityNotFoundException e) {
+          // first request with this key
+        }
+
+        Entity claim = new Entity(key);
+        claim.setUnindexedProperty(RESULT, null);
+        claim.setUnindexedProperty(CLAIM_TIME, now.toDate());
+        claim.setProperty(EXPIRES_AT, now.plusHours(Constants.IDEMPOTENCY_KEY_TTL_HOURS).toDate());
+        DatastoreIdempotencyPersistence.this.datastore.put(txn, claim);
+        DatastoreTransactions.commit(txn);
+        return Optional.absent();
+      }
+    };
+
+    Optional<Entity> existing = DatastoreTransactions.tryTransaction(this.datastore, key,
+        "claimIdempotencyKey", block);
+    if (!existing.isPresent()) {
+      return Optional.absent();
+    }
+    String result = (String) existing.get().getProperty(RESULT);
+    if (result == null) {
+      throw new ConcurrentModificationException(String.format(
+          "a %s request with idempotency key '%s' is already in progress for user %s",
+          operation, idempotencyKey, username));
+    }
+    this.cacheResult(name, result, (Date) existing.get().getProperty(EXPIRES_AT));
+    return Optional.of(result);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.IdempotencyPersistence#complete(java.lang.String, java.lang.String, java.lang.String, java.lang.String)
+   */
+  @Override
+  public void complete(String username, String operation, String idempotencyKey,
+      String result) {
+    Utils.checkAllParamsNotNull(username, operation, idempotencyKey, result);
+
+    String name = createRecordName(username, operation, idempotencyKey);
+    DateTime now = DateTime.now();
+    Date expiresAt = now.plusHours(Constants.IDEMPOTENCY_KEY_TTL_HOURS).toDate();
+    Entity record = new Entity(IDEMPOTENCY_RECORD_KIND, name);
+    record.setUnindexedProperty(RESULT, result);
+    record.setUnindexedProperty(CLAIM_TIME, now.toDate());
+    record.setProperty(EXPIRES_AT, expiresAt);
+    // the claim already keeps other requests out, so no transaction needed
+    this.datastore.put(record);
+    this.cacheResult(name, result, expiresAt);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.IdempotencyPersistence#release(java.lang.String, java.lang.String, java.lang.String)
+   */
+  @Override
+  public void release(String username, String operation, String idempotencyKey) {
+    Utils.checkAllParamsNotNull(username, operation, idempotencyKey);
+
+    this.datastore.delete(KeyFactory.createKey(IDEMPOTENCY_RECORD_KIND,
+        createRecordName(username, operation, idempotencyKey)));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.IdempotencyPersistence#purgeExpired()
+   */
+  @Override
+  public int purgeExpired() {
+    Query query = new Query(IDEMPOTENCY_RECORD_KIND)
+        .setFilter(new Query.FilterPredicate(EXPIRES_AT, FilterOperator.LESS_THAN, new Date()))
+        .setKeysOnly();
+
+    int deletedCount = 0;
+    List<Key> batch = Lists.newArrayListWithCapacity(MAX_BATCH_DELETE_SIZE);
+    for (Entity e : this.datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(MAX_BATCH_DELETE_SIZE))) {
+      batch.add(e.getKey());
+      if (batch.size() == MAX_BATCH_DELETE_SIZE) {
+        this.datastore.delete(batch);
+        deletedCount += batch.size();
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      this.datastore.delete(batch);
+      deletedCount += batch.size();
+    }
+    return deletedCount;
+  }
+
+  private void cacheResult(String name, String result, Date expiresAt) {
+    this.memcache.put(name, result, Expiration.onDate(expiresAt));
+  }
+
+  // completed records are live until they expire; claims (without a result)
+  // only for as long as the request which made them could still be running
+  private static boolean isLive(Entity e, DateTime now) {
+    if (!now.toDate().before((Date) e.getProperty(EXPIRES_AT))) {
+      return false;
+    }
+    if (e.getProperty(RESULT) != null) {
+      return true;
+    }
+    Date claimTime = (Date) e.getProperty(CLAIM_TIME);
+    return now.minus(TimeUnit.SECONDS.toMillis(Constants.IDEMPOTENCY_CLAIM_TIMEOUT_SECONDS))
+        .toDate().before(claimTime);
+  }
+
+  private static String createRecordName(String username, String operation,
+      String idempotencyKey) {
+    return String.format("%s/%s/%s", username, operation, idempotencyKey);
+  }
+}
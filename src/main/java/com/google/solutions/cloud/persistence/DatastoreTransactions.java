@@ -0,0 +1,126 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.base.Throwables;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.metrics.Tracing;
+import com.google.solutions.cloud.util.Utils;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry helper for Datastore transactions, shared by the Datastore-backed
+ * persistence implementations. Retried and abandoned transactions are
+ * counted in {@link Metrics}, and contention per entity group is kept in
+ * {@link EntityGroupContention}.
+ */
+final class DatastoreTransactions {
+  // FIXME: using a retry helper library with exponential backoff is always better...
+  private static final int MAX_TRANSACTION_RETRIES = 5;
+  private static final long TRANSACTION_RETRY_DELAY_MILLIS = 200;
+
+  // name of the operation whose transaction the current thread is in
+  private static final ThreadLocal<String> CURRENT_OPERATION = new ThreadLocal<>();
+
+  private DatastoreTransactions() {}
+
+  // attempt to execute the given block in a transaction,
+  // retrying only on ConcurrentModificationException and
+  // InterruptedException. if any other exception is thrown
+  // from the block, it will be propagated as a RuntimeException.
+  // the transaction's entity group (that of the given key) and the
+  // operation's name are only used to keep track of contention.
+  static <T> T tryTransaction(DatastoreService datastore, Key entityGroupKey, String operation,
+      TransactionBlock<T> block) {
+    return tryTransaction(datastore, TransactionOptions.Builder.withDefaults(), entityGroupKey,
+        operation, block);
+  }
+
+  // as above, with the given options (e.g. cross-group); contention is
+  // recorded against the entity group of the given key only
+  static <T> T tryTransaction(DatastoreService datastore, TransactionOptions options,
+      Key entityGroupKey, String operation, TransactionBlock<T> block) {
+    Utils.checkAllParamsNotNull(datastore, options, entityGroupKey, operation, block);
+
+    String entityGroup = getRootKey(entityGroupKey).toString();
+    Tracing.Span span = Tracing.startSpan("datastore.transaction")
+        .set("operation", operation)
+        .set("entityGroup", entityGroup);
+    String enclosingOperation = CURRENT_OPERATION.get();
+    CURRENT_OPERATION.set(operation);
+    int retryCount = 0;
+    try {
+      do {
+        // a rolled back transaction can't be reused, so each attempt gets its own
+        Transaction txn = null;
+        try {
+          if (retryCount > 0) {
+            Metrics.increment("datastore.transactionRetries");
+            Metrics.increment("datastore.transactions." + operation + ".retries");
+            Thread.sleep(TRANSACTION_RETRY_DELAY_MILLIS);
+          }
+          txn = datastore.beginTransaction(options);
+          T result = block.execute(txn);
+          EntityGroupContention.recordTransaction(entityGroup, operation, retryCount + 1, false);
+          return result;
+        } catch (ConcurrentModificationException | InterruptedException e) {
+          // ConcurrentModificationException => maybe retry
+          // InterruptedException => ...just swallow this one
+        } catch (Exception e) {
+          EntityGroupContention.recordTransaction(entityGroup, operation, retryCount + 1, false);
+          Throwables.propagate(e);
+        } finally {
+          if (txn != null && txn.isActive()) {
+            txn.rollback();
+          }
+        }
+      } while (retryCount++ < MAX_TRANSACTION_RETRIES);
+    } finally {
+      CURRENT_OPERATION.set(enclosingOperation);
+      // the loop only runs out (leaving the count one past the last attempt)
+      // when the transaction's abandoned
+      boolean abandoned = retryCount > MAX_TRANSACTION_RETRIES;
+      span.set("attempts", abandoned ? retryCount : retryCount + 1)
+          .set("abandoned", abandoned ? true : null)
+          .close();
+    }
+
+    Metrics.increment("datastore.transactionsAbandoned");
+    Metrics.increment("datastore.transactions." + operation + ".abandoned");
+    EntityGroupContention.recordTransaction(entityGroup, operation,
+        MAX_TRANSACTION_RETRIES + 1, true);
+    throw new ConcurrentModificationException(String.format(
+        "abandoning transaction after %d unsuccessful attempts",
+        MAX_TRANSACTION_RETRIES));
+  }
+
+  // commits a transaction begun by tryTransaction, timing the commit as
+  // datastore.commit.<operation>
+  static void commit(Transaction txn) {
+    String operation = CURRENT_OPERATION.get();
+    long startNanos = System.nanoTime();
+    try {
+      txn.commit();
+    } finally {
+      Metrics.recordLatency(
+          operation == null ? "datastore.commit" : "datastore.commit." + operation,
+          System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static Key getRootKey(Key key) {
+    Key rootKey = key;
+    while (rootKey.getParent() != null) {
+      rootKey = rootKey.getParent();
+    }
+    return rootKey;
+  }
+
+  static interface TransactionBlock<T> {
+    T execute(Transaction txn) throws Exception;
+  }
+}
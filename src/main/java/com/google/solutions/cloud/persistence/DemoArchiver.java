@@ -0,0 +1,161 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.solutions.cloud.archive.ArchiveStore;
+import com.google.solutions.cloud.archive.DemoArchiveWriter;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Moves demos which were torn down (i.e. are DELETING) before a cutoff out
+ * of Datastore, a page at a time: each page of such demos is written to a
+ * new archive file in an {@link ArchiveStore}, along with their templates,
+ * and only then deleted, through {@link DemoInfoPersistence#deleteAll}, so
+ * that their owners' usage stays right. A page which fails part way is
+ * archived again when it's retried; see {@link
+ * com.google.solutions.cloud.archive.DemoArchiveReader} for reading the
+ * archives back.
+ *
+ * <p>The demos' event logs stay in Datastore, since they outlive the demos
+ * anyway.
+ */
+public class DemoArchiver {
+  private static final Logger LOGGER = Logger.getLogger(DemoArchiver.class.toString());
+
+  static final String ARCHIVE_NAME_SUFFIX = ".demos.gz";
+  static final int PAGE_SIZE = DatastoreDemoInfoPersistence.MAX_BATCH_PUT_SIZE;
+
+  private static final Random RANDOM = new SecureRandom();
+
+  private final DatastoreService datastore;
+  private final DemoInfoPersistence demoInfoPersistence;
+  private final ArchiveStore archiveStore;
+
+  public DemoArchiver(DatastoreService datastore, DemoInfoPersistence demoInfoPersistence,
+      ArchiveStore archiveStore) {
+    this.datastore = checkNotNull(datastore);
+    this.demoInfoPersistence = checkNotNull(demoInfoPersistence);
+    this.archiveStore = checkNotNull(archiveStore);
+  }
+
+  /**
+   * Archive and delete one page of the demos which were torn down before
+   * the cutoff.
+   * @param cutoff demos which changed status at or after this time are kept.
+   * @param startCursor where the page starts; null for the first one.
+   * @return the cursor where the next page starts; absent if this was the
+   * last page.
+   * @throws IOException if the page couldn't be archived, in which case
+   * none of its demos have been deleted.
+   */
+  public Optional<Cursor> archivePage(Date cutoff, Cursor startCursor) throws IOException {
+    checkNotNull(cutoff);
+
+    // a demo can't have changed status before it was created, so this
+    // narrows the query down to the demos which could be old enough
+    Query query = new Query(DemoInfo.DEMO_KIND)
+        .setFilter(CompositeFilterOperator.and(
+            new Query.FilterPredicate(DemoInfo.STATUS, FilterOperator.EQUAL,
+                DemoStatus.DELETING.toString()),
+            new Query.FilterPredicate(DemoInfo.CREATION_TIME, FilterOperator.LESS_THAN, cutoff)))
+        .addSort(DemoInfo.CREATION_TIME, SortDirection.DESCENDING);
+    FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+    if (startCursor != null) {
+      options.startCursor(startCursor);
+    }
+    QueryResultList<Entity> page = this.datastore.prepare(query).asQueryResultList(options);
+
+    boolean rootDemoKeys = DemoInfoPersistences.isRootDemoKeysEnabled();
+    List<Entity> demoEntities = Lists.newArrayListWithCapacity(page.size());
+    for (Entity e : page) {
+      DemoInfo demoInfo = DemoInfo.fromDatastoreEntity(e);
+      // records written before statusChangeTime existed fall back to creationTime
+      Date statusChangeTime = demoInfo.getStatusChangeTime() != null
+          ? demoInfo.getStatusChangeTime() : demoInfo.getCreationTime();
+      // once demos have root-level keys, records in the per-user layout are
+      // left for the migration, which gives them new keys
+      if ((rootDemoKeys && e.getKey().getParent() != null) || !statusChangeTime.before(cutoff)) {
+        continue;
+      }
+      demoEntities.add(e);
+    }
+
+    if (!demoEntities.isEmpty()) {
+      this.archive(demoEntities);
+      this.delete(demoEntities);
+    }
+    LOGGER.info(String.format("archived %d of %d torn down demos created before %s",
+        demoEntities.size(), page.size(), cutoff));
+
+    // a short page is the last one
+    return page.size() == PAGE_SIZE
+        ? Optional.of(page.getCursor()) : Optional.<Cursor>absent();
+  }
+
+  private void archive(List<Entity> demoEntities) throws IOException {
+    List<Key> templateKeys = Lists.newArrayListWithCapacity(demoEntities.size());
+    for (Entity e : demoEntities) {
+      templateKeys.add(DemoInfo.createTemplateKey(e.getKey()));
+    }
+    Map<Key, Entity> templateEntities = this.datastore.get(templateKeys);
+
+    String archiveName = createArchiveName();
+    try (DemoArchiveWriter writer = new DemoArchiveWriter(
+        this.archiveStore.create(archiveName))) {
+      for (Entity e : demoEntities) {
+        writer.append(e, Optional.fromNullable(
+            templateEntities.get(DemoInfo.createTemplateKey(e.getKey()))));
+      }
+      // an archive which isn't committed is discarded when the writer is closed
+      writer.commit();
+    }
+    LOGGER.info(String.format("archived %d demos to %s", demoEntities.size(), archiveName));
+  }
+
+  private void delete(List<Entity> demoEntities) {
+    ListMultimap<String, Long> demoIdsByOwner = ArrayListMultimap.create();
+    for (Entity e : demoEntities) {
+      demoIdsByOwner.put(DemoInfo.getOwner(e), e.getKey().getId());
+    }
+    for (String owner : demoIdsByOwner.keySet()) {
+      this.demoInfoPersistence.deleteAll(owner, demoIdsByOwner.get(owner));
+    }
+  }
+
+  // names sort in the order the archives were written in; the random part
+  // keeps archives written at the same time apart
+  private static String createArchiveName() {
+    byte[] randomBytes = new byte[4];
+    RANDOM.nextBytes(randomBytes);
+    return String.format("%s-%s%s",
+        DateTime.now(DateTimeZone.UTC).toString("yyyyMMdd'T'HHmmss.SSS"),
+        BaseEncoding.base16().lowerCase().encode(randomBytes), ARCHIVE_NAME_SUFFIX);
+  }
+}
@@ -0,0 +1,38 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.solutions.cloud.demo.info.DemoEvent;
+import com.google.solutions.cloud.demo.info.DemoEventType;
+import com.google.solutions.cloud.demo.info.DemoLatencyDistribution;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Read-only interface to the demos' event logs (see {@link DemoEvent}); the
+ * events themselves are written by {@link DemoInfoPersistence}, along with
+ * the changes they record.
+ */
+public interface DemoEventPersistence {
+
+  /**
+   * Get the event log of a single demo, which outlives the demo itself.
+   * @param demoId ID of the demo.
+   * @return the demo's events, oldest first; empty if there are none.
+   */
+  List<DemoEvent> getEvents(Long demoId);
+
+  /**
+   * Get the distribution of the latencies from one lifecycle event to
+   * another (e.g. from LAUNCHED to RUNNING), per zone and image, over the
+   * demos which reached the later event since the given time. Each later
+   * event is paired with the most recent earlier event of the same demo
+   * that preceded it; later events without one are left out.
+   * @param from type of the event the latencies are measured from.
+   * @param to type of the event the latencies are measured to.
+   * @param since only later events at or after this time are included.
+   * @return one {@link DemoLatencyDistribution} per zone and image, ordered
+   * by zone, then image; if there were too many events to read them all,
+   * they only cover the most recent ones, and are marked as truncated.
+   */
+  List<DemoLatencyDistribution> getLatencies(DemoEventType from, DemoEventType to, Date since);
+}
@@ -3,9 +3,12 @@ package com.google.solutions.cloud.persistence;
 import com.google.common.base.Optional;
 import com.google.common.collect.Multimap;
 import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoSearchResults;
 import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.user.info.UserUsage;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -27,6 +30,18 @@ public interface DemoInfoPersistence {
    */
   DemoInfo createNewDemo(String username, DemoInfo initialDemoInfo);
 
+  /**
+   * Create new {@link DemoInfo} records for the specified user in bulk, as
+   * though {@link #createNewDemo(String, DemoInfo)} had been called for each
+   * of them, but with batched writes.
+   * @param username username for the demos.
+   * @param initialDemoInfos {@link DemoInfo} records containing the initial
+   * information for each of the new demos.
+   * @return the newly created {@link DemoInfo} records, in the same order as
+   * initialDemoInfos.
+   */
+  List<DemoInfo> createNewDemos(String username, List<DemoInfo> initialDemoInfos);
+
   /**
    * Fetch the specified {@link DemoInfo} record.
    * @param username username for the demo.
@@ -36,6 +51,29 @@ public interface DemoInfoPersistence {
    */
   Optional<DemoInfo> get(String username, Long demoId);
 
+  /**
+   * Conditionally fetch the specified {@link DemoInfo} record. If the
+   * record's version matches ifNoneMatchVersion, a stub record is returned
+   * instead of the full one: only its demoId, version, status and
+   * deploymentStatus are set, and {@link DemoInfo#isNotModified()} is true.
+   * @param username username for the demo.
+   * @param demoId id of the demo.
+   * @param ifNoneMatchVersion version of the record the caller already has.
+   * @return {@link Optional} containing the full or stub {@link DemoInfo}
+   * record, if any such record could be found; {@link Optional#absent()},
+   * otherwise.
+   */
+  Optional<DemoInfo> get(String username, Long demoId, long ifNoneMatchVersion);
+
+  /**
+   * Fetch the version of the specified user's list of demos. The version
+   * changes whenever any of the user's {@link DemoInfo} records is created,
+   * updated or deleted.
+   * @param username name of the user.
+   * @return the current list version; 0 if the user has never had any demos.
+   */
+  long getListVersion(String username);
+
   /**
    * Delete the specified {@link DemoInfo} record.
    * @param username username for the demo.
@@ -43,9 +81,20 @@ public interface DemoInfoPersistence {
    */
   void delete(String username, Long demoId);
 
+  /**
+   * Delete the specified {@link DemoInfo} records in bulk, as though
+   * {@link #delete(String, Long)} had been called for each of them, but with
+   * batched writes. Meant for demos which no longer change, such as torn down
+   * demos which have been archived (see {@link DemoArchiver}).
+   * @param username username for the demos.
+   * @param demoIds ids of the demos; ones which no longer exist are skipped.
+   */
+  void deleteAll(String username, List<Long> demoIds);
+
   /**
    * Update the {@link DemoStatus} of the specified {@link DemoInfo} record,
-   * if such a record exists.
+   * if such a record exists. The record's statusChangeTime is set to the
+   * time of the update.
    *
    * @param username username for the demo.
    * @param demoId id of the demo.
@@ -54,6 +103,46 @@ public interface DemoInfoPersistence {
   void updateStatus(String username,
       Long demoId, DemoStatus newStatus);
 
+  /**
+   * Record that the deployment of the specified {@link DemoInfo} record was
+   * preempted, incrementing its preemptionCount (and, if the deployment was
+   * relaunched, its restartCount). A preemption which isn't newer than the
+   * record's lastPreemptionTime was already counted, so relaunching it again
+   * only counts as a restart.
+   * @param username username for the demo.
+   * @param demoId id of the demo.
+   * @param preemptionTime when the deployment was preempted.
+   * @param relaunched whether the preempted deployment was relaunched.
+   */
+  void recordPreemption(String username, Long demoId, Date preemptionTime,
+      boolean relaunched);
+
+  /**
+   * Record that the specified LAUNCHED {@link DemoInfo} record's deployment
+   * answered a readiness probe, setting its readyTime (and time to ready,
+   * measured from launchTime) and its deployment status to
+   * {@link DemoInfo#READY_DEPLOYMENT_STATUS}. Both are cleared again by
+   * the next status change or preemption.
+   * @param username username for the demo.
+   * @param demoId id of the demo.
+   * @param launchTime time at which the deployment was (re)launched.
+   * @param readyTime time at which the probe succeeded.
+   * @return whether the record was updated; false if the demo is gone, no
+   * longer LAUNCHED, or was already recorded as ready.
+   */
+  boolean recordReady(String username, Long demoId, Date launchTime, Date readyTime);
+
+  /**
+   * Record the last observed deployment status of the specified
+   * {@link DemoInfo} record. The record (and the user's list version) is
+   * only rewritten if the deployment status actually changed.
+   * @param username username for the demo.
+   * @param demoId id of the demo.
+   * @param newDeploymentStatus deployment status observed for the demo.
+   * @return the version of the record after the update.
+   */
+  long updateDeploymentStatus(String username, Long demoId, String newDeploymentStatus);
+
   /**
    * Retrieve all {@link DemoInfo} records, within this demo application, which
    * have the indicated status.
@@ -65,6 +154,26 @@ public interface DemoInfoPersistence {
    */
   List<DemoInfo> findAllActiveDemosForUser(String username);
 
+  /**
+   * Fetch the specified user's demo counts (per {@link DemoStatus}) and VM
+   * usage. These are kept up to date by every write to the user's
+   * {@link DemoInfo} records, so this never has to look at the records
+   * themselves.
+   * @param username name of the user.
+   * @return the user's current {@link UserUsage}.
+   */
+  UserUsage getUsage(String username);
+
+  /**
+   * Retrieve all {@link DemoInfo} records which were created for the specified
+   * user as part of the given workshop.
+   * @param username name of the user who created the workshop.
+   * @param workshopId id of the workshop.
+   * @return {@link List} containing the workshop's {@link DemoInfo} records,
+   * in no particular order.
+   */
+  List<DemoInfo> findAllDemosForWorkshop(String username, String workshopId);
+
   /**
    * Retrieve all {@link DemoInfo} records, within this demo application, which
    * have the indicated status.
@@ -75,6 +184,19 @@ public interface DemoInfoPersistence {
    */
   Multimap<String, DemoInfo> findAllDemosWithStatus(DemoStatus status);
 
+  /**
+   * Search {@link DemoInfo} records across all users, one page at a time.
+   * Without text, results are sorted by creationTime in descending order;
+   * with text, they're sorted by relevance, and pages may come back with
+   * fewer than pageSize records.
+   * @param criteria filters, page size and page token for the search.
+   * @return one page of matching {@link DemoInfo} records, along with the
+   * token for the next page, if there is one.
+   * @throws IllegalArgumentException if the criteria (or page token) are
+   * invalid.
+   */
+  DemoSearchResults searchDemos(DemoSearchCriteria criteria);
+
   /**
    * Reserve the requested number of instance names for the specified
    * user.
@@ -0,0 +1,29 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.solutions.cloud.metrics.Metrics;
+
+/**
+ * Creates the {@link DemoInfoPersistence} the app runs with, timed by
+ * {@link Metrics}: {@link RootDemoInfoPersistence} if the
+ * {@value #ROOT_DEMO_KEYS_PROPERTY} system property (see
+ * appengine-web.xml) is true, {@link DatastoreDemoInfoPersistence}
+ * otherwise. Switching to root-level keys is one way: once records have been
+ * moved, the per-user layout no longer sees them.
+ */
+public final class DemoInfoPersistences {
+  public static final String ROOT_DEMO_KEYS_PROPERTY = "demo.rootDemoKeys";
+
+  private DemoInfoPersistences() {}
+
+  public static boolean isRootDemoKeysEnabled() {
+    return Boolean.getBoolean(ROOT_DEMO_KEYS_PROPERTY);
+  }
+
+  public static DemoInfoPersistence create() {
+    DemoInfoPersistence persistence = isRootDemoKeysEnabled()
+        ? new RootDemoInfoPersistence(DatastoreServiceFactory.getDatastoreService())
+        : new DatastoreDemoInfoPersistence(DatastoreServiceFactory.getDatastoreService());
+    return Metrics.timed(DemoInfoPersistence.class, persistence, "persistence");
+  }
+}
@@ -0,0 +1,97 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.solutions.cloud.demo.info.DemoStatus;
+
+import java.util.Date;
+
+/**
+ * "Java bean"-style set of filters for searching {@link
+ * com.google.solutions.cloud.demo.info.DemoInfo} records across users. Any
+ * filter left null matches every record.
+ */
+public class DemoSearchCriteria {
+  private DemoStatus status;
+  private String zone;
+  private String usernamePrefix;
+  // inclusive
+  private Date createdAfter;
+  // exclusive
+  private Date createdBefore;
+  // full-text search over descriptions
+  private String text;
+  private int pageSize;
+  // opaque token from the previous page's results, if any
+  private String pageToken;
+
+  public DemoStatus getStatus() {
+    return this.status;
+  }
+
+  public String getZone() {
+    return this.zone;
+  }
+
+  public String getUsernamePrefix() {
+    return this.usernamePrefix;
+  }
+
+  public Date getCreatedAfter() {
+    return this.createdAfter;
+  }
+
+  public Date getCreatedBefore() {
+    return this.createdBefore;
+  }
+
+  public String getText() {
+    return this.text;
+  }
+
+  public int getPageSize() {
+    return this.pageSize;
+  }
+
+  public String getPageToken() {
+    return this.pageToken;
+  }
+
+  public DemoSearchCriteria setStatus(DemoStatus newStatus) {
+    this.status = newStatus;
+    return this;
+  }
+
+  public DemoSearchCriteria setZone(String newZone) {
+    this.zone = newZone;
+    return this;
+  }
+
+  public DemoSearchCriteria setUsernamePrefix(String newUsernamePrefix) {
+    this.usernamePrefix = newUsernamePrefix;
+    return this;
+  }
+
+  public DemoSearchCriteria setCreatedAfter(Date newCreatedAfter) {
+    this.createdAfter = newCreatedAfter;
+    return this;
+  }
+
+  public DemoSearchCriteria setCreatedBefore(Date newCreatedBefore) {
+    this.createdBefore = newCreatedBefore;
+    return this;
+  }
+
+  public DemoSearchCriteria setText(String newText) {
+    this.text = newText;
+    return this;
+  }
+
+  public DemoSearchCriteria setPageSize(int newPageSize) {
+    this.pageSize = newPageSize;
+    return this;
+  }
+
+  public DemoSearchCriteria setPageToken(String newPageToken) {
+    this.pageToken = newPageToken;
+    return this;
+  }
+}
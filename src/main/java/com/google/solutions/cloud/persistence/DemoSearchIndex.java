@@ -0,0 +1,121 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.search.Cursor;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SearchQueryException;
+import com.google.appengine.api.search.SearchService;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full-text index of demo descriptions, in the App Engine Search API. Each
+ * document's id is the (web-safe) Datastore key of its demo, so matches are
+ * loaded back from Datastore; only descriptions are indexed, since they
+ * never change after a demo is created.
+ */
+final class DemoSearchIndex {
+  static final String INDEX_NAME = "demos";
+  static final String DESCRIPTION_FIELD = "description";
+
+  // the Search API takes at most this many documents per put (or delete)
+  private static final int MAX_BATCH_PUT_SIZE = 200;
+
+  private final SearchService searchService;
+
+  DemoSearchIndex(SearchService searchService) {
+    this.searchService = checkNotNull(searchService);
+  }
+
+  // index the descriptions of newly created demos, by demo key; demos
+  // without descriptions are skipped
+  void add(Map<Key, String> descriptionsByKey) {
+    checkNotNull(descriptionsByKey);
+
+    List<Document> documents = Lists.newArrayList();
+    for (Map.Entry<Key, String> entry : descriptionsByKey.entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
+      }
+      documents.add(Document.newBuilder()
+          .setId(KeyFactory.keyToString(entry.getKey()))
+          .addField(Field.newBuilder().setName(DESCRIPTION_FIELD).setText(entry.getValue()))
+          .build());
+    }
+    for (List<Document> batch : Lists.partition(documents, MAX_BATCH_PUT_SIZE)) {
+      this.getIndex().put(batch);
+    }
+  }
+
+  void remove(Key demoKey) {
+    checkNotNull(demoKey);
+    this.getIndex().delete(KeyFactory.keyToString(demoKey));
+  }
+
+  void removeAll(List<Key> demoKeys) {
+    checkNotNull(demoKeys);
+
+    List<String> documentIds = Lists.newArrayListWithCapacity(demoKeys.size());
+    for (Key demoKey : demoKeys) {
+      documentIds.add(KeyFactory.keyToString(demoKey));
+    }
+    for (List<String> batch : Lists.partition(documentIds, MAX_BATCH_PUT_SIZE)) {
+      this.getIndex().delete(batch);
+    }
+  }
+
+  // one page of the keys of demos whose descriptions match the given text
+  Page search(String text, String pageToken, int pageSize) {
+    checkNotNull(text);
+    checkArgument(pageSize > 0, "pageSize must be positive, got %d", pageSize);
+
+    Cursor cursor = pageToken == null
+        ? Cursor.newBuilder().build() : Cursor.newBuilder().build(pageToken);
+    Results<ScoredDocument> results;
+    try {
+      results = this.getIndex().search(Query.newBuilder()
+          .setOptions(QueryOptions.newBuilder()
+              .setLimit(pageSize)
+              .setCursor(cursor)
+              .setReturningIdsOnly(true))
+          .build(text));
+    } catch (SearchQueryException e) {
+      throw new IllegalArgumentException("invalid search text: " + text, e);
+    }
+
+    List<Key> demoKeys = Lists.newArrayList();
+    for (ScoredDocument document : results) {
+      demoKeys.add(KeyFactory.stringToKey(document.getId()));
+    }
+    Cursor nextCursor = results.getCursor();
+    return new Page(demoKeys, nextCursor == null ? null : nextCursor.toWebSafeString());
+  }
+
+  private Index getIndex() {
+    return this.searchService.getIndex(IndexSpec.newBuilder().setName(INDEX_NAME).build());
+  }
+
+  static final class Page {
+    final List<Key> demoKeys;
+    // null on the last page
+    final String nextPageToken;
+
+    Page(List<Key> demoKeys, String nextPageToken) {
+      this.demoKeys = demoKeys;
+      this.nextPageToken = nextPageToken;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.common.base.Optional;
+import com.google.solutions.cloud.compute.DeploymentProfile;
+
+import java.util.List;
+
+/**
+ * Persistence interface for {@link DeploymentProfile} records.
+ */
+public interface DeploymentProfilePersistence {
+
+  /**
+   * Fetch the specified {@link DeploymentProfile} record. The default profile
+   * (see {@link DeploymentProfile#DEFAULT_PROFILE_NAME}) always exists, even
+   * if it has never been saved.
+   * @param name name of the profile.
+   * @return {@link Optional} containing the requested {@link DeploymentProfile}
+   * record, if any such record could be found; {@link Optional#absent()},
+   * otherwise. The returned record must not be modified.
+   */
+  Optional<DeploymentProfile> get(String name);
+
+  /**
+   * Retrieve all {@link DeploymentProfile} records, including the default
+   * profile.
+   * @return {@link List} containing all {@link DeploymentProfile} records,
+   * sorted by name. The returned records must not be modified.
+   */
+  List<DeploymentProfile> list();
+
+  /**
+   * Create or overwrite the {@link DeploymentProfile} record with the same
+   * name as the given profile.
+   * @param profile the profile to save.
+   */
+  void save(DeploymentProfile profile);
+}
@@ -0,0 +1,207 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sliding window (of the last {@value #WINDOW_MINUTES} minutes, on this
+ * instance) of Datastore transaction contention per entity group: how many
+ * transactions each group saw, how many times they had to be retried because
+ * of concurrent writes to the group, how many were abandoned, and which
+ * operations the retries came from. Fed by
+ * {@link DatastoreTransactions#tryTransaction}, and read through
+ * {@link #getHottestGroups}, which points at the users (or workflows) whose
+ * writes would benefit from a different key layout.
+ *
+ * <p>Each minute tracks at most {@value #MAX_GROUPS_PER_MINUTE} groups; any
+ * more are lumped together as {@value #OTHER_GROUPS}.
+ */
+public final class EntityGroupContention {
+  public static final int WINDOW_MINUTES = 10;
+  public static final String OTHER_GROUPS = "(other)";
+  private static final int MAX_GROUPS_PER_MINUTE = 1000;
+
+  // one slot per minute of the window, reused round robin
+  private static final AtomicReferenceArray<MinuteCounts> MINUTES =
+      new AtomicReferenceArray<>(WINDOW_MINUTES);
+
+  private static final Comparator<GroupStats> CONTENTION_DESC_COMPARATOR =
+      new Comparator<GroupStats>() {
+        @Override
+        public int compare(GroupStats s1, GroupStats s2) {
+          int byRetries = Longs.compare(s2.getRetries() + s2.getAbandoned(),
+              s1.getRetries() + s1.getAbandoned());
+          return byRetries != 0
+              ? byRetries : Longs.compare(s2.getTransactions(), s1.getTransactions());
+        }
+      };
+
+  private EntityGroupContention() {}
+
+  // records a finished (committed, failed or abandoned) transaction on the
+  // given entity group, which took the given number of attempts
+  static void recordTransaction(String entityGroup, String operation, int attempts,
+      boolean abandoned) {
+    GroupCounts counts = getCurrentMinute().getGroupCounts(entityGroup);
+    counts.transactions.incrementAndGet();
+    if (attempts > 1) {
+      counts.retries.addAndGet(attempts - 1);
+      AtomicLong operationRetries = counts.retriesByOperation.get(operation);
+      if (operationRetries == null) {
+        AtomicLong newOperationRetries = new AtomicLong();
+        operationRetries = counts.retriesByOperation.putIfAbsent(operation, newOperationRetries);
+        if (operationRetries == null) {
+          operationRetries = newOperationRetries;
+        }
+      }
+      operationRetries.addAndGet(attempts - 1);
+    }
+    if (abandoned) {
+      counts.abandoned.incrementAndGet();
+    }
+  }
+
+  // the (at most) limit groups which saw the most retries and abandoned
+  // transactions over the window; groups without any aren't included
+  public static List<GroupStats> getHottestGroups(int limit) {
+    long currentMinute = currentMinute();
+    Map<String, GroupStats> statsByGroup = Maps.newHashMap();
+    for (int i = 0; i < WINDOW_MINUTES; i++) {
+      MinuteCounts minute = MINUTES.get(i);
+      if (minute == null || currentMinute - minute.minute >= WINDOW_MINUTES) {
+        continue;
+      }
+      for (Map.Entry<String, GroupCounts> entry : minute.groups.entrySet()) {
+        GroupStats stats = statsByGroup.get(entry.getKey());
+        if (stats == null) {
+          stats = new GroupStats(entry.getKey());
+          statsByGroup.put(entry.getKey(), stats);
+        }
+        stats.add(entry.getValue());
+      }
+    }
+
+    List<GroupStats> contendedGroups = Lists.newArrayList();
+    for (GroupStats stats : statsByGroup.values()) {
+      if (stats.getRetries() + stats.getAbandoned() > 0) {
+        contendedGroups.add(stats);
+      }
+    }
+    Collections.sort(contendedGroups, CONTENTION_DESC_COMPARATOR);
+    return contendedGroups.subList(0, Math.min(limit, contendedGroups.size()));
+  }
+
+  public static void reset() {
+    for (int i = 0; i < WINDOW_MINUTES; i++) {
+      MINUTES.set(i, null);
+    }
+  }
+
+  private static MinuteCounts getCurrentMinute() {
+    long minute = currentMinute();
+    int slot = (int) (minute % WINDOW_MINUTES);
+    MinuteCounts counts = MINUTES.get(slot);
+    while (counts == null || counts.minute != minute) {
+      if (counts != null && counts.minute > minute) {
+        // another thread already moved on to a later minute; close enough
+        return counts;
+      }
+      MinuteCounts newCounts = new MinuteCounts(minute);
+      if (MINUTES.compareAndSet(slot, counts, newCounts)) {
+        return newCounts;
+      }
+      counts = MINUTES.get(slot);
+    }
+    return counts;
+  }
+
+  private static long currentMinute() {
+    return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+  }
+
+  private static final class MinuteCounts {
+    private final long minute;
+    private final ConcurrentMap<String, GroupCounts> groups = new ConcurrentHashMap<>();
+
+    MinuteCounts(long minute) {
+      this.minute = minute;
+    }
+
+    GroupCounts getGroupCounts(String entityGroup) {
+      GroupCounts counts = this.groups.get(entityGroup);
+      if (counts != null) {
+        return counts;
+      }
+      String key = this.groups.size() < MAX_GROUPS_PER_MINUTE ? entityGroup : OTHER_GROUPS;
+      GroupCounts newCounts = new GroupCounts();
+      counts = this.groups.putIfAbsent(key, newCounts);
+      return counts == null ? newCounts : counts;
+    }
+  }
+
+  private static final class GroupCounts {
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> retriesByOperation =
+        new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Contention of a single entity group over the window.
+   */
+  public static final class GroupStats {
+    private final String entityGroup;
+    private long transactions;
+    private long retries;
+    private long abandoned;
+    private final Map<String, Long> retriesByOperation = Maps.newHashMap();
+
+    GroupStats(String entityGroup) {
+      this.entityGroup = entityGroup;
+    }
+
+    public String getEntityGroup() {
+      return this.entityGroup;
+    }
+
+    public long getTransactions() {
+      return this.transactions;
+    }
+
+    public long getRetries() {
+      return this.retries;
+    }
+
+    public long getAbandoned() {
+      return this.abandoned;
+    }
+
+    public Map<String, Long> getRetriesByOperation() {
+      return ImmutableSortedMap.copyOf(this.retriesByOperation);
+    }
+
+    private void add(GroupCounts counts) {
+      this.transactions += counts.transactions.get();
+      this.retries += counts.retries.get();
+      this.abandoned += counts.abandoned.get();
+      for (Map.Entry<String, AtomicLong> entry : counts.retriesByOperation.entrySet()) {
+        Long retries = this.retriesByOperation.get(entry.getKey());
+        this.retriesByOperation.put(entry.getKey(),
+            (retries == null ? 0 : retries) + entry.getValue().get());
+      }
+    }
+  }
+}
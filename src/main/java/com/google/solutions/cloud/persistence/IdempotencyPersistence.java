@@ -0,0 +1,54 @@
+package com.google.solutions.cloud.persistence;
+
+import com.google.common.base.Optional;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * Persistence interface for the results of API calls made with an
+ * idempotency key, so that a client retrying such a call (e.g. after a
+ * timeout) gets the original result instead of repeating the call's work.
+ * Keys are scoped to a user and an operation, and results expire after
+ * {@link com.google.solutions.cloud.Constants#IDEMPOTENCY_KEY_TTL_HOURS}.
+ */
+public interface IdempotencyPersistence {
+
+  /**
+   * Claim the given idempotency key for the calling request, unless an
+   * earlier request with the same key already completed. A claimed key must
+   * be either completed or released by the caller.
+   * @param username name of the user making the request.
+   * @param operation name of the operation being requested.
+   * @param idempotencyKey client-provided key for the request.
+   * @return {@link Optional} containing the result of the earlier request, if
+   * there was one; {@link Optional#absent()} if the key is now claimed for
+   * the calling request.
+   * @throws ConcurrentModificationException if another request with the same
+   * key is still in progress.
+   */
+  Optional<String> claim(String username, String operation, String idempotencyKey);
+
+  /**
+   * Record the result of a request for which the key was claimed.
+   * @param username name of the user making the request.
+   * @param operation name of the operation being requested.
+   * @param idempotencyKey client-provided key for the request.
+   * @param result result to return to retries of the request.
+   */
+  void complete(String username, String operation, String idempotencyKey, String result);
+
+  /**
+   * Release a claimed key without a result (e.g. because the request
+   * failed), so that the request can be retried.
+   * @param username name of the user making the request.
+   * @param operation name of the operation being requested.
+   * @param idempotencyKey client-provided key for the request.
+   */
+  void release(String username, String operation, String idempotencyKey);
+
+  /**
+   * Delete all expired records.
+   * @return the number of records deleted.
+   */
+  int purgeExpired();
+}
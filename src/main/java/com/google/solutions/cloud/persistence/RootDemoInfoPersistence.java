@@ -0,0 +1,950 @@
+package com.google.solutions.cloud.persistence;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.search.SearchService;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.solutions.cloud.demo.info.DemoEvent;
+import com.google.solutions.cloud.demo.info.DemoEventType;
+import com.google.solutions.cloud.demo.info.DemoInfo;
+import com.google.solutions.cloud.demo.info.DemoSearchResults;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+import com.google.solutions.cloud.metrics.Metrics;
+import com.google.solutions.cloud.metrics.Tracing;
+import com.google.solutions.cloud.persistence.DatastoreTransactions.TransactionBlock;
+import com.google.solutions.cloud.user.info.UserInfo;
+import com.google.solutions.cloud.user.info.UserUsage;
+import com.google.solutions.cloud.util.Utils;
+
+import org.joda.time.DateTime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link DemoInfoPersistence} keeping each demo in its own entity group: Demo
+ * records are root entities, naming their owner in an indexed property,
+ * instead of children of the owner's User record. Writes to one demo no
+ * longer contend with writes to the owner's other demos (or their user
+ * record), at the price of what the shared entity group gave for free:
+ *
+ * <ul>
+ * <li>listing a user's demos is an eventually consistent query, so the
+ * results are patched up with the user's recent writes (tracked in memcache
+ * for {@value #RECENT_WRITE_WINDOW_SECONDS} seconds), which are read by key;
+ * <li>list versions come from a memcache counter per user rather than the
+ * user record, and each demo's version is kept above its previous one;
+ * <li>usage is counted from the user's demos when asked for, each demo
+ * keeping the VM time it accrued; the time of a deleted demo is kept in a
+ * {@value #RETIRED_USAGE_KIND} record under the demo's key, written along
+ * with the deletion;
+ * <li>instance name suffixes are handed out by the Datastore ID allocator,
+ * scoped to the user's key, rather than by a counter on the user record.
+ * </ul>
+ *
+ * <p>None of the writes to create, change or delete demos touch the user's
+ * entity group. Records still stored under their User are moved over
+ * (keeping their IDs, unless another user's demo already has one, in which
+ * case the old ID is kept in {@value DemoInfo#PREVIOUS_DEMO_ID}) the first
+ * time their owner's demos are touched on an instance, or by
+ * MigrateDemoKeysTaskServlet. Queries across all users (by
+ * status, and searches) find both kinds of record, so they're left to
+ * {@link DatastoreDemoInfoPersistence}.
+ */
+public class RootDemoInfoPersistence implements DemoInfoPersistence {
+  private static final Logger LOGGER =
+      Logger.getLogger(RootDemoInfoPersistence.class.toString());
+
+  // VM time accrued by a demo in earlier statuses (unindexed)
+  static final String VM_MILLIS = "vmMillis";
+  // VM time of a deleted demo, in an entity of this kind (and ID) under the
+  // demo's key, with the owner in an (indexed) owner property
+  static final String RETIRED_USAGE_KIND = "RetiredDemoUsage";
+  private static final long RETIRED_USAGE_ID = 1;
+  // kind whose IDs, allocated under the user's key, are instance name suffixes
+  static final String INSTANCE_NAME_KIND = "InstanceName";
+
+  // how long a write is assumed to take to show up in query results
+  static final int RECENT_WRITE_WINDOW_SECONDS = 30;
+  private static final int MAX_RECENT_WRITES_UPDATE_ATTEMPTS = 5;
+  private static final String RECENT_WRITES_KEY_PREFIX = "recentDemoWrites/";
+  private static final String LIST_VERSION_KEY_PREFIX = "listVersion/";
+  private static final int USAGE_CACHE_EXPIRATION_SECONDS = 60;
+  private static final String USAGE_CACHE_KEY_PREFIX = "rootUsage/";
+
+  private static final Set<String> ACTIVE_STATUSES = ImmutableSet.of(
+      DemoStatus.CREATED.toString(), DemoStatus.LAUNCHED.toString(),
+      DemoStatus.STOPPED.toString(), DemoStatus.FAILED.toString());
+
+  // users whose records this instance has already moved to the root layout
+  private static final Cache<String, Boolean> MIGRATED_USERS =
+      CacheBuilder.newBuilder().maximumSize(10000).build();
+
+  private final DatastoreService datastore;
+  private final DemoSearchIndex searchIndex;
+  private final MemcacheService memcache;
+  // for what both layouts have in common
+  private final DatastoreDemoInfoPersistence sharedPersistence;
+
+  public RootDemoInfoPersistence(DatastoreService datastore) {
+    this(datastore, SearchServiceFactory.getSearchService(),
+        MemcacheServiceFactory.getMemcacheService());
+  }
+
+  public RootDemoInfoPersistence(DatastoreService datastore, SearchService searchService,
+      MemcacheService memcache) {
+    this.datastore = checkNotNull(datastore);
+    this.searchIndex = new DemoSearchIndex(searchService);
+    this.memcache = checkNotNull(memcache);
+    this.sharedPersistence = new DatastoreDemoInfoPersistence(datastore, searchService, memcache);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#createNewDemo(java.lang.String, com.google.solutions.cloud.demo.info.DemoInfo)
+   */
+  @Override
+  public DemoInfo createNewDemo(String username, DemoInfo initialDemoInfo) {
+    return this.createNewDemos(username, ImmutableList.of(initialDemoInfo)).get(0);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#createNewDemos(java.lang.String, java.util.List)
+   */
+  @Override
+  public List<DemoInfo> createNewDemos(String username, List<DemoInfo> initialDemoInfos) {
+    Utils.checkAllParamsNotNull(username, initialDemoInfos);
+    this.ensureMigrated(username);
+
+    DateTime creationTime = DateTime.now();
+    long version = this.bumpListVersion(username);
+    // new root entities don't need a transaction; a failed batch leaves the
+    // demos created by the earlier ones. templates (and creation events) are
+    // written first, so that a demo never exists without its template.
+    for (List<DemoInfo> batch : Lists.partition(initialDemoInfos,
+        DatastoreDemoInfoPersistence.MAX_BATCH_PUT_SIZE)) {
+      Iterator<Key> demoKeys = this.datastore.allocateIds(DemoInfo.DEMO_KIND, batch.size())
+          .iterator();
+      List<Entity> templateEntitiesToPut = Lists.newArrayListWithCapacity(2 * batch.size());
+      List<Entity> entitiesToPut = Lists.newArrayListWithCapacity(batch.size());
+      for (DemoInfo initialDemoInfo : batch) {
+        DatastoreDemoInfoPersistence.prepareForCreation(username, initialDemoInfo, creationTime);
+        Key demoKey = demoKeys.next();
+        initialDemoInfo.setDemoId(demoKey.getId()).setOwner(username).setVersion(version);
+        templateEntitiesToPut.add(initialDemoInfo.toTemplateDatastoreEntity(demoKey));
+        templateEntitiesToPut.add(
+            DatastoreDemoInfoPersistence.createCreationEvent(initialDemoInfo, demoKey));
+        entitiesToPut.add(toEntity(initialDemoInfo, 0));
+      }
+      this.datastore.put(templateEntitiesToPut);
+      this.datastore.put(entitiesToPut);
+    }
+
+    List<Long> demoIds = Lists.newArrayListWithCapacity(initialDemoInfos.size());
+    Map<Key, String> descriptionsByKey = Maps.newLinkedHashMap();
+    for (DemoInfo demoInfo : initialDemoInfos) {
+      demoIds.add(demoInfo.getDemoId());
+      descriptionsByKey.put(createDemoKey(demoInfo.getDemoId()), demoInfo.getDescription());
+    }
+    this.recordWrites(username, demoIds);
+    this.indexDescriptions(username, descriptionsByKey);
+    return initialDemoInfos;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#get(java.lang.String, java.lang.Long)
+   */
+  @Override
+  public Optional<DemoInfo> get(String username, Long demoId) {
+    Utils.checkAllParamsNotNull(username, demoId);
+    this.ensureMigrated(username);
+
+    Key demoKey = createDemoKey(demoId);
+    Key templateKey = DemoInfo.createTemplateKey(demoKey);
+    Map<Key, Entity> entities = this.datastore.get(ImmutableList.of(demoKey, templateKey));
+    Entity e = entities.get(demoKey);
+    if (e == null || !username.equals(e.getProperty(DemoInfo.OWNER))) {
+      return Optional.absent();
+    }
+    return Optional.of(DemoInfo.fromDatastoreEntities(e, entities.get(templateKey)));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#get(java.lang.String, java.lang.Long, long)
+   */
+  @Override
+  public Optional<DemoInfo> get(String username, Long demoId, long ifNoneMatchVersion) {
+    Utils.checkAllParamsNotNull(username, demoId);
+    this.ensureMigrated(username);
+
+    Entity e;
+    try {
+      e = this.getOwnedEntity(null, username, demoId);
+    } catch (EntityNotFoundException ex) {
+      return Optional.absent();
+    }
+    // compare before deserializing the deployment template
+    DemoInfo stub = DemoInfo.notModifiedFromDatastoreEntity(e);
+    if (stub.getVersion() == ifNoneMatchVersion) {
+      return Optional.of(stub);
+    }
+    return Optional.of(
+        DatastoreDemoInfoPersistence.loadWithTemplates(this.datastore, ImmutableList.of(e)).get(0));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#getListVersion(java.lang.String)
+   */
+  @Override
+  public long getListVersion(String username) {
+    checkNotNull(username);
+    this.ensureMigrated(username);
+
+    Long listVersion = this.memcache.increment(LIST_VERSION_KEY_PREFIX + username, 0,
+        System.currentTimeMillis());
+    return listVersion == null ? System.currentTimeMillis() : listVersion;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#delete(java.lang.String, java.lang.Long)
+   */
+  @Override
+  public void delete(final String username, final Long demoId) {
+    Utils.checkAllParamsNotNull(username, demoId);
+    this.ensureMigrated(username);
+
+    Key demoKey = createDemoKey(demoId);
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        Entity e;
+        try {
+          e = getOwnedEntity(txn, username, demoId);
+        } catch (EntityNotFoundException ex) {
+          // already gone
+          return null;
+        }
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        DateTime now = DateTime.now();
+        long vmMillis = getVmMillis(e) + DatastoreDemoInfoPersistence
+            .getMillisLaunchedSinceStatusChange(currentRecord, now);
+        RootDemoInfoPersistence.this.datastore.delete(txn, e.getKey(),
+            DemoInfo.createTemplateKey(e.getKey()));
+        // the event log (and the demo's usage) outlive the demo
+        RootDemoInfoPersistence.this.datastore.put(txn, ImmutableList.of(
+            DemoEvent.of(DemoEventType.PURGED, currentRecord, now.toDate())
+                .toDatastoreEntity(e.getKey()),
+            createRetiredUsage(username, e.getKey(), vmMillis)));
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+
+    DatastoreTransactions.tryTransaction(this.datastore, demoKey, "delete", block);
+    this.bumpListVersion(username);
+    this.recordWrites(username, ImmutableList.of(demoId));
+    try {
+      this.searchIndex.remove(demoKey);
+    } catch (RuntimeException e) {
+      // a stale document is harmless; matches are loaded from Datastore
+      LOGGER.warning(String.format("failed to remove %s from the search index: %s",
+          demoKey, e));
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#deleteAll(java.lang.String, java.util.List)
+   */
+  @Override
+  public void deleteAll(String username, List<Long> demoIds) {
+    Utils.checkAllParamsNotNull(username, demoIds);
+    this.ensureMigrated(username);
+
+    // each demo is its own entity group, so there's no transaction to batch
+    // the deletes in; this is only meant for demos which no longer change
+    DateTime now = DateTime.now();
+    List<Long> deletedDemoIds = Lists.newArrayListWithCapacity(demoIds.size());
+    List<Key> deletedKeys = Lists.newArrayListWithCapacity(demoIds.size());
+    for (List<Long> batch : Lists.partition(demoIds,
+        DatastoreDemoInfoPersistence.MAX_BATCH_DELETE_DEMOS)) {
+      List<Key> demoKeys = Lists.newArrayListWithCapacity(batch.size());
+      for (Long demoId : batch) {
+        demoKeys.add(createDemoKey(demoId));
+      }
+      List<Key> keysToDelete = Lists.newArrayListWithCapacity(2 * batch.size());
+      List<Entity> entitiesToPut = Lists.newArrayListWithCapacity(2 * batch.size());
+      for (Entity e : this.datastore.get(demoKeys).values()) {
+        if (!username.equals(e.getProperty(DemoInfo.OWNER))) {
+          continue;
+        }
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        long vmMillis = getVmMillis(e)
+            + DatastoreDemoInfoPersistence.getMillisLaunchedSinceStatusChange(currentRecord, now);
+        keysToDelete.add(e.getKey());
+        keysToDelete.add(DemoInfo.createTemplateKey(e.getKey()));
+        // the event log (and the demo's usage) outlive the demo
+        entitiesToPut.add(DemoEvent.of(DemoEventType.PURGED, currentRecord, now.toDate())
+            .toDatastoreEntity(e.getKey()));
+        entitiesToPut.add(createRetiredUsage(username, e.getKey(), vmMillis));
+        deletedDemoIds.add(e.getKey().getId());
+        deletedKeys.add(e.getKey());
+      }
+      // usage first, so that a failed batch can't lose a deleted demo's time
+      this.datastore.put(entitiesToPut);
+      this.datastore.delete(keysToDelete);
+    }
+    if (deletedDemoIds.isEmpty()) {
+      return;
+    }
+
+    this.bumpListVersion(username);
+    this.recordWrites(username, deletedDemoIds);
+    try {
+      this.searchIndex.removeAll(deletedKeys);
+    } catch (RuntimeException e) {
+      // a stale document is harmless; matches are loaded from Datastore
+      LOGGER.warning(String.format("failed to remove %d demos of %s from the search index: %s",
+          deletedKeys.size(), username, e));
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#updateStatus(java.lang.String, java.lang.Long, com.google.solutions.cloud.demo.info.DemoStatus)
+   */
+  @Override
+  public void updateStatus(final String username, final Long demoId,
+      final DemoStatus newStatus) {
+    Utils.checkAllParamsNotNull(username, demoId, newStatus);
+    this.ensureMigrated(username);
+
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        Entity e = getOwnedEntityForUpdate(txn, username, demoId);
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        checkState(currentRecord.getStatus() != null,
+            "DemoInfo record, '%s' has null DemoStatus value", e.getKey());
+        DateTime now = DateTime.now();
+        long vmMillis = getVmMillis(e)
+            + DatastoreDemoInfoPersistence.getMillisLaunchedSinceStatusChange(currentRecord, now);
+        DatastoreDemoInfoPersistence.clearReadiness(currentRecord);
+        currentRecord.setStatus(newStatus);
+        currentRecord.setStatusChangeTime(now.toDate());
+        putRecord(txn, username, currentRecord, vmMillis, DemoEventType.forStatus(newStatus),
+            now.toDate());
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+
+    DatastoreTransactions.tryTransaction(this.datastore, createDemoKey(demoId), "updateStatus",
+        block);
+    this.recordWrites(username, ImmutableList.of(demoId));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#recordPreemption(java.lang.String, java.lang.Long, java.util.Date, boolean)
+   */
+  @Override
+  public void recordPreemption(final String username, final Long demoId,
+      final Date preemptionTime, final boolean relaunched) {
+    Utils.checkAllParamsNotNull(username, demoId, preemptionTime);
+    this.ensureMigrated(username);
+
+    TransactionBlock<Void> block = new TransactionBlock<Void>() {
+      @Override
+      public Void execute(Transaction txn) throws Exception {
+        Entity e = getOwnedEntityForUpdate(txn, username, demoId);
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        Optional<DemoEventType> eventType = DatastoreDemoInfoPersistence.countPreemption(
+            currentRecord, preemptionTime, relaunched);
+        if (!eventType.isPresent() && !relaunched) {
+          // a failed relaunch of an outage that's already counted
+          return null;
+        }
+        putRecord(txn, username, currentRecord, getVmMillis(e), eventType, new Date());
+        DatastoreTransactions.commit(txn);
+        return null;
+      }
+    };
+
+    DatastoreTransactions.tryTransaction(this.datastore, createDemoKey(demoId),
+        "recordPreemption", block);
+    this.recordWrites(username, ImmutableList.of(demoId));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#recordReady(java.lang.String, java.lang.Long, java.util.Date, java.util.Date)
+   */
+  @Override
+  public boolean recordReady(final String username, final Long demoId, final Date launchTime,
+      final Date readyTime) {
+    Utils.checkAllParamsNotNull(username, demoId, launchTime, readyTime);
+    this.ensureMigrated(username);
+
+    TransactionBlock<Boolean> block = new TransactionBlock<Boolean>() {
+      @Override
+      public Boolean execute(Transaction txn) throws Exception {
+        Entity e;
+        try {
+          e = getOwnedEntityForUpdate(txn, username, demoId);
+        } catch (EntityNotFoundException ex) {
+          return false;
+        }
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        if (currentRecord.getStatus() != DemoStatus.LAUNCHED
+            || currentRecord.getReadyTime() != null) {
+          return false;
+        }
+        Optional<Entity> runningEvent = DatastoreDemoInfoPersistence.createMissedRunningEvent(
+            currentRecord, e.getKey(), readyTime);
+        if (runningEvent.isPresent()) {
+          RootDemoInfoPersistence.this.datastore.put(txn, runningEvent.get());
+        }
+        currentRecord.setReadyTime(readyTime)
+            .setTimeToReadyMillis(Math.max(0, readyTime.getTime() - launchTime.getTime()))
+            .setDeploymentStatus(DemoInfo.READY_DEPLOYMENT_STATUS);
+        putRecord(txn, username, currentRecord, getVmMillis(e),
+            Optional.of(DemoEventType.READY), readyTime);
+        DatastoreTransactions.commit(txn);
+        return true;
+      }
+    };
+
+    boolean recorded = DatastoreTransactions.tryTransaction(this.datastore,
+        createDemoKey(demoId), "recordReady", block);
+    if (recorded) {
+      this.recordWrites(username, ImmutableList.of(demoId));
+    }
+    return recorded;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#updateDeploymentStatus(java.lang.String, java.lang.Long, java.lang.String)
+   */
+  @Override
+  public long updateDeploymentStatus(final String username, final Long demoId,
+      final String newDeploymentStatus) {
+    Utils.checkAllParamsNotNull(username, demoId);
+    this.ensureMigrated(username);
+
+    TransactionBlock<Long> block = new TransactionBlock<Long>() {
+      @Override
+      public Long execute(Transaction txn) throws Exception {
+        Entity e = getOwnedEntityForUpdate(txn, username, demoId);
+        DemoInfo currentRecord = DemoInfo.fromDatastoreEntity(e);
+        if (Objects.equal(currentRecord.getDeploymentStatus(), newDeploymentStatus)) {
+          // nothing changed, so there's nothing to write (the transaction is
+          // rolled back by tryTransaction)
+          return currentRecord.getVersion();
+        }
+        currentRecord.setDeploymentStatus(newDeploymentStatus);
+        putRecord(txn, username, currentRecord, getVmMillis(e),
+            DemoEventType.forDeploymentStatus(newDeploymentStatus), new Date());
+        DatastoreTransactions.commit(txn);
+        // only for actual writes; most calls (from the prober) change nothing
+        recordWrites(username, ImmutableList.of(demoId));
+        return currentRecord.getVersion();
+      }
+    };
+
+    return DatastoreTransactions.tryTransaction(this.datastore, createDemoKey(demoId),
+        "updateDeploymentStatus", block);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#findAllActiveDemosForUser(java.lang.String)
+   */
+  @Override
+  public List<DemoInfo> findAllActiveDemosForUser(String username) {
+    checkNotNull(username);
+    this.ensureMigrated(username);
+
+    Query query = new Query(DemoInfo.DEMO_KIND)
+        .setFilter(CompositeFilterOperator.and(createOwnerFilter(username),
+            DatastoreDemoInfoPersistence.createStatusFilter(DemoStatus.CREATED,
+                DemoStatus.LAUNCHED, DemoStatus.STOPPED, DemoStatus.FAILED)))
+        .addSort(DemoInfo.CREATION_TIME, SortDirection.DESCENDING);
+    return this.toSortedDemoInfos(this.queryWithRecentWrites(username, query,
+        new Predicate<Entity>() {
+          @Override
+          public boolean apply(Entity e) {
+            return ACTIVE_STATUSES.contains(e.getProperty(DemoInfo.STATUS));
+          }
+        }));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#getUsage(java.lang.String)
+   */
+  @Override
+  public UserUsage getUsage(String username) {
+    checkNotNull(username);
+    this.ensureMigrated(username);
+
+    String cacheKey = USAGE_CACHE_KEY_PREFIX + username;
+    UserUsage cachedUsage = (UserUsage) this.memcache.get(cacheKey);
+    Metrics.recordCacheLookup("cache.usage", cachedUsage != null);
+    if (cachedUsage != null) {
+      return cachedUsage;
+    }
+
+    UserInfo totals = new UserInfo().setUserName(username)
+        .addVmMillis(this.getRetiredVmMillis(username));
+    for (Entity e : this.queryWithRecentWrites(username,
+        new Query(DemoInfo.DEMO_KIND).setFilter(createOwnerFilter(username)),
+        Predicates.<Entity>alwaysTrue())) {
+      totals.addDemoCount(DemoStatus.valueOf((String) e.getProperty(DemoInfo.STATUS)), 1)
+          .addVmMillis(getVmMillis(e));
+    }
+
+    UserUsage usage = UserUsage.fromUserInfo(totals);
+    // don't overwrite a value cached by a concurrent read, which may be newer
+    this.memcache.put(cacheKey, usage, Expiration.byDeltaSeconds(USAGE_CACHE_EXPIRATION_SECONDS),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return usage;
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#findAllDemosForWorkshop(java.lang.String, java.lang.String)
+   */
+  @Override
+  public List<DemoInfo> findAllDemosForWorkshop(String username, final String workshopId) {
+    Utils.checkAllParamsNotNull(username, workshopId);
+    this.ensureMigrated(username);
+
+    Query query = new Query(DemoInfo.DEMO_KIND)
+        .setFilter(CompositeFilterOperator.and(createOwnerFilter(username),
+            new Query.FilterPredicate(DemoInfo.WORKSHOP_ID, FilterOperator.EQUAL, workshopId)));
+    return this.toSortedDemoInfos(this.queryWithRecentWrites(username, query,
+        new Predicate<Entity>() {
+          @Override
+          public boolean apply(Entity e) {
+            return workshopId.equals(e.getProperty(DemoInfo.WORKSHOP_ID));
+          }
+        }));
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#findAllDemosWithStatus(com.google.solutions.cloud.demo.info.DemoStatus)
+   */
+  @Override
+  public Multimap<String, DemoInfo> findAllDemosWithStatus(DemoStatus status) {
+    return this.sharedPersistence.findAllDemosWithStatus(status);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#searchDemos(com.google.solutions.cloud.persistence.DemoSearchCriteria)
+   */
+  @Override
+  public DemoSearchResults searchDemos(DemoSearchCriteria criteria) {
+    return this.sharedPersistence.searchDemos(criteria);
+  }
+
+  /* (non-Javadoc)
+   * @see com.google.solutions.cloud.persistence.DemoInfoPersistence#reserveInstanceNames(java.lang.String, int)
+   */
+  @Override
+  public int reserveInstanceNames(String username, int numInstances) {
+    checkNotNull(username);
+    checkArgument(numInstances > 0,
+        "numInstances must be positive. got request for %d instances from %s",
+        numInstances, username);
+    // makes sure the suffixes handed out by the legacy counter are reserved
+    this.ensureMigrated(username);
+
+    // allocated IDs come in a contiguous range, and allocating them isn't a
+    // write to the user's entity group
+    long firstSuffix = this.datastore.allocateIds(createUsernameKey(username),
+        INSTANCE_NAME_KIND, numInstances).getStart().getId();
+    checkState(firstSuffix + numInstances <= Integer.MAX_VALUE,
+        "ran out of instance name suffixes for %s", username);
+    return (int) firstSuffix;
+  }
+
+  // move the user's records still stored under their User record to the root
+  // layout (see migrateRecord); returns how many were moved. safe to run
+  // concurrently with itself and with writes to the user's demos.
+  public int migrateUser(String username) {
+    checkNotNull(username);
+
+    Query query = new Query(DemoInfo.DEMO_KIND, createUsernameKey(username)).setKeysOnly();
+    int migratedCount = 0;
+    try (Tracing.Span span = Tracing.startSpan("datastore.migrateUser")) {
+      for (Entity e : this.datastore.prepare(query).asIterable(
+          FetchOptions.Builder.withChunkSize(DatastoreDemoInfoPersistence.MAX_BATCH_PUT_SIZE))) {
+        if (this.migrateRecord(username, e.getKey())) {
+          migratedCount++;
+        }
+      }
+      span.set("migrated", migratedCount);
+    }
+    if (migratedCount > 0) {
+      LOGGER.info(String.format("moved %d demos of %s to root-level keys",
+          migratedCount, username));
+      this.bumpListVersion(username);
+      this.memcache.delete(USAGE_CACHE_KEY_PREFIX + username);
+    }
+    this.reserveLegacyInstanceNames(username);
+    MIGRATED_USERS.put(username, true);
+    return migratedCount;
+  }
+
+  private void ensureMigrated(String username) {
+    if (MIGRATED_USERS.getIfPresent(username) == null) {
+      this.migrateUser(username);
+    }
+  }
+
+  // keep the ID allocator from handing out the instance name suffixes the
+  // legacy counter on the user record already did (0 up to, but not
+  // including, its current value; allocated IDs start at 1)
+  private void reserveLegacyInstanceNames(String username) {
+    Optional<Entity> userEntity = this.getIfPresent(createUsernameKey(username));
+    int nextLegacySuffix = userEntity.isPresent()
+        ? UserInfo.fromDatastoreEntity(userEntity.get()).getCurrentResourceNameSuffix() : 0;
+    if (nextLegacySuffix > 0) {
+      this.datastore.allocateIdRange(new KeyRange(createUsernameKey(username),
+          INSTANCE_NAME_KIND, 1, nextLegacySuffix));
+    }
+  }
+
+  // move a single record, in a cross-group transaction with the new one;
+  // false if there was nothing (left) to move. the record keeps its ID
+  // unless that's another user's, in which case it gets a new one.
+  private boolean migrateRecord(final String username, final Key legacyKey) {
+    final Key demoKey = createDemoKey(legacyKey.getId());
+    // keep the new ID from being handed out to a new root-level demo
+    this.datastore.allocateIdRange(
+        new KeyRange(null, DemoInfo.DEMO_KIND, legacyKey.getId(), legacyKey.getId()));
+
+    TransactionBlock<Optional<Key>> block = new TransactionBlock<Optional<Key>>() {
+      @Override
+      public Optional<Key> execute(Transaction txn) throws Exception {
+        Entity legacyEntity;
+        try {
+          legacyEntity = RootDemoInfoPersistence.this.datastore.get(txn, legacyKey);
+        } catch (EntityNotFoundException e) {
+          return Optional.absent();
+        }
+        // the ID may have been handed out before it was reserved above, so
+        // only move into a key which is free (or already the user's)
+        Key targetKey = demoKey;
+        try {
+          Entity existing = RootDemoInfoPersistence.this.datastore.get(txn, demoKey);
+          if (!username.equals(existing.getProperty(DemoInfo.OWNER))) {
+            targetKey = RootDemoInfoPersistence.this.datastore.allocateIds(
+                DemoInfo.DEMO_KIND, 1).getStart();
+            LOGGER.warning(String.format("moving %s to %s, its ID is taken by %s's demo",
+                legacyKey, targetKey, existing.getProperty(DemoInfo.OWNER)));
+          }
+        } catch (EntityNotFoundException e) {
+          // free
+        }
+        Entity e = new Entity(targetKey);
+        e.setPropertiesFrom(legacyEntity);
+        e.setProperty(DemoInfo.OWNER, username);
+        if (!targetKey.equals(demoKey)) {
+          e.setUnindexedProperty(DemoInfo.PREVIOUS_DEMO_ID, legacyKey.getId());
+        }
+        // VM time accrued so far is already on the user record
+        e.setUnindexedProperty(VM_MILLIS, 0L);
+        List<Entity> entitiesToPut = Lists.newArrayList(e);
+        // records which still embed their template don't have a template record
+        Key legacyTemplateKey = DemoInfo.createTemplateKey(legacyKey);
+        try {
+          Entity templateEntity = new Entity(DemoInfo.createTemplateKey(targetKey));
+          templateEntity.setPropertiesFrom(
+              RootDemoInfoPersistence.this.datastore.get(txn, legacyTemplateKey));
+          entitiesToPut.add(templateEntity);
+        } catch (EntityNotFoundException ex) {
+          // nothing to move
+        }
+        RootDemoInfoPersistence.this.datastore.put(txn, entitiesToPut);
+        RootDemoInfoPersistence.this.datastore.delete(txn, legacyKey, legacyTemplateKey);
+        DatastoreTransactions.commit(txn);
+        return Optional.of(targetKey);
+      }
+    };
+    Optional<Key> migratedKey = DatastoreTransactions.tryTransaction(this.datastore,
+        TransactionOptions.Builder.withXG(true), demoKey, "migrateRecord", block);
+    if (!migratedKey.isPresent()) {
+      return false;
+    }
+
+    try {
+      this.searchIndex.remove(legacyKey);
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to remove %s from the search index: %s",
+          legacyKey, e));
+    }
+    Optional<Entity> migratedEntity = this.getIfPresent(migratedKey.get());
+    if (migratedEntity.isPresent()) {
+      this.indexDescriptions(username, Collections.singletonMap(migratedKey.get(),
+          (String) migratedEntity.get().getProperty(DemoInfo.DESCRIPTION)));
+    }
+    return true;
+  }
+
+  // the user's record with the given ID; another user's record is treated
+  // as missing. outside of a transaction if txn is null.
+  private Entity getOwnedEntity(Transaction txn, String username, Long demoId)
+      throws EntityNotFoundException {
+    Key demoKey = createDemoKey(demoId);
+    Entity e = txn == null ? this.datastore.get(demoKey) : this.datastore.get(txn, demoKey);
+    checkOwner(username, e);
+    return e;
+  }
+
+  // as above, to update the record (see DatastoreDemoInfoPersistence#getForUpdate)
+  private Entity getOwnedEntityForUpdate(Transaction txn, String username, Long demoId)
+      throws EntityNotFoundException {
+    Entity e = DatastoreDemoInfoPersistence.getForUpdate(this.datastore, txn,
+        createDemoKey(demoId));
+    checkOwner(username, e);
+    return e;
+  }
+
+  private static void checkOwner(String username, Entity e) throws EntityNotFoundException {
+    if (!username.equals(e.getProperty(DemoInfo.OWNER))) {
+      throw new EntityNotFoundException(e.getKey());
+    }
+  }
+
+  private Optional<Entity> getIfPresent(Key key) {
+    try {
+      return Optional.of(this.datastore.get(key));
+    } catch (EntityNotFoundException e) {
+      return Optional.absent();
+    }
+  }
+
+  // write an updated record as part of the given transaction, with a new
+  // version: the user's next list version, or one past the record's own if
+  // that's higher (e.g. after the list version counter was evicted). the
+  // event recording the change, if there is one, is written along with it.
+  private void putRecord(Transaction txn, String username, DemoInfo currentRecord,
+      long vmMillis, Optional<DemoEventType> eventType, Date eventTime) {
+    currentRecord.setOwner(username).setVersion(
+        Math.max(currentRecord.getVersion() + 1, this.bumpListVersion(username)));
+    Entity e = toEntity(currentRecord, vmMillis);
+    this.datastore.put(txn, eventType.isPresent()
+        ? ImmutableList.of(e, DemoEvent.of(eventType.get(), currentRecord, eventTime)
+            .toDatastoreEntity(e.getKey()))
+        : ImmutableList.of(e));
+  }
+
+  // increment the user's list version and return the new value. the counter
+  // starts at the current time, so that it keeps increasing when memcache
+  // loses it
+  private long bumpListVersion(String username) {
+    long now = System.currentTimeMillis();
+    Long listVersion = this.memcache.increment(LIST_VERSION_KEY_PREFIX + username, 1, now);
+    return listVersion == null ? now : listVersion;
+  }
+
+  // VM time of the user's deleted demos: what the user record kept from
+  // before the move to this layout, plus the retired usage of each demo
+  // deleted since. the query is patched up with the user's recent writes,
+  // like the demo queries, so that a just deleted demo's time isn't missed.
+  private long getRetiredVmMillis(String username) {
+    long vmMillis = 0;
+    Optional<Entity> userEntity = this.getIfPresent(createUsernameKey(username));
+    if (userEntity.isPresent()) {
+      vmMillis += UserInfo.fromDatastoreEntity(userEntity.get()).getVmMillis();
+    }
+
+    Map<Key, Entity> retiredUsages = Maps.newHashMap();
+    Query query = new Query(RETIRED_USAGE_KIND).setFilter(createOwnerFilter(username));
+    for (Entity e : this.datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(DatastoreDemoInfoPersistence.MAX_BATCH_PUT_SIZE))) {
+      retiredUsages.put(e.getKey(), e);
+    }
+    Set<Long> recentWrites = this.getRecentWrites(username).keySet();
+    if (!recentWrites.isEmpty()) {
+      List<Key> recentKeys = Lists.newArrayListWithCapacity(recentWrites.size());
+      for (Long demoId : recentWrites) {
+        recentKeys.add(createRetiredUsageKey(createDemoKey(demoId)));
+      }
+      retiredUsages.putAll(this.datastore.get(recentKeys));
+    }
+    for (Entity e : retiredUsages.values()) {
+      if (username.equals(e.getProperty(DemoInfo.OWNER))) {
+        vmMillis += getVmMillis(e);
+      }
+    }
+    return vmMillis;
+  }
+
+  // run an (eventually consistent) query for the user's records, then patch
+  // the results with the current state of the demos the user recently wrote,
+  // which the query may not reflect yet: they're added (or updated) if they
+  // still match, and dropped if they don't, or are gone
+  private List<Entity> queryWithRecentWrites(String username, Query query,
+      Predicate<Entity> matches) {
+    Map<Long, Entity> entitiesById = Maps.newLinkedHashMap();
+    try (Tracing.Span span = Tracing.startSpan("datastore.query")) {
+      for (Entity e : this.datastore.prepare(query).asIterable(
+          FetchOptions.Builder.withChunkSize(DatastoreDemoInfoPersistence.MAX_BATCH_PUT_SIZE))) {
+        entitiesById.put(e.getKey().getId(), e);
+      }
+      span.set("results", entitiesById.size());
+    }
+
+    Set<Long> recentWrites = this.getRecentWrites(username).keySet();
+    if (!recentWrites.isEmpty()) {
+      List<Key> recentKeys = Lists.newArrayListWithCapacity(recentWrites.size());
+      for (Long demoId : recentWrites) {
+        recentKeys.add(createDemoKey(demoId));
+      }
+      Map<Key, Entity> recentEntities = this.datastore.get(recentKeys);
+      for (Key demoKey : recentKeys) {
+        Entity e = recentEntities.get(demoKey);
+        if (e != null && username.equals(e.getProperty(DemoInfo.OWNER)) && matches.apply(e)) {
+          entitiesById.put(demoKey.getId(), e);
+        } else {
+          entitiesById.remove(demoKey.getId());
+        }
+      }
+    }
+    return Lists.newArrayList(entitiesById.values());
+  }
+
+  // note that the given demos of the user were just written, for
+  // queryWithRecentWrites. best effort: memcache can lose the note, or fail
+  // to take it, in which case listings may lag behind for a few seconds.
+  private void recordWrites(String username, Collection<Long> demoIds) {
+    this.memcache.delete(USAGE_CACHE_KEY_PREFIX + username);
+
+    String cacheKey = RECENT_WRITES_KEY_PREFIX + username;
+    Expiration expiration = Expiration.byDeltaSeconds(RECENT_WRITE_WINDOW_SECONDS);
+    for (int attempt = 0; attempt < MAX_RECENT_WRITES_UPDATE_ATTEMPTS; attempt++) {
+      IdentifiableValue current = this.memcache.getIdentifiable(cacheKey);
+      HashMap<Long, Long> writeTimes = current == null
+          ? Maps.<Long, Long>newHashMap() : this.pruneWriteTimes(current.getValue());
+      long now = System.currentTimeMillis();
+      for (Long demoId : demoIds) {
+        writeTimes.put(demoId, now);
+      }
+      boolean stored = current == null
+          ? this.memcache.put(cacheKey, writeTimes, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+          : this.memcache.putIfUntouched(cacheKey, current, writeTimes, expiration);
+      if (stored) {
+        return;
+      }
+    }
+    LOGGER.warning(String.format("failed to record recent writes of %s to %s",
+        username, demoIds));
+  }
+
+  // demo ID => write time (millis) of the user's writes within the window
+  private Map<Long, Long> getRecentWrites(String username) {
+    Object writeTimes = this.memcache.get(RECENT_WRITES_KEY_PREFIX + username);
+    return writeTimes == null ? Collections.<Long, Long>emptyMap() : pruneWriteTimes(writeTimes);
+  }
+
+  @SuppressWarnings("unchecked")
+  private HashMap<Long, Long> pruneWriteTimes(Object cachedWriteTimes) {
+    HashMap<Long, Long> writeTimes = new HashMap<>((Map<Long, Long>) cachedWriteTimes);
+    long windowStart = System.currentTimeMillis()
+        - TimeUnit.SECONDS.toMillis(RECENT_WRITE_WINDOW_SECONDS);
+    for (Iterator<Long> it = writeTimes.values().iterator(); it.hasNext();) {
+      if (it.next() < windowStart) {
+        it.remove();
+      }
+    }
+    return writeTimes;
+  }
+
+  // add the descriptions of (newly created or moved) demos to the search
+  // index. demos are still written if this fails; they just can't be found
+  // by text
+  private void indexDescriptions(String username, Map<Key, String> descriptionsByKey) {
+    try {
+      this.searchIndex.add(descriptionsByKey);
+    } catch (RuntimeException e) {
+      LOGGER.warning(String.format("failed to index %d demos of %s: %s",
+          descriptionsByKey.size(), username, e));
+    }
+  }
+
+  private static Entity toEntity(DemoInfo demoInfo, long vmMillis) {
+    Entity e = demoInfo.toRootDatastoreEntity();
+    e.setUnindexedProperty(VM_MILLIS, vmMillis);
+    return e;
+  }
+
+  // the record of a deleted demo's VM time, written along with its deletion
+  private static Entity createRetiredUsage(String username, Key demoKey, long vmMillis) {
+    Entity e = new Entity(createRetiredUsageKey(demoKey));
+    e.setProperty(DemoInfo.OWNER, username);
+    e.setUnindexedProperty(VM_MILLIS, vmMillis);
+    return e;
+  }
+
+  private static Key createRetiredUsageKey(Key demoKey) {
+    return KeyFactory.createKey(demoKey, RETIRED_USAGE_KIND, RETIRED_USAGE_ID);
+  }
+
+  private static long getVmMillis(Entity e) {
+    Object vmMillis = e.getProperty(VM_MILLIS);
+    return vmMillis == null ? 0 : (Long) vmMillis;
+  }
+
+  private List<DemoInfo> toSortedDemoInfos(List<Entity> entities) {
+    List<DemoInfo> demoInfos =
+        DatastoreDemoInfoPersistence.loadWithTemplates(this.datastore, entities);
+    Collections.sort(demoInfos, DatastoreDemoInfoPersistence.CREATION_TIME_DESC_COMPARATOR);
+    return demoInfos;
+  }
+
+  private static Query.Filter createOwnerFilter(String username) {
+    return new Query.FilterPredicate(DemoInfo.OWNER, FilterOperator.EQUAL, username);
+  }
+
+  private static Key createUsernameKey(String username) {
+    return KeyFactory.createKey(UserInfo.USER_KIND, username);
+  }
+
+  private static Key createDemoKey(Long demoId) {
+    return KeyFactory.createKey(DemoInfo.DEMO_KIND, demoId);
+  }
+}
@@ -4,13 +4,30 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.solutions.cloud.demo.info.DemoStatus;
+
+import java.util.EnumMap;
+import java.util.Map;
 
 public class UserInfo {
   public static final String USER_KIND = "User";
   public static final String CURRENT_RESOURCE_NAME_SUFFIX = "currentResourceNameSuffix";
+  public static final String LIST_VERSION = "listVersion";
+  // followed by the DemoStatus name
+  public static final String DEMO_COUNT_PREFIX = "demoCount.";
+  public static final String VM_MILLIS = "vmMillis";
 
   private String username;
   private int currentResourceNameSuffix;
+  // bumped whenever any of the user's demos is created, changed or deleted
+  private long listVersion;
+  // number of the user's demos in each status, and total time the user's
+  // demos have spent launched, both kept up to date by every demo write
+  private final Map<DemoStatus, Long> demoCounts = new EnumMap<>(DemoStatus.class);
+  private long vmMillis;
+  // false for records written before usage was tracked, until their counts
+  // are seeded from the user's demos
+  private boolean usageTracked = true;
 
   public String getUserName() {
     return this.username;
@@ -20,6 +37,23 @@ public class UserInfo {
     return this.currentResourceNameSuffix;
   }
 
+  public long getListVersion() {
+    return this.listVersion;
+  }
+
+  public long getDemoCount(DemoStatus status) {
+    Long count = this.demoCounts.get(checkNotNull(status));
+    return count == null ? 0 : count;
+  }
+
+  public long getVmMillis() {
+    return this.vmMillis;
+  }
+
+  public boolean isUsageTracked() {
+    return this.usageTracked;
+  }
+
   public UserInfo setUserName(String newUserName) {
     this.username = newUserName;
     return this;
@@ -30,20 +64,57 @@ public class UserInfo {
     return this;
   }
 
+  public UserInfo setListVersion(long newListVersion) {
+    this.listVersion = newListVersion;
+    return this;
+  }
+
+  public UserInfo addDemoCount(DemoStatus status, long delta) {
+    this.demoCounts.put(status, this.getDemoCount(status) + delta);
+    return this;
+  }
+
+  public UserInfo addVmMillis(long delta) {
+    this.vmMillis += delta;
+    return this;
+  }
+
+  public UserInfo setUsageTracked(boolean newUsageTracked) {
+    this.usageTracked = newUsageTracked;
+    return this;
+  }
+
   public Entity toDatastoreEntity() {
     checkState(this.username != null && !this.username.isEmpty(),
         "cannot create a Datastore Entity for User instance without username");
 
     Entity e = new Entity(USER_KIND, this.username);
     e.setProperty(CURRENT_RESOURCE_NAME_SUFFIX, this.currentResourceNameSuffix);
+    e.setUnindexedProperty(LIST_VERSION, this.listVersion);
+    if (this.usageTracked) {
+      for (DemoStatus status : DemoStatus.values()) {
+        e.setUnindexedProperty(DEMO_COUNT_PREFIX + status, this.getDemoCount(status));
+      }
+      e.setUnindexedProperty(VM_MILLIS, this.vmMillis);
+    }
     return e;
   }
 
   public static UserInfo fromDatastoreEntity(Entity e) {
     checkNotNull(e);
 
-    return new UserInfo()
+    UserInfo userInfo = new UserInfo()
         .setUserName(e.getKey().getName())
-        .setCurrentResourceNameSuffix((int)(long) e.getProperty(CURRENT_RESOURCE_NAME_SUFFIX));
+        .setCurrentResourceNameSuffix((int)(long) e.getProperty(CURRENT_RESOURCE_NAME_SUFFIX))
+        .setListVersion(e.hasProperty(LIST_VERSION) ? (Long) e.getProperty(LIST_VERSION) : 0L)
+        .setUsageTracked(e.hasProperty(VM_MILLIS));
+    if (userInfo.isUsageTracked()) {
+      for (DemoStatus status : DemoStatus.values()) {
+        Object count = e.getProperty(DEMO_COUNT_PREFIX + status);
+        userInfo.addDemoCount(status, count == null ? 0 : (Long) count);
+      }
+      userInfo.addVmMillis((Long) e.getProperty(VM_MILLIS));
+    }
+    return userInfo;
   }
 }
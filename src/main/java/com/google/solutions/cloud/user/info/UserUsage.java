@@ -0,0 +1,73 @@
+package com.google.solutions.cloud.user.info;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.solutions.cloud.demo.info.DemoStatus;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Java bean"-style snapshot of a user's demo counts and VM usage, as kept on
+ * their {@link UserInfo} record. vmHours only covers time that has already
+ * been accounted for, i.e. launched periods which have ended (by the demo
+ * being stopped, torn down or deleted).
+ */
+public class UserUsage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private String username;
+  private long created;
+  private long launched;
+  private long stopped;
+  private long failed;
+  private long deleting;
+  private double vmHours;
+
+  public String getUsername() {
+    return this.username;
+  }
+
+  public long getCreated() {
+    return this.created;
+  }
+
+  public long getLaunched() {
+    return this.launched;
+  }
+
+  public long getStopped() {
+    return this.stopped;
+  }
+
+  public long getFailed() {
+    return this.failed;
+  }
+
+  public long getDeleting() {
+    return this.deleting;
+  }
+
+  // demos which count as active (see DemoInfoPersistence#findAllActiveDemosForUser)
+  public long getActive() {
+    return this.created + this.launched + this.stopped + this.failed;
+  }
+
+  public double getVmHours() {
+    return this.vmHours;
+  }
+
+  public static UserUsage fromUserInfo(UserInfo userInfo) {
+    checkNotNull(userInfo);
+
+    UserUsage usage = new UserUsage();
+    usage.username = userInfo.getUserName();
+    usage.created = userInfo.getDemoCount(DemoStatus.CREATED);
+    usage.launched = userInfo.getDemoCount(DemoStatus.LAUNCHED);
+    usage.stopped = userInfo.getDemoCount(DemoStatus.STOPPED);
+    usage.failed = userInfo.getDemoCount(DemoStatus.FAILED);
+    usage.deleting = userInfo.getDemoCount(DemoStatus.DELETING);
+    usage.vmHours = (double) userInfo.getVmMillis() / TimeUnit.HOURS.toMillis(1);
+    return usage;
+  }
+}
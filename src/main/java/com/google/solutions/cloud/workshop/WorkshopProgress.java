@@ -0,0 +1,61 @@
+package com.google.solutions.cloud.workshop;
+
+/**
+ * "Java bean"-style summary of how far along the demos for a workshop are.
+ * Ready demos are serving (their instance is running, and the app on it has
+ * answered a readiness probe), failed demos could not be launched, and all
+ * other (non-deleted) demos, including running ones which aren't serving
+ * yet, are pending.
+ */
+public class WorkshopProgress {
+  private String workshopId;
+  private int total;
+  private int ready;
+  private int pending;
+  private int failed;
+
+  public String getWorkshopId() {
+    return this.workshopId;
+  }
+
+  public int getTotal() {
+    return this.total;
+  }
+
+  public int getReady() {
+    return this.ready;
+  }
+
+  public int getPending() {
+    return this.pending;
+  }
+
+  public int getFailed() {
+    return this.failed;
+  }
+
+  public WorkshopProgress setWorkshopId(String newWorkshopId) {
+    this.workshopId = newWorkshopId;
+    return this;
+  }
+
+  public WorkshopProgress setTotal(int newTotal) {
+    this.total = newTotal;
+    return this;
+  }
+
+  public WorkshopProgress setReady(int newReady) {
+    this.ready = newReady;
+    return this;
+  }
+
+  public WorkshopProgress setPending(int newPending) {
+    this.pending = newPending;
+    return this;
+  }
+
+  public WorkshopProgress setFailed(int newFailed) {
+    this.failed = newFailed;
+    return this;
+  }
+}
@@ -0,0 +1,50 @@
+package com.google.solutions.cloud.workshop;
+
+import com.google.solutions.cloud.compute.SchedulingProfile;
+
+import java.util.List;
+
+/**
+ * "Java bean"-style request body for creating a workshop: one demo is created
+ * (and launched) for each attendee.
+ */
+public class WorkshopRequest {
+  private String description;
+  private List<String> attendees;
+  private String deploymentProfile;
+  private SchedulingProfile schedulingProfile;
+
+  public String getDescription() {
+    return this.description;
+  }
+
+  public List<String> getAttendees() {
+    return this.attendees;
+  }
+
+  public String getDeploymentProfile() {
+    return this.deploymentProfile;
+  }
+
+  public SchedulingProfile getSchedulingProfile() {
+    return this.schedulingProfile;
+  }
+
+  // setters return void, since this class is deserialized from API requests
+
+  public void setDescription(String newDescription) {
+    this.description = newDescription;
+  }
+
+  public void setAttendees(List<String> newAttendees) {
+    this.attendees = newAttendees;
+  }
+
+  public void setDeploymentProfile(String newDeploymentProfile) {
+    this.deploymentProfile = newDeploymentProfile;
+  }
+
+  public void setSchedulingProfile(SchedulingProfile newSchedulingProfile) {
+    this.schedulingProfile = newSchedulingProfile;
+  }
+}
@@ -59,34 +59,126 @@ function showResults(opName) {
   };
 }
 
-function createSingleInstanceDemo(description, callback) {
+// idempotencyKey (optional): pass the same key when retrying a call that may
+// or may not have gone through, to get the original result back
+function createSingleInstanceDemo(description, callback, schedulingProfile, deploymentProfile,
+    idempotencyKey) {
   description = description || '';
   invokeWithUserAuth(function() {
     var params = { description: description };
+    if (idempotencyKey) {
+      params.idempotencyKey = idempotencyKey;
+    }
+    if (deploymentProfile) {
+      params.deploymentProfile = deploymentProfile;
+    }
+    if (schedulingProfile) {
+      params.schedulingProfile = schedulingProfile;
+    }
     gapi.client.cloudAppDemoTool.createSingleInstanceDemo(params).execute(callback, callback);
   });
 }
 
-function listActiveDemos(callback) {
+function scheduleDemo(description, launchTime, durationMinutes, callback) {
+  description = description || '';
+  invokeWithUserAuth(function() {
+    var params = {
+      description: description,
+      launchTimeMillis: launchTime.getTime(),
+      durationMinutes: durationMinutes
+    };
+    gapi.client.cloudAppDemoTool.scheduleDemo(params).execute(callback, callback);
+  });
+}
+
+function listDeploymentProfiles(callback) {
+  invokeWithUserAuth(function() {
+    gapi.client.cloudAppDemoTool.listDeploymentProfiles().execute(callback, callback);
+  });
+}
+
+// ifNoneMatch (optional) is the version from a previous response; if nothing
+// changed since then, the response only has notModified set. view (optional)
+// is one of SUMMARY, STANDARD (the default) or FULL.
+function listActiveDemos(callback, ifNoneMatch, view) {
   invokeWithUserAuth(function() {
-    gapi.client.cloudAppDemoTool.listActiveDemos().execute(callback, callback);
+    var params = {};
+    if (ifNoneMatch !== undefined) {
+      params.ifNoneMatch = ifNoneMatch;
+    }
+    if (view) {
+      params.view = view;
+    }
+    gapi.client.cloudAppDemoTool.listActiveDemos(params).execute(callback, callback);
   });
 }
 
-function getDemoInfo(demoId, callback) {
+function getDemoInfo(demoId, callback, ifNoneMatch, view) {
   invokeWithUserAuth(function() {
     var params = { demoId: demoId };
+    if (ifNoneMatch !== undefined) {
+      params.ifNoneMatch = ifNoneMatch;
+    }
+    if (view) {
+      params.view = view;
+    }
     gapi.client.cloudAppDemoTool.getDemoInfo(params).execute(callback, callback);
   });
 }
 
-function launchDemo(demoId, callback) {
+// calls callback with the demo's info every time its status (or deployment
+// status) changes, until the demo is being deleted or no longer exists
+function watchDemo(demoId, callback) {
+  var watch = function(known) {
+    invokeWithUserAuth(function() {
+      var params = { demoId: demoId };
+      if (known) {
+        params.knownStatus = known.status;
+        if (known.deploymentStatus) {
+          params.knownDeploymentStatus = known.deploymentStatus;
+        }
+      }
+      gapi.client.cloudAppDemoTool.watchDemoInfo(params).execute(function(resp) {
+        var result = (resp && resp.result) || resp;
+        if (!result || resp.code) {
+          callback(resp);
+          return;
+        }
+        if (!known || result.status !== known.status ||
+            result.deploymentStatus !== known.deploymentStatus) {
+          callback(resp);
+        }
+        if (result.status !== 'DELETING') {
+          watch(result);
+        }
+      });
+    });
+  };
+  watch(null);
+}
+
+function launchDemo(demoId, callback, idempotencyKey) {
   invokeWithUserAuth(function() {
     var params = { demoId: demoId };
+    if (idempotencyKey) {
+      params.idempotencyKey = idempotencyKey;
+    }
     gapi.client.cloudAppDemoTool.launchDemo(params).execute(callback, callback);
   });
 }
 
+// start is the next value of the previous response (omit it the first
+// time), so that each call only returns output written since then
+function getSerialConsoleOutput(demoId, callback, start) {
+  invokeWithUserAuth(function() {
+    var params = { demoId: demoId };
+    if (start !== undefined) {
+      params.start = start;
+    }
+    gapi.client.cloudAppDemoTool.getSerialConsoleOutput(params).execute(callback, callback);
+  });
+}
+
 function teardownDemo(demoId, callback) {
   invokeWithUserAuth(function() {
     var params = { demoId: demoId };
@@ -94,6 +186,20 @@ function teardownDemo(demoId, callback) {
   });
 }
 
+function createWorkshop(description, attendees, callback) {
+  invokeWithUserAuth(function() {
+    var params = { description: description, attendees: attendees };
+    gapi.client.cloudAppDemoTool.createWorkshop(params).execute(callback, callback);
+  });
+}
+
+function getWorkshopProgress(workshopId, callback) {
+  invokeWithUserAuth(function() {
+    var params = { workshopId: workshopId };
+    gapi.client.cloudAppDemoTool.getWorkshopProgress(params).execute(callback, callback);
+  });
+}
+
 function prettyPrint(obj, level, prefix, lines) {
   lines = lines || [];
   level = level || 0;